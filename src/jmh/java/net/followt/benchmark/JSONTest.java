@@ -0,0 +1,130 @@
+package net.followt.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+
+import net.followt.TwitterDecoder;
+import net.followt.util.LongList;
+
+/**
+ * Compares decoding Twitter responses with com.mongodb.util.JSON (the way
+ * Twitter used to do it) against the streaming TwitterDecoder, for a full
+ * page of 5,000 follower ids and a users/lookup response with 100 users.
+ * Run with "-prof gc" to see the allocation rates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JSONTest {
+
+    public final static int PAGE_SIZE = 5000;
+
+    private byte[] followerPage;
+    private long[] userIds;
+    private byte[] userPage;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        StringBuilder b = new StringBuilder("{\"ids\":[");
+        for (int i=0; i<PAGE_SIZE; i++) {
+            if (i > 0) b.append(',');
+            b.append((long)(random.nextDouble() * 3000000000L));
+        }
+        b.append("],\"next_cursor\":1444171924411163944,\"next_cursor_str\":\"1444171924411163944\",")
+         .append("\"previous_cursor\":0,\"previous_cursor_str\":\"0\"}");
+        followerPage = b.toString().getBytes();
+
+        userIds = new long[100];
+        b = new StringBuilder("[");
+        for (int i=0; i<userIds.length; i++) {
+            userIds[i] = 1000000L + i;
+            if (i > 0) b.append(',');
+            b.append("{\"id\":").append(userIds[i])
+             .append(",\"id_str\":\"").append(userIds[i]).append('"')
+             .append(",\"name\":\"User \\u00e9").append(i).append('"')
+             .append(",\"screen_name\":\"user").append(i).append('"')
+             .append(",\"location\":\"\",\"description\":\"some text, with \\\"quotes\\\" [and] {braces}\"")
+             .append(",\"entities\":{\"description\":{\"urls\":[]}},\"protected\":false")
+             .append(",\"followers_count\":").append(i * 17)
+             .append(",\"status\":{\"created_at\":\"Sat Oct 18 10:00:00 +0000 2014\",\"text\":\"hello\"}")
+             .append(",\"profile_image_url\":\"http://pbs.twimg.com/profile_images/1/a.png\"}");
+        }
+        b.append("]");
+        userPage = b.toString().getBytes();
+    }
+
+    @Benchmark
+    public long followerIds_mongoJSON() {
+        DBObject response = (DBObject)JSON.parse(new String(followerPage));
+        BasicDBList list = (BasicDBList)response.get("ids");
+        LongList result = new LongList(PAGE_SIZE);
+        for (Object o : list) {
+            result.add(((Number)o).longValue());
+        }
+        return Long.parseLong((String)response.get("next_cursor_str")) + result.size();
+    }
+
+    @Benchmark
+    public long followerIds_streaming() throws IOException {
+        LongList result = new LongList(PAGE_SIZE);
+        long next_cursor = TwitterDecoder.decodeFollowerIds(
+            new ByteArrayInputStream(followerPage), result);
+        return next_cursor + result.size();
+    }
+
+    @Benchmark
+    public String[] usersLookup_mongoJSON() {
+        BasicDBList result = (BasicDBList)JSON.parse(new String(userPage));
+        String[] names = new String[userIds.length];
+        for (Object o : result) {
+            DBObject dbo = (DBObject)o;
+            long id = ((Number)dbo.get("id")).longValue();
+            String name = (String)dbo.get("screen_name");
+            for (int i=0; i<userIds.length; i++) {
+                if (userIds[i] == id) names[i] = name;
+            }
+        }
+        return names;
+    }
+
+    @Benchmark
+    public String[] usersLookup_streaming() throws IOException {
+        String[] names = new String[userIds.length];
+        TwitterDecoder.decodeScreenNames(new ByteArrayInputStream(userPage), userIds, names);
+        return names;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+            .include(JSONTest.class.getSimpleName())
+            .addProfiler("gc")
+            .build();
+        new Runner(options).run();
+    }
+
+}
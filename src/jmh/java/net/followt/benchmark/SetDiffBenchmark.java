@@ -0,0 +1,192 @@
+package net.followt.benchmark;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import net.followt.FollowerDiff;
+import net.followt.SnapshotStore;
+import net.followt.util.LongBitmap;
+import net.followt.util.LongHashSet;
+import net.followt.util.LongList;
+
+/**
+ * Compares the ways of computing the difference between the follower set
+ * of the previous scan and the followers returned by the current scan,
+ * i.e. the new followers and the unfollowers, entirely in memory:
+ * <ul>
+ * <li>boxedHashSet: two HashSet&lt;Long&gt;, as the original benchmarks did</li>
+ * <li>primitiveHashSet: two LongHashSets</li>
+ * <li>sortedMerge: sorting the current followers and merging them with the
+ *     sorted previous snapshot (SnapshotStore.diff)</li>
+ * <li>bitmap: FollowerDiff, i.e. LongBitmaps with an AND-NOT at the end,
+ *     fed page by page like the Scanner does</li>
+ * </ul>
+ * The previous set is prepared in the form in which it is stored (a sorted
+ * array, or a bitmap), while the current followers come in pages of 5,000
+ * in no particular order, like from Twitter.
+ * <p>
+ * The parameters are the number of followers, the churn (the fraction of
+ * followers that are replaced between the scans), and the distribution of
+ * the ids: UNIFORM over the 32-bit range of older accounts, DENSE for
+ * consecutive ids with small gaps, and SPARSE64 for ids spread over the
+ * full 64-bit range of newer accounts, which is the worst case for bitmaps.
+ * Run with "-prof gc" to see the allocation rates, and restrict the
+ * parameters with "-p size=100000" etc., since the full matrix takes long.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx6g" })
+public class SetDiffBenchmark {
+
+    public final static int PAGE_SIZE = 5000;
+
+    public enum Distribution {
+        UNIFORM, DENSE, SPARSE64
+    }
+
+    @Param({ "1000", "100000", "1000000", "10000000" })
+    public int size;
+
+    @Param({ "0.001", "0.01", "0.1" })
+    public double churn;
+
+    @Param({ "UNIFORM", "DENSE", "SPARSE64" })
+    public Distribution distribution;
+
+    /** the previous follower set, sorted */
+    private long[] previous;
+    /** the previous follower set as a bitmap */
+    private LongBitmap previousBitmap;
+    /** the current followers, in pages, in random order */
+    private LongList[] pages;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Random random = new Random(42);
+        int changed = (int)(size * churn);
+        long[] all = ids(random, size + changed);
+        // shuffle, so that the removed and added followers are spread out
+        for (int i=all.length-1; i>0; i--) {
+            int j = random.nextInt(i+1);
+            long t = all[i]; all[i] = all[j]; all[j] = t;
+        }
+        previous = Arrays.copyOfRange(all, 0, size);
+        long[] current = Arrays.copyOfRange(all, changed, size + changed);
+        Arrays.sort(previous);
+        previousBitmap = LongBitmap.of(previous);
+        pages = new LongList[(current.length + PAGE_SIZE - 1) / PAGE_SIZE];
+        for (int i=0; i<pages.length; i++) {
+            pages[i] = new LongList(PAGE_SIZE);
+            for (int j=i*PAGE_SIZE; j<Math.min((i+1)*PAGE_SIZE, current.length); j++) {
+                pages[i].add(current[j]);
+            }
+        }
+    }
+
+    /**
+     * Creates n distinct ids of the chosen distribution.
+     */
+    private long[] ids (Random random, int n) {
+        LongHashSet result = new LongHashSet(n);
+        long next = 1000000000L;
+        while (result.size() < n) {
+            switch (distribution) {
+            case UNIFORM:  result.add(random.nextInt() & 0xFFFFFFFFL); break;
+            case DENSE:    result.add(next += 1 + random.nextInt(4)); break;
+            case SPARSE64: result.add(random.nextLong() >>> 1); break;
+            }
+        }
+        return result.toArray();
+    }
+
+    @Benchmark
+    public int boxedHashSet() {
+        Set<Long> old = new HashSet<Long>();
+        for (long id : previous) old.add(id);
+        Set<Long> current = new HashSet<Long>();
+        int added = 0;
+        for (LongList page : pages) {
+            for (int i=0; i<page.size(); i++) {
+                long id = page.get(i);
+                current.add(id);
+                if (!old.contains(id)) added++;
+            }
+        }
+        int removed = 0;
+        for (Long id : old) {
+            if (!current.contains(id)) removed++;
+        }
+        return added + removed;
+    }
+
+    @Benchmark
+    public int primitiveHashSet() {
+        LongHashSet old = new LongHashSet(previous.length);
+        for (long id : previous) old.add(id);
+        LongHashSet current = new LongHashSet(previous.length);
+        int added = 0;
+        for (LongList page : pages) {
+            for (int i=0; i<page.size(); i++) {
+                long id = page.get(i);
+                if (current.add(id) && !old.contains(id)) added++;
+            }
+        }
+        int removed = 0;
+        for (long id : previous) {
+            if (!current.contains(id)) removed++;
+        }
+        return added + removed;
+    }
+
+    @Benchmark
+    public int sortedMerge() {
+        LongList current = new LongList(previous.length);
+        for (LongList page : pages) {
+            current.addAll(page.toArray());
+        }
+        SnapshotStore.Diff diff = SnapshotStore.diff(previous, current.toSortedArray());
+        return diff.added.length + diff.removed.length;
+    }
+
+    @Benchmark
+    public int bitmap() {
+        FollowerDiff diff = new FollowerDiff(0, previousBitmap, null);
+        int added = 0;
+        for (LongList page : pages) {
+            added += diff.addPage(page).length;
+        }
+        return added + diff.getUnfollowers().length;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+            .include(SetDiffBenchmark.class.getSimpleName())
+            .addProfiler("gc")
+            .build();
+        new Runner(options).run();
+    }
+
+}
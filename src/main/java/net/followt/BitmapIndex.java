@@ -0,0 +1,101 @@
+package net.followt;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import net.followt.util.LongBitmap;
+
+/**
+ * Keeps the follower set of the most recent complete scan of each user as a
+ * compressed bitmap in a local file, one file per followee.  The files are
+ * memory-mapped when they are loaded, so they survive restarts of the
+ * Scanner without costing heap space, and the Scanner can compute who
+ * followed or unfollowed since the previous scan with a bitmap AND-NOT
+ * instead of walking the open intervals in the database.
+ * <p>
+ * The directory defaults to "bitmaps" in the working directory, and can be
+ * changed with the system property followt.bitmap.dir.
+ *
+ * @author drmirror
+ */
+public class BitmapIndex {
+
+    private File dir;
+
+    public BitmapIndex() {
+        this(new File(System.getProperty("followt.bitmap.dir", "bitmaps")));
+    }
+
+    public BitmapIndex (File dir) {
+        this.dir = dir;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new RuntimeException("cannot create bitmap directory " + dir);
+        }
+    }
+
+    /**
+     * Returns the follower bitmap of the last complete scan of the given
+     * user, or null if there is none.
+     */
+    public LongBitmap load (long followee) {
+        File f = file(followee);
+        if (!f.exists()) return null;
+        try {
+            RandomAccessFile raf = new RandomAccessFile(f, "r");
+            try {
+                MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+                return LongBitmap.map(buffer);
+            } finally {
+                // the mapping stays valid after the file is closed
+                raf.close();
+            }
+        } catch (IOException ex) {
+            System.out.println("ignoring unreadable bitmap " + f + ": " + ex);
+            return null;
+        }
+    }
+
+    /**
+     * Stores the follower bitmap of a complete scan of the given user,
+     * replacing the previous one.  The file is written under a temporary
+     * name first, so that a crash never leaves a partial bitmap behind.
+     */
+    public void save (long followee, LongBitmap followers) {
+        File f = file(followee);
+        File tmp = new File(dir, followee + ".bitmap.tmp");
+        try {
+            RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+            try {
+                raf.setLength(0);
+                followers.write(raf.getChannel());
+                raf.getChannel().force(true);
+            } finally {
+                raf.close();
+            }
+            Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                                                 StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Removes the bitmap of the given user, if there is one.
+     */
+    public void remove (long followee) {
+        File f = file(followee);
+        if (f.exists() && !f.delete()) {
+            throw new RuntimeException("cannot delete " + f);
+        }
+    }
+
+    private File file (long followee) {
+        return new File(dir, followee + ".bitmap");
+    }
+
+}
@@ -0,0 +1,87 @@
+package net.followt;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits how many threads may use a backend (such as the database, or
+ * screen name resolution) at the same time, so that a slow backend only
+ * holds up the requests that need it, and cannot be flooded with calls.
+ * <p>
+ * Callers acquire a permit before the call and release it afterwards:
+ * <pre>
+ * bulkhead.acquire();
+ * try {
+ *     ...
+ * } finally {
+ *     bulkhead.release();
+ * }
+ * </pre>
+ * A caller that does not get a permit within the timeout is rejected with
+ * a RejectedExecutionException.  Permits must not be acquired twice by the
+ * same thread, as it could then wait for itself.
+ * <p>
+ * Each bulkhead reports the permits in use (name.in_use), the time spent
+ * waiting for a permit (name.wait) and the rejected callers (name.rejected)
+ * as Metrics.
+ *
+ * @author drmirror
+ */
+public class Bulkhead {
+
+    private final String name;
+    private final int limit;
+    private final long timeout;
+    private final Semaphore permits;
+    private final Metrics.Timer waits;
+    private final Metrics.Counter rejected;
+
+    /**
+     * @param limit the number of threads that may use the backend at once
+     * @param timeout how long to wait for a permit, in milliseconds
+     */
+    public Bulkhead (String name, final int limit, long timeout) {
+        this.name = name;
+        this.limit = limit;
+        this.timeout = timeout;
+        this.permits = new Semaphore(limit, true);
+        this.waits = Metrics.timer(name + ".wait");
+        this.rejected = Metrics.counter(name + ".rejected");
+        Metrics.gauge(name + ".in_use", new Metrics.Gauge() {
+            public long getValue() {
+                return limit - permits.availablePermits();
+            }
+        });
+    }
+
+    /**
+     * Waits for a permit.
+     * @throws RejectedExecutionException if there is none within the timeout,
+     * or the thread is interrupted
+     */
+    public void acquire() {
+        if (permits.tryAcquire()) return;
+        long start = System.nanoTime();
+        boolean acquired = false;
+        try {
+            acquired = permits.tryAcquire(timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        waits.stop(start);
+        if (!acquired) {
+            rejected.increment();
+            throw new RejectedExecutionException(name + " is busy (" + limit + " callers)");
+        }
+    }
+
+    public void release() {
+        permits.release();
+    }
+
+    public String toString() {
+        return name + " (" + (limit - permits.availablePermits()) + "/" + limit + ")";
+    }
+
+}
@@ -0,0 +1,81 @@
+package net.followt;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import org.scribe.builder.ServiceBuilder;
+import org.scribe.builder.api.TwitterApi;
+import org.scribe.model.OAuthRequest;
+import org.scribe.model.Token;
+import org.scribe.oauth.OAuthService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.followt.Twitter.Endpoint;
+
+/**
+ * One set of Twitter API credentials (api key and access token), together
+ * with the rate limit state of each endpoint for this access token, since
+ * Twitter counts requests per token.
+ * <p>
+ * A credential that causes errors is quarantined for a while, during
+ * which the CredentialPool does not use it.
+ *
+ * @author drmirror
+ */
+public class Credential {
+
+    private final static Logger LOG = LoggerFactory.getLogger(Credential.class);
+    private final static Metrics.Counter QUARANTINED = Metrics.counter("twitter.credential.quarantined");
+
+    private final String name;
+    private final OAuthService oauthService;
+    private final Token accessToken;
+    private final Map<Endpoint,TokenBucket> buckets = new EnumMap<Endpoint,TokenBucket>(Endpoint.class);
+    private volatile long quarantinedUntil = 0;
+
+    public Credential (String name, String api_key, String api_secret,
+                       String access_token, String access_secret) {
+        this.name = name;
+        this.oauthService = new ServiceBuilder()
+            .provider(TwitterApi.class)
+            .apiKey(api_key)
+            .apiSecret(api_secret)
+            .build();
+        this.accessToken = new Token (access_token, access_secret);
+        for (Endpoint e : Endpoint.values()) {
+            buckets.put(e, new TokenBucket(name + ":" + e.getPath(), e.getLimit(),
+                                           TokenBucket.FIFTEEN_MINUTES));
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void sign (OAuthRequest request) {
+        oauthService.signRequest(accessToken, request);
+    }
+
+    public TokenBucket getBucket (Endpoint endpoint) {
+        return buckets.get(endpoint);
+    }
+
+    /**
+     * Takes this credential out of service for the given time.
+     */
+    public void quarantine (long millis) {
+        quarantinedUntil = System.currentTimeMillis() + millis;
+        QUARANTINED.increment();
+        LOG.warn("credential {} quarantined for {} s", name, millis / 1000);
+    }
+
+    public boolean isQuarantined() {
+        return System.currentTimeMillis() < quarantinedUntil;
+    }
+
+    public String toString() {
+        return name;
+    }
+
+}
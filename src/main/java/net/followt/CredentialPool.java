@@ -0,0 +1,180 @@
+package net.followt;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+
+import net.followt.Twitter.Endpoint;
+
+/**
+ * Spreads API requests across several sets of credentials, so that the
+ * total request budget grows with the number of access tokens configured.
+ * Each request goes to the credential with the most remaining budget for
+ * its endpoint; quarantined credentials are skipped, and one credential
+ * is always kept in service.
+ * <p>
+ * Credentials are read from twitter.properties: the unnumbered keys
+ * (api_key, api_secret, access_token, access_secret) form the first set,
+ * and further sets can be added with numbered keys, starting at 2
+ * (api_key.2, api_secret.2, ...).
+ *
+ * @author drmirror
+ */
+public class CredentialPool {
+
+    /**
+     * How long to wait at most before looking at the buckets again, in
+     * case a response has updated them in the meantime.
+     */
+    private final static long MAX_WAIT = 1000;
+
+    private final List<Credential> credentials;
+
+    public CredentialPool (List<Credential> credentials) {
+        if (credentials.isEmpty()) throw new IllegalArgumentException("no credentials");
+        this.credentials = Collections.unmodifiableList(new ArrayList<Credential>(credentials));
+    }
+
+    /**
+     * Reads all credential sets from the given properties.
+     */
+    public static CredentialPool fromProperties (Properties conf) {
+        List<Credential> result = new ArrayList<Credential>();
+        for (int i=1; ; i++) {
+            String suffix = i == 1 ? "" : "." + i;
+            String api_key = conf.getProperty("api_key" + suffix);
+            if (api_key == null) break;
+            result.add(new Credential(i == 1 ? "default" : "credential" + suffix,
+                                      api_key,
+                                      conf.getProperty("api_secret" + suffix),
+                                      conf.getProperty("access_token" + suffix),
+                                      conf.getProperty("access_secret" + suffix)));
+        }
+        return new CredentialPool(result);
+    }
+
+    public List<Credential> getCredentials() {
+        return credentials;
+    }
+
+    public int size() {
+        return credentials.size();
+    }
+
+    /**
+     * Picks a credential for a request to the given endpoint and takes
+     * a token from its bucket, waiting until one is available if all
+     * credentials have exhausted their budget.
+     * @param endpoint the endpoint, or null if no rate limit applies
+     */
+    public Credential acquire (Endpoint endpoint) throws InterruptedException {
+        while (true) {
+            Credential result = tryAcquire(endpoint);
+            if (result != null) return result;
+            Thread.sleep(waitTime(endpoint));
+        }
+    }
+
+    /**
+     * Picks a credential for a request to the given endpoint and takes
+     * a token from its bucket, without waiting.
+     * @param endpoint the endpoint, or null if no rate limit applies
+     * @return the credential, or null if none has budget left; try again
+     * after waitTime()
+     */
+    public Credential tryAcquire (Endpoint endpoint) {
+        while (true) {
+            Credential best = best(endpoint);
+            if (best == null) return null;
+            if (endpoint == null || best.getBucket(endpoint).tryAcquire()) return best;
+            // another thread may have taken the token, so look again
+            if (best.getBucket(endpoint).available() == 0) return null;
+        }
+    }
+
+    /**
+     * Takes the given credential out of service for the given time, unless
+     * it is the last one in service: without any credential, every request
+     * would wait for the quarantine to end, even if the error was not the
+     * credential's fault after all.
+     * @return true if the credential was quarantined
+     */
+    public synchronized boolean quarantine (Credential credential, long millis) {
+        for (Credential c : credentials) {
+            if (c != credential && !c.isQuarantined()) {
+                credential.quarantine(millis);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Waits until at least one credential has budget for the given endpoint.
+     */
+    public void awaitBudget (Endpoint endpoint) throws InterruptedException {
+        while (true) {
+            Credential best = best(endpoint);
+            if (best != null && best.getBucket(endpoint).available() > 0) return;
+            Thread.sleep(waitTime(endpoint));
+        }
+    }
+
+    /**
+     * Returns the combined rate limit state of all credentials that are
+     * not quarantined: the sum of their limits and remaining requests,
+     * and the earliest reset.
+     */
+    public RateLimitStatus getStatus (Endpoint endpoint) {
+        int limit = 0, remaining = 0;
+        Date reset = null;
+        for (Credential c : credentials) {
+            if (c.isQuarantined()) continue;
+            RateLimitStatus s = c.getBucket(endpoint).getStatus();
+            limit += s.getLimit();
+            remaining += s.getRemaining();
+            if (s.getReset() != null && (reset == null || s.getReset().before(reset))) {
+                reset = s.getReset();
+            }
+        }
+        return new RateLimitStatus(endpoint.getPath(), limit, remaining, reset);
+    }
+
+    /**
+     * Returns the usable credential with the most remaining budget for the
+     * given endpoint, or null if all credentials are quarantined.
+     */
+    private Credential best (Endpoint endpoint) {
+        Credential result = null;
+        int max = -1;
+        for (Credential c : credentials) {
+            if (c.isQuarantined()) continue;
+            int available = endpoint == null ? 0 : c.getBucket(endpoint).available();
+            if (available > max) {
+                max = available;
+                result = c;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns how long to wait before the next credential might have budget,
+     * in milliseconds.
+     */
+    public long waitTime (Endpoint endpoint) {
+        long now = System.currentTimeMillis();
+        long result = MAX_WAIT;
+        if (endpoint != null) {
+            for (Credential c : credentials) {
+                if (c.isQuarantined()) continue;
+                Date reset = c.getBucket(endpoint).getStatus().getReset();
+                if (reset != null) result = Math.min(result, reset.getTime() - now);
+            }
+        }
+        return Math.max(1, result);
+    }
+
+}
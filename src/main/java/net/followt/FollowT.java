@@ -1,43 +1,215 @@
 package net.followt;
 
-import java.net.UnknownHostException;
+import java.io.IOException;
+import java.io.Writer;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
-import com.mongodb.AggregationOutput;
-import com.mongodb.BasicDBObject;
 import com.mongodb.DB;
-import com.mongodb.DBCollection;
-import com.mongodb.DBCursor;
-import com.mongodb.DBObject;
-import com.mongodb.MongoClient;
+
+import net.followt.util.LongList;
+import net.followt.util.LongLruCache;
 
 /**
  * Provides access to the follower histories of Twitter users.
+ * <p>
+ * The results of getRecentFollowers() and getRecentUnfollowers() for the
+ * intervals offered by the web UI (REPORT_INTERVALS) are cached in memory.
+ * A cached result stays valid as long as the scan_ended time of the followee
+ * in the FollowerStore does not change, i.e. until the Scanner has processed another
+ * page for that user.  The scan_ended times of all users are polled by a
+ * background thread every SCAN_POLL_INTERVAL, so that serving a cached
+ * report does not touch the database at all.  Since a cached result may have
+ * been computed some time ago, it is filtered by the actual cutoff time
+ * whenever it is served.  The reports, the ids of the followees and the
+ * beginnings of their histories are kept for at most CACHE_SIZE followees,
+ * the least recently used ones are evicted.
+ * <p>
+ * The web UI may call this class from many threads at once.  Calls to the
+ * database go through the bulkhead report.db, and waits for screen names
+ * and lookups of unknown followees on Twitter go through the bulkhead
+ * report.names; the bulkheads limit how many of them run at the same time.  A call that
+ * does not get its turn within BULKHEAD_TIMEOUT fails with a
+ * RejectedExecutionException.
  * @author drmirror
  */
 public class FollowT {
 
-    private UserDB userDB = UserDB.getInstance();
-    private DBCollection fhistory = null;
+    /**
+     * The report intervals offered by the web UI, for which results are cached.
+     */
+    public final static Set<Long> REPORT_INTERVALS = new HashSet<Long>(Arrays.asList(
+        10800000L, 21600000L, 43200000L, 86400000L, 172800000L, 604800000L
+    ));
+    
+    /**
+     * How long a report waits for screen names that are not known yet,
+     * in milliseconds.  Names that are still unknown after that are
+     * shown as placeholders.
+     */
+    public final static long NAME_TIMEOUT = Long.getLong("followt.report.names.timeout", 2000);
+    
+    /**
+     * How often the scan state of all users is polled, in milliseconds.
+     */
+    public final static long SCAN_POLL_INTERVAL = Long.getLong("followt.report.poll", 5000);
+    
+    /**
+     * How long a report waits for its turn at the database or at the
+     * screen name resolution, in milliseconds.
+     */
+    public final static long BULKHEAD_TIMEOUT = Long.getLong("followt.report.bulkhead.timeout", 10000);
+    
+    /**
+     * For how many followees reports are cached.
+     */
+    public final static int CACHE_SIZE = Integer.getInteger("followt.report.cache.size", 1000);
+    
+    private final Bulkhead db;
+    private final Bulkhead names;
+    
+    private final UserDB userDB;
+    private final FollowerStore store;
+    private final FollowerCounts counts;
+    private final ReportStream reportStream;
     
     private SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
     
+    /**
+     * A cached result, and the scan_ended time of the followee
+     * at the time it was computed.
+     */
+    private static class CachedReport<T> {
+        final Date version;
+        final List<T> items;
+        CachedReport (Date version, List<T> items) {
+            this.version = version;
+            this.items = items;
+        }
+    }
+    
+    /**
+     * The cached results of one followee, by interval.
+     */
+    private static class CachedReports {
+        final Map<Long,CachedReport<Follower>> followers =
+            new ConcurrentHashMap<Long,CachedReport<Follower>>();
+        final Map<Long,CachedReport<Unfollower>> unfollowers =
+            new ConcurrentHashMap<Long,CachedReport<Unfollower>>();
+    }
+    
+    private final LongLruCache<CachedReports> reports = new LongLruCache<CachedReports>(CACHE_SIZE);
+    private final LongLruCache<Date> beginningOfTime = new LongLruCache<Date>(CACHE_SIZE);
+    private final Map<String,Long> followeeIds = Collections.synchronizedMap(
+        new LinkedHashMap<String,Long>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+            protected boolean removeEldestEntry (Map.Entry<String,Long> eldest) {
+                return size() > CACHE_SIZE;
+            }
+        });
+    
+    /**
+     * The scan_ended time of each user, as of the last poll.
+     */
+    private volatile Map<Long,Date> scanEnded = new HashMap<Long,Date>();
+    
+    private Thread scanPoller = new Thread (new Runnable() {
+        public void run() {
+            while (true) {
+                try {
+                    Thread.sleep(SCAN_POLL_INTERVAL);
+                    pollScans();
+                } catch (InterruptedException ex) {
+                    return;
+                } catch (RuntimeException ex) {
+                    System.out.println("cannot poll scans: " + ex);
+                }
+            }
+        }
+    }, "scan-poller");
+    
     private FollowT() {
-        initMongo();
+        this(Storage.getStore(), UserDB.getInstance(), getCounts(),
+             new Bulkhead("report.db",
+                          Integer.getInteger("followt.report.db.concurrency", 16), BULKHEAD_TIMEOUT),
+             new Bulkhead("report.names",
+                          Integer.getInteger("followt.report.names.concurrency", 8), BULKHEAD_TIMEOUT));
     }
     
-    private void initMongo() {
-        try {
-            MongoClient client = new MongoClient();
-            DB db = client.getDB("followt");
-            fhistory = db.getCollection("fhistory");
-        } catch (UnknownHostException e) {
-            throw new RuntimeException(e);
+    /**
+     * Creates an instance with its own scan poller, which lives as long as
+     * the process.  The application uses getInstance().
+     * @param counts the hourly counters, or null if there are none
+     * @param db the bulkhead of calls to the store
+     * @param names the bulkhead of calls to Twitter
+     */
+    FollowT (FollowerStore store, UserDB userDB, FollowerCounts counts, Bulkhead db, Bulkhead names) {
+        this.store = store;
+        this.userDB = userDB;
+        this.counts = counts;
+        this.db = db;
+        this.names = names;
+        this.reportStream = new ReportStream(store, userDB);
+        pollScans();
+        scanPoller.setDaemon(true);
+        scanPoller.start();
+    }
+    
+    private static FollowerCounts getCounts() {
+        DB db = Storage.getMongoDB();
+        return db == null ? null : new FollowerCounts(db);
+    }
+    
+    void pollScans() {
+        scanEnded = store.getScanEnded();
+    }
+    
+    private long getFolloweeId (String screenName) {
+        Long result = followeeIds.get(screenName);
+        if (result == null) {
+            db.acquire();
+            try {
+                result = userDB.getStoredId(screenName);
+            } finally {
+                db.release();
+            }
+            if (result == -1) {
+                // a call to Twitter, which must not hold up the database
+                names.acquire();
+                try {
+                    result = userDB.fetchId(screenName);
+                } finally {
+                    names.release();
+                }
+            }
+            followeeIds.put(screenName, result);
         }
+        return result;
+    }
+    
+    private CachedReports getReports (long followee) {
+        CachedReports result = reports.get(followee);
+        if (result == null) {
+            result = new CachedReports();
+            reports.put(followee, result);
+        }
+        return result;
+    }
+    
+    private static boolean sameVersion (Date a, Date b) {
+        return a == null ? b == null : a.equals(b);
     }
     
     /**
@@ -45,28 +217,32 @@ public class FollowT {
      * at some point in the past.
      */
     public class Follower {
-        public int followee;
-        public int follower;
-        public String followerScreenName;
+        public long followee;
+        public long follower;
+        public volatile String followerScreenName;
         public Date followedSince;
         public Date lastSeen;
-        public Follower (BasicDBObject source) {
-            this.followee = source.getInt("followee");
-            this.follower = source.getInt("follower");
-            this.followedSince = source.getDate("start");
-            this.lastSeen = source.getDate("last");
+        public Follower (Interval source) {
+            this.followee = source.followee;
+            this.follower = source.follower;
+            this.followedSince = source.start;
+            this.lastSeen = source.last;
         }
-        public int getFollowee() {
+        public long getFollowee() {
             return followee;
         }
-        public int getFollower() {
+        public long getFollower() {
             return follower;
         }
+        /**
+         * Returns the screen name of the follower, or a placeholder
+         * of the form #id if it could not be resolved in time.
+         */
         public String getFollowerScreenName() {
-            if (followerScreenName == null) {
-                followerScreenName = userDB.getScreenName(follower);
-            }
-            return followerScreenName;
+            return followerScreenName != null ? followerScreenName : "#" + follower;
+        }
+        public boolean isNameResolved() {
+            return followerScreenName != null;
         }
         public Date getFollowedSince() {
             return followedSince;
@@ -82,9 +258,9 @@ public class FollowT {
      */
     public class Unfollower extends Follower {
         public Date unfollowedSince;
-        public Unfollower (BasicDBObject source) {
+        public Unfollower (Interval source) {
             super (source);
-            this.unfollowedSince = source.getDate("end");
+            this.unfollowedSince = source.end;
         }
         public Date getUnfollowedSince() {
             return unfollowedSince;
@@ -93,7 +269,7 @@ public class FollowT {
             return unfollowedSince.getTime() - followedSince.getTime();
         }
         public String toString() {
-            String screenName = userDB.getScreenName(follower);
+            String screenName = getFollowerScreenName();
             double followTime = (unfollowedSince.getTime() - followedSince.getTime()) / 86400000.0;
             return String.format ("%s %4.2f %s", df.format(unfollowedSince), followTime, screenName);
         }
@@ -108,44 +284,88 @@ public class FollowT {
      * @return the list of users who have unfollowed the given user
      */
     public List<Unfollower> getRecentUnfollowers(String screenName, long interval) {
-        int followee = userDB.getId(screenName);
+        long followee = getFolloweeId(screenName);
         Date cutoff = new Date(System.currentTimeMillis() - interval);
-        List<Unfollower> result = new ArrayList<Unfollower>();
-        DBCursor dbresult = fhistory.find(
-            new BasicDBObject("followee",followee)
-                      .append("end",new BasicDBObject("$gte", cutoff))
-        ).sort(new BasicDBObject("end",1));
-        List<Integer> unfollowerIds = new ArrayList<Integer>();
-        for (DBObject o : dbresult) {
-            unfollowerIds.add (((BasicDBObject)o).getInt("follower"));
-        }
-        userDB.lookupUsers(unfollowerIds);
-        for (DBObject o : dbresult) {
-            Unfollower u = new Unfollower((BasicDBObject)o);
-            result.add(u);
+        Date version = scanEnded.get(followee);
+        boolean cached = REPORT_INTERVALS.contains(interval);
+        CachedReport<Unfollower> report = cached ? getReports(followee).unfollowers.get(interval) : null;
+        if (report == null || !sameVersion(report.version, version)) {
+            report = new CachedReport<Unfollower>(version, queryUnfollowers(followee, cutoff));
+            if (cached) getReports(followee).unfollowers.put(interval, report);
         }
+        // callers may modify the list, so always return a new one
+        List<Unfollower> result = new ArrayList<Unfollower>(report.items.size());
+        for (Unfollower u : report.items) {
+            if (!u.unfollowedSince.before(cutoff)) result.add(u);
+        }
+        resolveNames(result);
+        return result;
+    }
+    
+    private List<Unfollower> queryUnfollowers (long followee, Date cutoff) {
+        final List<Unfollower> result = new ArrayList<Unfollower>();
+        visitIntervals(followee, FollowerStore.Order.BY_END, cutoff,
+            new FollowerStore.IntervalVisitor() {
+                public void visit (Interval i) {
+                    result.add(new Unfollower(i));
+                }
+            });
         return result;
     }
     
+    /**
+     * Visits all intervals of the given followee from the given time on.
+     */
+    private void visitIntervals (long followee, FollowerStore.Order order, Date from,
+                                 FollowerStore.IntervalVisitor visitor) {
+        db.acquire();
+        try {
+            store.visitIntervals(followee, order, from, null, Integer.MAX_VALUE, visitor);
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        } finally {
+            db.release();
+        }
+    }
+    
+    /**
+     * Writes one page of the followers or unfollowers of the given user
+     * within the given interval as JSON (see ReportStream).
+     * @param after the token from the previous page, or null
+     */
+    public void writeReport (ReportStream.Kind kind, String screenName, long interval,
+                             String after, int limit, Writer out) throws IOException {
+        long followee = getFolloweeId(screenName);
+        Date cutoff = new Date(System.currentTimeMillis() - interval);
+        db.acquire();
+        try {
+            reportStream.write(kind, followee, cutoff, after, limit, out);
+        } finally {
+            db.release();
+        }
+    }
+    
     /**
      * Returns the point in time when followt started monitoring the given user.
      * @param followee the user for which the beginning of time should be returned
      * @return point in time when the first scan of that user started
      */
-    public Date beginningOfTime (int followee) {
-        AggregationOutput agr = fhistory.aggregate(
-            new BasicDBObject("$match",
-                new BasicDBObject ("followee",followee)),
-            new BasicDBObject("$group",
-                new BasicDBObject("_id",null)
-                          .append("beginning_of_time", 
-                                  new BasicDBObject("$min","$start"))));
-        DBObject result = agr.results().iterator().next();
-        return (Date)result.get("beginning_of_time");
+    public Date beginningOfTime (long followee) {
+        // the history only grows at the end, so this never changes
+        Date result = beginningOfTime.get(followee);
+        if (result != null) return result;
+        db.acquire();
+        try {
+            result = store.getFirstStart(followee);
+        } finally {
+            db.release();
+        }
+        if (result != null) beginningOfTime.put(followee, result);
+        return result;
     }
     
     public Date beginningOfTime (String screenName) {
-        int id = userDB.getId(screenName);
+        long id = getFolloweeId(screenName);
         return beginningOfTime(id);
     }
     
@@ -158,62 +378,141 @@ public class FollowT {
      * @return the list of users who have started following the given user
      */
     public List<Follower> getRecentFollowers(String screenName, long interval) {
-        int followee = userDB.getId(screenName);
+        long followee = getFolloweeId(screenName);
         Date beginningOfTime = beginningOfTime (followee);
         Date cutoff = new Date(System.currentTimeMillis() - interval);
-        if (cutoff.getTime() < beginningOfTime.getTime()) {
+        if (beginningOfTime != null && cutoff.getTime() < beginningOfTime.getTime()) {
             cutoff = new Date (beginningOfTime.getTime() + 3600000);
         }
-        List<Follower> result = new ArrayList<Follower>();
-        DBCursor dbresult = fhistory.find(
-            new BasicDBObject("followee",followee)
-                      .append("start",new BasicDBObject("$gte", cutoff))
-        ).sort(new BasicDBObject("start",1));
-        List<Integer> followerIds = new ArrayList<Integer>();
-        for (DBObject o : dbresult) {
-            followerIds.add (((BasicDBObject)o).getInt("follower"));
+        Date version = scanEnded.get(followee);
+        boolean cached = REPORT_INTERVALS.contains(interval);
+        CachedReport<Follower> report = cached ? getReports(followee).followers.get(interval) : null;
+        if (report == null || !sameVersion(report.version, version)) {
+            report = new CachedReport<Follower>(version, queryFollowers(followee, cutoff));
+            if (cached) getReports(followee).followers.put(interval, report);
+        }
+        // callers may modify the list, so always return a new one
+        List<Follower> result = new ArrayList<Follower>(report.items.size());
+        for (Follower f : report.items) {
+            if (!f.followedSince.before(cutoff)) result.add(f);
+        }
+        resolveNames(result);
+        return result;
+    }
+    
+    private List<Follower> queryFollowers (long followee, Date cutoff) {
+        final List<Follower> result = new ArrayList<Follower>();
+        visitIntervals(followee, FollowerStore.Order.BY_START, cutoff,
+            new FollowerStore.IntervalVisitor() {
+                public void visit (Interval i) {
+                    result.add(new Follower(i));
+                }
+            });
+        return result;
+    }
+    
+    /**
+     * Fills in the screen names of the given followers that are not
+     * resolved yet, with a single batched lookup that waits at most
+     * NAME_TIMEOUT for names that need to be fetched from Twitter.
+     * Names that arrive later are filled in the next time the report
+     * is served.
+     */
+    private void resolveNames (List<? extends Follower> followers) {
+        LongList ids = new LongList();
+        for (Follower f : followers) {
+            if (!f.isNameResolved()) ids.add(f.follower);
+        }
+        if (ids.isEmpty()) return;
+        String[] resolved;
+        names.acquire();
+        try {
+            resolved = userDB.getScreenNames(ids.toArray(), NAME_TIMEOUT, TimeUnit.MILLISECONDS);
+        } finally {
+            names.release();
         }
-        userDB.lookupUsers(followerIds);
-        for (DBObject o : dbresult) {
-            Follower f = new Follower((BasicDBObject)o);
-            result.add(f);
+        int i = 0;
+        for (Follower f : followers) {
+            if (!f.isNameResolved()) f.followerScreenName = resolved[i++];
         }
+    }
+    
+    /**
+     * Returns the number of followers the given user gained and lost
+     * per hour, day or week, between <code>from</code> and <code>to</code>,
+     * with a single read of the pre-aggregated counters.  Without MongoDB,
+     * there are no counters, and the series is computed from the follower
+     * history instead.
+     */
+    public List<FollowerCounts.Bucket> getSeries (String screenName, Date from, final Date to,
+                                                  FollowerCounts.Resolution resolution) {
+        long followee = userDB.getId(screenName);
+        if (counts != null) return counts.getSeries(followee, from, to, resolution);
+        final List<FollowerCounts.Bucket> result = FollowerCounts.buckets(from, to, resolution);
+        if (result.isEmpty()) return result;
+        Date start = result.get(0).getStart();
+        visitIntervals(followee, FollowerStore.Order.BY_START, start,
+            new FollowerStore.IntervalVisitor() {
+                public void visit (Interval i) {
+                    if (i.start.before(to)) FollowerCounts.add(result, i.start, 1, 0);
+                }
+            });
+        visitIntervals(followee, FollowerStore.Order.BY_END, start,
+            new FollowerStore.IntervalVisitor() {
+                public void visit (Interval i) {
+                    if (i.end.before(to)) FollowerCounts.add(result, i.end, 0, 1);
+                }
+            });
         return result;
     }
     
+    /**
+     * Recomputes the pre-aggregated counters of the given user from its
+     * follower history.  Only available with MongoDB.
+     */
+    public void rebuildCounts (String screenName) {
+        if (counts == null) throw new IllegalStateException("follower counters require MongoDB");
+        counts.rebuild(userDB.getId(screenName), Storage.getMongoDB().getCollection("fhistory"));
+    }
+    
+    /**
+     * Counts the followers gained on the given day directly in the follower history.
+     * Use getSeries() for more than a single day.
+     */
     public int newFollowersOnDay (String screenName, Date d) {
-        int followee = userDB.getId(screenName);
-        Calendar c = Calendar.getInstance();
-        c.setTime(d);
-        c.set(Calendar.HOUR_OF_DAY, 0);
-        c.set(Calendar.MINUTE, 0);
-        c.set(Calendar.SECOND, 0);
-        Date start = c.getTime();
-        Date end = new Date(c.getTimeInMillis() + 86400000);
-        int result = fhistory.find(new BasicDBObject("followee", followee)
-                                             .append("start", new BasicDBObject ("$gte", start)
-                                                                         .append("$lt", end))).count();
-        return result;                             
+        return countOnDay(screenName, d, FollowerStore.Order.BY_START);
     }
 
+    /**
+     * Counts the followers lost on the given day directly in the follower history.
+     * Use getSeries() for more than a single day.
+     */
     public int lostFollowersOnDay (String screenName, Date d) {
-        int followee = userDB.getId(screenName);
+        return countOnDay(screenName, d, FollowerStore.Order.BY_END);
+    }
+
+    private int countOnDay (String screenName, Date d, final FollowerStore.Order order) {
+        long followee = userDB.getId(screenName);
         Calendar c = Calendar.getInstance();
         c.setTime(d);
         c.set(Calendar.HOUR_OF_DAY, 0);
         c.set(Calendar.MINUTE, 0);
         c.set(Calendar.SECOND, 0);
         Date start = c.getTime();
-        Date end = new Date(c.getTimeInMillis() + 86400000);
-        int result = fhistory.find(new BasicDBObject("followee", followee)
-                                             .append("end", new BasicDBObject ("$gte", start)
-                                                                       .append("$lt", end))).count();
-        return result;                             
+        final Date end = new Date(c.getTimeInMillis() + 86400000);
+        final int[] result = new int[1];
+        visitIntervals(followee, order, start, new FollowerStore.IntervalVisitor() {
+            public void visit (Interval i) {
+                Date time = order == FollowerStore.Order.BY_START ? i.start : i.end;
+                if (time.before(end)) result[0]++;
+            }
+        });
+        return result[0];
     }
 
     private static FollowT instance = null;
     
-    public static FollowT getInstance() {
+    public static synchronized FollowT getInstance() {
         if (instance == null) instance = new FollowT();
         return instance;
     }
@@ -223,13 +522,9 @@ public class FollowT {
         String screenName = "db2";
         FollowT f = getInstance();
         Date bot = f.beginningOfTime(screenName);
-        Calendar c = Calendar.getInstance();
-        c.setTime(bot);
-        while (c.getTimeInMillis() < System.currentTimeMillis()) {
-            c.add(Calendar.DAY_OF_MONTH, 1);
-            int newFollowers = f.newFollowersOnDay(screenName, c.getTime());
-            int lostFollowers = f.lostFollowersOnDay(screenName, c.getTime());
-            System.out.format("%s %3d %3d\n", df.format(c.getTime()), newFollowers, lostFollowers);
+        for (FollowerCounts.Bucket b : f.getSeries(screenName, bot, new Date(),
+                                                   FollowerCounts.Resolution.DAY)) {
+            System.out.format("%s %3d %3d\n", df.format(b.getStart()), b.getGained(), b.getLost());
         }
     }
     
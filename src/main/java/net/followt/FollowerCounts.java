@@ -0,0 +1,221 @@
+package net.followt;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+
+import com.mongodb.AggregationOptions;
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.Cursor;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+/**
+ * Keeps pre-aggregated counts of new and lost followers in the
+ * <code>fcounts</code> collection, one document per followee and hour:
+ * <code>{followee, hour, gained, lost}</code>.
+ * <p>
+ * The Scanner increments the counters whenever it opens or closes intervals
+ * in fhistory, so that a time series of follower changes can be read with a
+ * single range query over a few documents per day, instead of counting
+ * intervals in fhistory for each point of the series.  Hours are aligned
+ * to UTC; days and weeks are formed from hours in the local time zone.
+ *
+ * @author drmirror
+ */
+public class FollowerCounts {
+
+    private final static long HOUR = 3600 * 1000;
+
+    public enum Resolution {
+        HOUR, DAY, WEEK
+    }
+
+    /**
+     * One point of a time series: the followers gained and lost in the
+     * hour, day or week beginning at <code>start</code>.
+     */
+    public static class Bucket {
+        private final Date start;
+        private int gained;
+        private int lost;
+        public Bucket (Date start) {
+            this.start = start;
+        }
+        public Date getStart() {
+            return start;
+        }
+        public int getGained() {
+            return gained;
+        }
+        public int getLost() {
+            return lost;
+        }
+        public String toString() {
+            return start + " +" + gained + " -" + lost;
+        }
+    }
+
+    private DBCollection fcounts;
+
+    public FollowerCounts (DB db) {
+        fcounts = db.getCollection("fcounts");
+    }
+
+    /**
+     * Adds the given numbers of new and lost followers to the counters
+     * of the hour that contains <code>time</code>.
+     */
+    public void record (long followee, Date time, int gained, int lost) {
+        if (gained == 0 && lost == 0) return;
+        fcounts.update(new BasicDBObject("followee",followee)
+                                 .append("hour",hourOf(time.getTime())),
+                       new BasicDBObject("$inc",new BasicDBObject("gained",gained)
+                                                          .append("lost",lost)),
+                       true, false);
+    }
+
+    /**
+     * Returns the changes in the followers of the given user between
+     * <code>from</code> (inclusive) and <code>to</code> (exclusive), with one
+     * bucket per hour, day or week, including the empty ones.  The first
+     * bucket is the one that contains <code>from</code>.
+     */
+    public List<Bucket> getSeries (long followee, Date from, Date to, Resolution resolution) {
+        List<Bucket> result = buckets(from, to, resolution);
+        if (result.isEmpty()) return result;
+        DBCursor cursor = fcounts.find(
+            new BasicDBObject("followee",followee)
+                      .append("hour",new BasicDBObject("$gte",result.get(0).getStart())
+                                                .append("$lt",to))
+        ).sort(new BasicDBObject("hour",1));
+        merge(result, cursor);
+        return result;
+    }
+
+    /**
+     * Adds hourly counters, sorted by hour and none of them before the
+     * first bucket, to the buckets that contain their hours.
+     */
+    static void merge (List<Bucket> buckets, Iterable<DBObject> counters) {
+        int i = 0;
+        for (DBObject o : counters) {
+            Date hour = (Date)o.get("hour");
+            // the buckets and the counters are both sorted, so a merge is enough
+            while (i+1 < buckets.size() && !hour.before(buckets.get(i+1).getStart())) i++;
+            Bucket b = buckets.get(i);
+            b.gained += ((Number)o.get("gained")).intValue();
+            b.lost += ((Number)o.get("lost")).intValue();
+        }
+    }
+
+    /**
+     * Returns the empty buckets between <code>from</code> and <code>to</code>,
+     * the first of which contains <code>from</code>.
+     */
+    public static List<Bucket> buckets (Date from, Date to, Resolution resolution) {
+        List<Bucket> result = new ArrayList<Bucket>();
+        Calendar c = Calendar.getInstance();
+        c.setTime(from);
+        truncate(c, resolution);
+        while (c.getTimeInMillis() < to.getTime()) {
+            result.add(new Bucket(c.getTime()));
+            advance(c, resolution);
+        }
+        return result;
+    }
+
+    /**
+     * Adds to the bucket that contains <code>time</code>, if there is one.
+     * Used to compute a series directly from the follower history, when
+     * there are no pre-aggregated counters.
+     */
+    public static void add (List<Bucket> buckets, Date time, int gained, int lost) {
+        int lo = 0, hi = buckets.size() - 1;
+        if (hi < 0 || time.before(buckets.get(0).getStart())) return;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (buckets.get(mid).getStart().after(time)) hi = mid - 1;
+            else lo = mid;
+        }
+        Bucket b = buckets.get(lo);
+        b.gained += gained;
+        b.lost += lost;
+    }
+
+    /**
+     * Recomputes the counters of the given user from the follower history,
+     * replacing the existing ones.  This is needed once for users that were
+     * scanned before the counters were introduced.
+     */
+    public void rebuild (long followee, DBCollection fhistory) {
+        fcounts.remove(new BasicDBObject("followee",followee));
+        rebuild(followee, fhistory, "start", "gained");
+        rebuild(followee, fhistory, "end", "lost");
+    }
+
+    private void rebuild (long followee, DBCollection fhistory, String field, String counter) {
+        // date - ((date - epoch) mod 1h) truncates the date to the hour
+        BasicDBList sinceEpoch = new BasicDBList();
+        sinceEpoch.add("$" + field);
+        sinceEpoch.add(new Date(0));
+        BasicDBList mod = new BasicDBList();
+        mod.add(new BasicDBObject("$subtract",sinceEpoch));
+        mod.add(HOUR);
+        BasicDBList hour = new BasicDBList();
+        hour.add("$" + field);
+        hour.add(new BasicDBObject("$mod",mod));
+        List<DBObject> pipeline = new ArrayList<DBObject>();
+        pipeline.add(new BasicDBObject("$match",
+            new BasicDBObject("followee",followee)
+                      .append(field,new BasicDBObject("$exists",true))));
+        pipeline.add(new BasicDBObject("$group",
+            new BasicDBObject("_id",new BasicDBObject("$subtract",hour))
+                      .append("n",new BasicDBObject("$sum",1))));
+        // a cursor, since a long history has more hours than fit into
+        // a single 16 MB result document
+        Cursor out = fhistory.aggregate(pipeline, AggregationOptions.builder()
+            .outputMode(AggregationOptions.OutputMode.CURSOR).build());
+        try {
+            while (out.hasNext()) {
+                DBObject o = out.next();
+                int n = ((Number)o.get("n")).intValue();
+                fcounts.update(new BasicDBObject("followee",followee)
+                                         .append("hour",o.get("_id")),
+                               new BasicDBObject("$inc",new BasicDBObject(counter,n)),
+                               true, false);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    static Date hourOf (long time) {
+        return new Date(time - time % HOUR);
+    }
+
+    private static void truncate (Calendar c, Resolution resolution) {
+        c.set(Calendar.MILLISECOND, 0);
+        c.set(Calendar.SECOND, 0);
+        c.set(Calendar.MINUTE, 0);
+        if (resolution == Resolution.HOUR) return;
+        c.set(Calendar.HOUR_OF_DAY, 0);
+        if (resolution == Resolution.DAY) return;
+        while (c.get(Calendar.DAY_OF_WEEK) != c.getFirstDayOfWeek()) {
+            c.add(Calendar.DAY_OF_MONTH, -1);
+        }
+    }
+
+    private static void advance (Calendar c, Resolution resolution) {
+        switch (resolution) {
+        case HOUR: c.add(Calendar.HOUR_OF_DAY, 1); break;
+        case DAY:  c.add(Calendar.DAY_OF_MONTH, 1); break;
+        case WEEK: c.add(Calendar.WEEK_OF_YEAR, 1); break;
+        }
+    }
+
+}
@@ -0,0 +1,126 @@
+package net.followt;
+
+import java.util.Arrays;
+import java.util.Date;
+
+import net.followt.util.LongBitmap;
+import net.followt.util.LongHashSet;
+import net.followt.util.LongList;
+
+/**
+ * Computes the changes in the follower set of a single user during one scan,
+ * entirely in memory.
+ * <p>
+ * At the start of a scan, the set of followers that currently have an open
+ * interval in the follower history is loaded once, as a compressed bitmap
+ * (usually the memory-mapped bitmap of the previous scan, see BitmapIndex).
+ * The followers returned by Twitter are collected in a hash set for the
+ * current scan, and only the followers that are in neither set yet are
+ * reported back as new.  When the scan is complete, the current followers
+ * are turned into a second bitmap, and the followers that have unfollowed
+ * the user are the result of an AND-NOT of the two bitmaps, which is
+ * computed a whole container at a time.
+ * <p>
+ * The current followers are not added to a bitmap directly, because they
+ * come in no particular order, and inserting a value in the middle of a
+ * bitmap is linear in its size: with sparse 64-bit ids, nearly every id is
+ * in a group of its own, kept in one sorted array.  The hash set costs
+ * 16-32 bytes per follower while the scan is in progress.
+ *
+ * @author drmirror
+ */
+public class FollowerDiff {
+
+    private long followee;
+    private LongBitmap open;
+    private LongHashSet current;
+    /** the bitmap of current, once it has been built */
+    private LongBitmap currentBitmap = null;
+    private Date lastSeen;
+
+    public FollowerDiff (long followee, long[] open) {
+        this(followee, LongBitmap.of(open), null);
+    }
+
+    /**
+     * @param followee the user whose followers are being scanned
+     * @param open the followers which have an open interval in the
+     * follower history at the start of the scan
+     * @param lastSeen the start of the previous scan, at which the followers
+     * in <code>open</code> were last seen, or null if not known
+     */
+    public FollowerDiff (long followee, LongBitmap open, Date lastSeen) {
+        this.followee = followee;
+        this.open = open;
+        this.lastSeen = lastSeen;
+        this.current = new LongHashSet((int)Math.min(open.cardinality(), 1 << 24));
+    }
+
+    public long getFollowee() {
+        return followee;
+    }
+
+    public Date getLastSeen() {
+        return lastSeen;
+    }
+
+    /**
+     * Processes one page of followers.
+     * @param followers the follower ids returned by Twitter
+     * @return the followers on this page that did not have an open interval
+     * yet, and for which a new interval must be created
+     */
+    public long[] addPage (LongList followers) {
+        currentBitmap = null;
+        long[] unseen = new long[followers.size()];
+        int n = 0;
+        for (int i=0; i<followers.size(); i++) {
+            long follower = followers.get(i);
+            if (current.add(follower)) unseen[n++] = follower;
+        }
+        // look up the open intervals in one sorted pass over the bitmap
+        long[] sorted = Arrays.copyOf(unseen, n);
+        Arrays.sort(sorted);
+        long[] notOpen = open.missing(sorted);
+        long[] result = new long[notOpen.length];
+        int m = 0;
+        for (int i=0; i<n; i++) {
+            if (Arrays.binarySearch(notOpen, unseen[i]) >= 0) result[m++] = unseen[i];
+        }
+        return result;
+    }
+
+    /**
+     * Returns the followers which had an open interval, but have not
+     * been seen during this scan, in ascending order.  Only meaningful
+     * after the last page of the scan has been added.
+     */
+    public long[] getUnfollowers() {
+        return open.andNot(getCurrent()).toArray();
+    }
+
+    /**
+     * Returns all followers seen during this scan, in ascending order.
+     */
+    public long[] getFollowers() {
+        long[] result = current.toArray();
+        Arrays.sort(result);
+        return result;
+    }
+
+    /**
+     * Returns the bitmap of all followers seen during this scan.
+     */
+    public LongBitmap getCurrent() {
+        if (currentBitmap == null) currentBitmap = LongBitmap.of(getFollowers());
+        return currentBitmap;
+    }
+
+    /**
+     * Returns the number of distinct followers seen during this scan so far.
+     */
+    public int getSeenCount() {
+        return current.size();
+    }
+
+}
@@ -0,0 +1,113 @@
+package net.followt;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Map;
+
+/**
+ * The persistent state of followt: the scan state of each monitored user,
+ * the follower history (as intervals), and the dictionary of screen names.
+ * <p>
+ * There are two implementations: MongoFollowerStore, which keeps everything
+ * in MongoDB, and LocalFollowerStore, which keeps it in append-only logs on
+ * local disk, without a database server.  Storage.getStore() returns the
+ * one that is configured.  Implementations are thread-safe.
+ *
+ * @author drmirror
+ */
+public interface FollowerStore {
+
+    /**
+     * The order in which intervals are visited: by their start time
+     * (for new followers) or by their end time (for unfollowers; only
+     * closed intervals are visited then).
+     */
+    public enum Order {
+        BY_START, BY_END
+    }
+
+    public interface IntervalVisitor {
+        void visit (Interval interval) throws IOException;
+    }
+
+    // --- scan state
+
+    /**
+     * Returns the scan that should be worked on next: unfinished scans first,
+     * then the one that was last worked on the longest time ago.
+     * @param exclude users that must not be returned
+     * @return the next scan, or null if there is none
+     */
+    Scan nextScan (Collection<Long> exclude);
+
+    /**
+     * Returns the scan state of the given user, or null if it is not monitored.
+     */
+    Scan getScan (long userId);
+
+    void saveScan (Scan scan);
+
+    /**
+     * Starts monitoring the given user, unless it is monitored already.
+     */
+    void addScan (long userId);
+
+    /**
+     * Returns the time at which a page was last scanned, for all users.
+     */
+    Map<Long,Date> getScanEnded();
+
+    // --- follower intervals
+
+    /**
+     * Returns the followers that have an open interval, sorted.
+     */
+    long[] getOpenFollowers (long followee);
+
+    /**
+     * Opens an interval for each of the given followers.
+     */
+    void openIntervals (long followee, long[] followers, Date start);
+
+    /**
+     * Closes the open intervals of the given followers.
+     * @param lastSeen the time the followers were last seen, or null
+     * if not known
+     */
+    void closeIntervals (long followee, long[] followers, Date end, Date lastSeen);
+
+    /**
+     * Returns the start of the first interval of the given followee,
+     * or null if there is none.
+     */
+    Date getFirstStart (long followee);
+
+    /**
+     * Visits the intervals of the given followee that started (or ended)
+     * at or after <code>from</code>, in ascending order of that time and
+     * their key, streaming them from the underlying storage.
+     * @param after if not null, the time and key of the last interval of
+     * the previous page; only intervals after it are visited
+     * @param limit the maximum number of intervals to visit
+     */
+    void visitIntervals (long followee, Order order, Date from, Interval after, int limit,
+                         IntervalVisitor visitor) throws IOException;
+
+    // --- user dictionary
+
+    /**
+     * Returns the known screen names of the given users.
+     * @return an array of the same length as <code>ids</code>, with
+     * null for unknown users
+     */
+    String[] getScreenNames (long[] ids);
+
+    void putScreenNames (long[] ids, String[] names);
+
+    /**
+     * Returns the id of the user with the given screen name, or -1 if unknown.
+     */
+    long getUserId (String screenName);
+
+}
@@ -0,0 +1,36 @@
+package net.followt;
+
+import java.util.Date;
+
+/**
+ * One entry of the follower history: a period during which a user
+ * followed another one.
+ *
+ * @author drmirror
+ */
+public class Interval {
+
+    public final long followee;
+    public final long follower;
+    /** when the follower was first seen */
+    public final Date start;
+    /** when the follower was last seen, if known */
+    public final Date last;
+    /** when the follower was first found missing, or null if still following */
+    public final Date end;
+    /**
+     * Identifies the interval within its store, and orders intervals with the
+     * same start or end time for pagination.  Only meaningful to the store.
+     */
+    public final String key;
+
+    public Interval (long followee, long follower, Date start, Date last, Date end, String key) {
+        this.followee = followee;
+        this.follower = follower;
+        this.start = start;
+        this.last = last;
+        this.end = end;
+        this.key = key;
+    }
+
+}
@@ -0,0 +1,697 @@
+package net.followt;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps the state of followt in append-only logs in a local directory,
+ * for deployments that don't want to run a database server.
+ * <p>
+ * There is one log each for the scan state (scans.log), the follower history
+ * (intervals.log) and the screen names (users.log).  Every change is appended
+ * to its log as a small binary record followed by its CRC-32, and the log is
+ * forced to disk before the method returns, unless followt.store.sync is set
+ * to false.  There are no random writes and no read-before-write, so a page
+ * of followers costs a single sequential write.  Each log has its own lock
+ * for writing, and the in-memory indexes are only locked while they are
+ * updated, not while the log is forced to disk, so that the web UI does
+ * not wait for the Scanner's writes.
+ * <p>
+ * When the store is opened, the logs are read sequentially, a few megabytes
+ * at a time, and replayed into the in-memory indexes: per followee, the
+ * intervals sorted by start and by end time, and the set of open intervals.
+ * An incomplete or corrupt record, usually left at the end of a log by a
+ * crash during a write, is cut off with everything after it.  Logs written
+ * before records had checksums are converted when they are opened.  The
+ * scan and user logs, in which later records supersede
+ * earlier ones, are compacted when more than half of their records are
+ * obsolete.  The interval log is never compacted, since closed intervals
+ * remain part of the history.
+ * <p>
+ * All intervals are kept on the heap: about 70 bytes for a closed interval
+ * (an Entry in both sorted lists), and about 120 bytes for an open one (an
+ * Entry in the list by start, and in the map of open intervals).  A history
+ * of 10 million intervals thus needs roughly 1 GB of heap; the size of the
+ * index is printed when the store is opened.  Larger histories should be
+ * kept in MongoDB.
+ * <p>
+ * The directory defaults to "data" and can be changed with followt.store.dir.
+ * Only one process can use a directory at a time, so the web UI has to run
+ * the Scanner in the same process (see WebUI).
+ *
+ * @author drmirror
+ */
+public class LocalFollowerStore implements FollowerStore {
+
+    private final static Charset UTF8 = Charset.forName("UTF-8");
+
+    private final static byte OPEN = 1;
+    private final static byte CLOSE = 2;
+    private final static int INTERVAL_RECORD = 1 + 4 * 8;
+    private final static int SCAN_RECORD = 4 * 8;
+    private final static int CHECKSUM = 4;
+    /** the start of a log whose records have checksums */
+    private final static int MAGIC = 0x46544C32; // "FTL2"
+
+    private final static long NULL_DATE = Long.MIN_VALUE;
+    private final static int READ_BUFFER = 4 * 1024 * 1024;
+
+    private final boolean sync = !"false".equals(System.getProperty("followt.store.sync"));
+
+    /**
+     * An interval in the in-memory index.  The sequence number is the
+     * position of its OPEN record in the log, which orders intervals
+     * with the same time.
+     */
+    private static class Entry {
+        final long follower;
+        final long seq;
+        final long start;
+        long last;
+        long end = NULL_DATE;
+        Entry (long follower, long seq, long start) {
+            this.follower = follower;
+            this.seq = seq;
+            this.start = start;
+            this.last = start;
+        }
+        long time (Order order) {
+            return order == Order.BY_START ? start : end;
+        }
+    }
+
+    private static class History {
+        final List<Entry> byStart = new ArrayList<Entry>();
+        final List<Entry> byEnd = new ArrayList<Entry>();
+        final Map<Long,Entry> open = new HashMap<Long,Entry>();
+    }
+
+    private final File dir;
+    private final FileLock lock;
+    private final FileChannel scanLog;
+    private final FileChannel intervalLog;
+    private final FileChannel userLog;
+
+    private final Map<Long,Scan> scans = new HashMap<Long,Scan>();
+    private final Map<Long,History> histories = new HashMap<Long,History>();
+    private final Map<Long,String> names = new HashMap<Long,String>();
+    private final Map<String,Long> ids = new HashMap<String,Long>();
+    private final ReadWriteLock scanLock = new ReentrantReadWriteLock();
+    private final ReadWriteLock historyLock = new ReentrantReadWriteLock();
+    private final ReadWriteLock userLock = new ReentrantReadWriteLock();
+    private long nextSeq = 0;
+    /** the bytes of incomplete records cut off the logs when they were opened */
+    private long truncated = 0;
+
+    public LocalFollowerStore() throws IOException {
+        this(new File(System.getProperty("followt.store.dir", "data")));
+    }
+
+    @SuppressWarnings("resource")
+    public LocalFollowerStore (File dir) throws IOException {
+        this.dir = dir;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("cannot create store directory " + dir);
+        }
+        lock = new RandomAccessFile(new File(dir, "lock"), "rw").getChannel().tryLock();
+        if (lock == null) {
+            throw new IOException("store " + dir + " is in use by another process");
+        }
+        int scanRecords = replayScans();
+        if (scanRecords > 2 * scans.size()) compactScans();
+        int userRecords = replayUsers();
+        if (userRecords > 2 * names.size()) compactUsers();
+        replayIntervals();
+        scanLog = append("scans.log");
+        intervalLog = append("intervals.log");
+        userLog = append("users.log");
+        int intervals = 0, open = 0;
+        for (History h : histories.values()) {
+            intervals += h.byStart.size();
+            open += h.open.size();
+        }
+        System.out.println("opened store " + dir + ": " + scans.size() + " scans, "
+                           + names.size() + " users, " + intervals + " intervals ("
+                           + open + " open, about " + (intervals * 70L + open * 50L) / (1024 * 1024)
+                           + " MB of heap)"
+                           + (truncated > 0 ? ", cut off " + truncated + " bytes of incomplete or corrupt records" : ""));
+    }
+
+    public void close() throws IOException {
+        scanLog.close();
+        intervalLog.close();
+        userLog.close();
+        lock.release();
+        lock.channel().close();
+    }
+
+    // --- scan state
+
+    public Scan nextScan (Collection<Long> exclude) {
+        // same order as in MongoDB: unfinished scans first (highest cursor),
+        // then the least recently scanned, with never scanned ones first
+        scanLock.readLock().lock();
+        try {
+            Scan result = null;
+            for (Scan s : scans.values()) {
+                if (exclude.contains(s.user_id)) continue;
+                if (result == null || before(s, result)) result = s;
+            }
+            return result == null ? null : copy(result);
+        } finally {
+            scanLock.readLock().unlock();
+        }
+    }
+
+    private static boolean before (Scan a, Scan b) {
+        long ca = a.next_cursor > 0 ? a.next_cursor : 0;
+        long cb = b.next_cursor > 0 ? b.next_cursor : 0;
+        if (ca != cb) return ca > cb;
+        if (a.scan_ended == null) return b.scan_ended != null;
+        return b.scan_ended != null && a.scan_ended.before(b.scan_ended);
+    }
+
+    public Scan getScan (long userId) {
+        scanLock.readLock().lock();
+        try {
+            Scan s = scans.get(userId);
+            return s == null ? null : copy(s);
+        } finally {
+            scanLock.readLock().unlock();
+        }
+    }
+
+    public void saveScan (Scan scan) {
+        ByteBuffer b = ByteBuffer.allocate(SCAN_RECORD + CHECKSUM);
+        putScan(b, scan);
+        putChecksum(b, 0);
+        b.flip();
+        synchronized (scanLog) {
+            write(scanLog, b);
+            scanLock.writeLock().lock();
+            try {
+                scans.put(scan.user_id, copy(scan));
+            } finally {
+                scanLock.writeLock().unlock();
+            }
+        }
+    }
+
+    public void addScan (long userId) {
+        synchronized (scanLog) {
+            if (getScan(userId) == null) saveScan(new Scan(userId));
+        }
+    }
+
+    public Map<Long,Date> getScanEnded() {
+        scanLock.readLock().lock();
+        try {
+            Map<Long,Date> result = new HashMap<Long,Date>();
+            for (Scan s : scans.values()) result.put(s.user_id, s.scan_ended);
+            return result;
+        } finally {
+            scanLock.readLock().unlock();
+        }
+    }
+
+    private static Scan copy (Scan s) {
+        return new Scan(s.user_id, s.scan_started, s.next_cursor, s.scan_ended);
+    }
+
+    private static void putScan (ByteBuffer b, Scan s) {
+        b.putLong(s.user_id);
+        b.putLong(s.scan_started == null ? NULL_DATE : s.scan_started.getTime());
+        b.putLong(s.next_cursor);
+        b.putLong(s.scan_ended == null ? NULL_DATE : s.scan_ended.getTime());
+    }
+
+    private int replayScans() throws IOException {
+        LogReader r = new LogReader("scans.log");
+        int count = 0;
+        ByteBuffer b;
+        while ((b = r.next(SCAN_RECORD)) != null) {
+            long user_id = b.getLong();
+            Date started = toDate(b.getLong());
+            long cursor = b.getLong();
+            Date ended = toDate(b.getLong());
+            scans.put(user_id, new Scan(user_id, started, cursor, ended));
+            count++;
+        }
+        r.close();
+        return count;
+    }
+
+    private void compactScans() throws IOException {
+        ByteBuffer b = ByteBuffer.allocate((SCAN_RECORD + CHECKSUM) * scans.size());
+        for (Scan s : scans.values()) {
+            int start = b.position();
+            putScan(b, s);
+            putChecksum(b, start);
+        }
+        b.flip();
+        rewrite("scans.log", b);
+    }
+
+    // --- follower intervals
+
+    public long[] getOpenFollowers (long followee) {
+        historyLock.readLock().lock();
+        try {
+            History h = histories.get(followee);
+            if (h == null) return new long[0];
+            long[] result = new long[h.open.size()];
+            int i = 0;
+            for (long follower : h.open.keySet()) result[i++] = follower;
+            Arrays.sort(result);
+            return result;
+        } finally {
+            historyLock.readLock().unlock();
+        }
+    }
+
+    public void openIntervals (long followee, long[] followers, Date start) {
+        if (followers.length == 0) return;
+        ByteBuffer b = ByteBuffer.allocate((INTERVAL_RECORD + CHECKSUM) * followers.length);
+        for (long follower : followers) {
+            int i = b.position();
+            b.put(OPEN).putLong(followee).putLong(follower).putLong(start.getTime()).putLong(NULL_DATE);
+            putChecksum(b, i);
+        }
+        b.flip();
+        synchronized (intervalLog) {
+            write(intervalLog, b);
+            historyLock.writeLock().lock();
+            try {
+                for (long follower : followers) {
+                    open(followee, follower, start.getTime());
+                }
+            } finally {
+                historyLock.writeLock().unlock();
+            }
+        }
+    }
+
+    public void closeIntervals (long followee, long[] followers, Date end, Date lastSeen) {
+        if (followers.length == 0) return;
+        long last = lastSeen == null ? NULL_DATE : lastSeen.getTime();
+        ByteBuffer b = ByteBuffer.allocate((INTERVAL_RECORD + CHECKSUM) * followers.length);
+        for (long follower : followers) {
+            int i = b.position();
+            b.put(CLOSE).putLong(followee).putLong(follower).putLong(end.getTime()).putLong(last);
+            putChecksum(b, i);
+        }
+        b.flip();
+        synchronized (intervalLog) {
+            write(intervalLog, b);
+            historyLock.writeLock().lock();
+            try {
+                for (long follower : followers) {
+                    close(followee, follower, end.getTime(), last);
+                }
+            } finally {
+                historyLock.writeLock().unlock();
+            }
+        }
+    }
+
+    private void open (long followee, long follower, long start) {
+        History h = histories.get(followee);
+        if (h == null) {
+            h = new History();
+            histories.put(followee, h);
+        }
+        if (h.open.containsKey(follower)) {
+            nextSeq++;
+            return;
+        }
+        Entry e = new Entry(follower, nextSeq++, start);
+        h.open.put(follower, e);
+        insert(h.byStart, e, Order.BY_START);
+    }
+
+    private void close (long followee, long follower, long end, long last) {
+        nextSeq++;
+        History h = histories.get(followee);
+        Entry e = h == null ? null : h.open.remove(follower);
+        if (e == null) return;
+        e.end = end;
+        if (last != NULL_DATE) e.last = last;
+        insert(h.byEnd, e, Order.BY_END);
+    }
+
+    /**
+     * Inserts an entry into a list sorted by time and sequence number.
+     * Entries almost always come in order, so this is usually an append.
+     */
+    private static void insert (List<Entry> list, Entry e, Order order) {
+        int i = list.size();
+        while (i > 0 && compare(list.get(i-1), e.time(order), e.seq, order) > 0) i--;
+        list.add(i, e);
+    }
+
+    private static int compare (Entry e, long time, long seq, Order order) {
+        long t = e.time(order);
+        if (t != time) return t < time ? -1 : 1;
+        return e.seq < seq ? -1 : (e.seq == seq ? 0 : 1);
+    }
+
+    public Date getFirstStart (long followee) {
+        historyLock.readLock().lock();
+        try {
+            History h = histories.get(followee);
+            return h == null || h.byStart.isEmpty() ? null : new Date(h.byStart.get(0).start);
+        } finally {
+            historyLock.readLock().unlock();
+        }
+    }
+
+    public void visitIntervals (long followee, Order order, Date from, Interval after, int limit,
+                                IntervalVisitor visitor) throws IOException {
+        List<Interval> page = new ArrayList<Interval>();
+        historyLock.readLock().lock();
+        try {
+            History h = histories.get(followee);
+            if (h == null) return;
+            List<Entry> list = order == Order.BY_START ? h.byStart : h.byEnd;
+            long time = from.getTime();
+            long seq = Long.MIN_VALUE;
+            if (after != null) {
+                long afterTime = (order == Order.BY_START ? after.start : after.end).getTime();
+                if (afterTime >= time) {
+                    time = afterTime;
+                    seq = Long.parseLong(after.key) + 1;
+                }
+            }
+            // binary search for the first entry at or after (time, seq)
+            int lo = 0, hi = list.size();
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (compare(list.get(mid), time, seq, order) < 0) lo = mid + 1;
+                else hi = mid;
+            }
+            for (int i=lo; i<list.size() && page.size()<limit; i++) {
+                Entry e = list.get(i);
+                page.add(new Interval(followee, e.follower, new Date(e.start), toDate(e.last),
+                                      toDate(e.end), Long.toString(e.seq)));
+            }
+        } finally {
+            historyLock.readLock().unlock();
+        }
+        // visit outside of the lock, since the visitor may be slow
+        for (Interval i : page) visitor.visit(i);
+    }
+
+    private void replayIntervals() throws IOException {
+        LogReader r = new LogReader("intervals.log");
+        ByteBuffer b;
+        while ((b = r.next(INTERVAL_RECORD)) != null) {
+            byte type = b.get();
+            long followee = b.getLong();
+            long follower = b.getLong();
+            long time = b.getLong();
+            long last = b.getLong();
+            if (type == OPEN) open(followee, follower, time);
+            else close(followee, follower, time, last);
+        }
+        r.close();
+    }
+
+    // --- user dictionary
+
+    public String[] getScreenNames (long[] ids) {
+        userLock.readLock().lock();
+        try {
+            String[] result = new String[ids.length];
+            for (int i=0; i<ids.length; i++) result[i] = names.get(ids[i]);
+            return result;
+        } finally {
+            userLock.readLock().unlock();
+        }
+    }
+
+    public void putScreenNames (long[] ids, String[] names) {
+        if (ids.length == 0) return;
+        List<byte[]> encoded = new ArrayList<byte[]>(ids.length);
+        int size = 0;
+        for (String n : names) {
+            byte[] e = n.getBytes(UTF8);
+            encoded.add(e);
+            size += 8 + 2 + e.length + CHECKSUM;
+        }
+        ByteBuffer b = ByteBuffer.allocate(size);
+        for (int i=0; i<ids.length; i++) {
+            int start = b.position();
+            b.putLong(ids[i]).putShort((short)encoded.get(i).length).put(encoded.get(i));
+            putChecksum(b, start);
+        }
+        b.flip();
+        synchronized (userLog) {
+            write(userLog, b);
+            userLock.writeLock().lock();
+            try {
+                for (int i=0; i<ids.length; i++) putName(ids[i], names[i]);
+            } finally {
+                userLock.writeLock().unlock();
+            }
+        }
+    }
+
+    public long getUserId (String screenName) {
+        userLock.readLock().lock();
+        try {
+            Long result = ids.get(screenName);
+            return result == null ? -1 : result;
+        } finally {
+            userLock.readLock().unlock();
+        }
+    }
+
+    private void putName (long id, String name) {
+        String old = this.names.put(id, name);
+        if (old != null && !old.equals(name)) ids.remove(old);
+        ids.put(name, id);
+    }
+
+    private int replayUsers() throws IOException {
+        LogReader r = new LogReader("users.log");
+        int count = 0;
+        while (r.ensure(10)) {
+            int len = r.buffer.getShort(r.buffer.position() + 8) & 0xFFFF;
+            ByteBuffer b = r.next(10 + len);
+            if (b == null) break;
+            long id = b.getLong();
+            b.getShort();
+            byte[] name = new byte[len];
+            b.get(name);
+            putName(id, new String(name, UTF8));
+            count++;
+        }
+        r.close();
+        return count;
+    }
+
+    private void compactUsers() throws IOException {
+        int size = 0;
+        for (String n : names.values()) size += 10 + n.getBytes(UTF8).length + CHECKSUM;
+        ByteBuffer b = ByteBuffer.allocate(size);
+        for (Map.Entry<Long,String> e : names.entrySet()) {
+            byte[] n = e.getValue().getBytes(UTF8);
+            int start = b.position();
+            b.putLong(e.getKey()).putShort((short)n.length).put(n);
+            putChecksum(b, start);
+        }
+        b.flip();
+        rewrite("users.log", b);
+    }
+
+    // --- files
+
+    /**
+     * Reads a log sequentially, through a buffer of READ_BUFFER bytes, so
+     * that logs of any size can be replayed without holding them in memory.
+     * When the log is closed, it is cut off after the last valid record.
+     * A log without checksums is converted instead: its records are copied,
+     * with checksums, to a new log that replaces it.
+     */
+    private class LogReader {
+        final ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER);
+        private final String name;
+        private final RandomAccessFile file;
+        private final CRC32 crc = new CRC32();
+        private DataOutputStream upgrade = null;
+        private long read = 0;
+        /** the end of the last valid record */
+        private long valid = 0;
+
+        LogReader (String name) throws IOException {
+            this.name = name;
+            File f = new File(dir, name);
+            file = f.exists() ? new RandomAccessFile(f, "r") : null;
+            buffer.flip();
+            if (ensure(4) && buffer.getInt(0) == MAGIC) {
+                buffer.getInt();
+                valid = 4;
+            } else if (buffer.remaining() >= 4) {
+                System.out.println("adding checksums to " + f);
+                upgrade = new DataOutputStream(new BufferedOutputStream(
+                              new FileOutputStream(new File(dir, name + ".tmp"))));
+                upgrade.writeInt(MAGIC);
+            }
+        }
+
+        /**
+         * Makes sure that the next n bytes of the log are in the buffer.
+         * @return false if the log ends before
+         */
+        boolean ensure (int n) throws IOException {
+            if (buffer.remaining() >= n) return true;
+            if (file == null) return false;
+            buffer.compact();
+            while (buffer.position() < n) {
+                int r = file.getChannel().read(buffer);
+                if (r < 0) break;
+                read += r;
+            }
+            buffer.flip();
+            return buffer.remaining() >= n;
+        }
+
+        /**
+         * Returns the next record of the given length, not counting its
+         * checksum, as a buffer that is valid until the next call, or null
+         * if the log ends or the record is corrupt.
+         */
+        ByteBuffer next (int length) throws IOException {
+            int size = upgrade == null ? length + CHECKSUM : length;
+            if (!ensure(size)) return null;
+            ByteBuffer record = buffer.duplicate();
+            record.limit(record.position() + length);
+            crc.reset();
+            crc.update(record.duplicate());
+            if (upgrade == null) {
+                if ((int)crc.getValue() != buffer.getInt(buffer.position() + length)) return null;
+            } else {
+                upgrade.write(buffer.array(), buffer.arrayOffset() + buffer.position(), length);
+                upgrade.writeInt((int)crc.getValue());
+            }
+            buffer.position(buffer.position() + size);
+            valid = read - buffer.remaining();
+            return record;
+        }
+
+        void close() throws IOException {
+            if (file == null) return;
+            long length = file.length();
+            file.close();
+            if (upgrade != null) {
+                upgrade.close();
+                rewrite(name, new File(dir, name + ".tmp"));
+            }
+            if (length > valid) {
+                truncated += length - valid;
+                if (upgrade == null) truncate(name, valid);
+            }
+        }
+    }
+
+    /**
+     * Cuts a log off at the given length.
+     */
+    private void truncate (String name, long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(new File(dir, name), "rw");
+        try {
+            raf.getChannel().truncate(length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Appends the CRC-32 of the record that starts at the given position
+     * to the buffer.
+     */
+    private static void putChecksum (ByteBuffer b, int start) {
+        ByteBuffer record = b.duplicate();
+        record.flip();
+        record.position(start);
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        b.putInt((int)crc.getValue());
+    }
+
+    @SuppressWarnings("resource")
+    private FileChannel append (String name) throws IOException {
+        FileChannel result = new RandomAccessFile(new File(dir, name), "rw").getChannel();
+        if (result.size() == 0) {
+            ByteBuffer header = ByteBuffer.allocate(4);
+            header.putInt(MAGIC).flip();
+            write(result, header);
+        }
+        result.position(result.size());
+        return result;
+    }
+
+    private void rewrite (String name, ByteBuffer content) throws IOException {
+        File tmp = new File(dir, name + ".tmp");
+        RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+        try {
+            raf.setLength(0);
+            FileChannel ch = raf.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(4);
+            header.putInt(MAGIC).flip();
+            while (header.hasRemaining()) ch.write(header);
+            while (content.hasRemaining()) ch.write(content);
+        } finally {
+            raf.close();
+        }
+        rewrite(name, tmp);
+    }
+
+    /**
+     * Replaces a log with a new one, once that is on disk.
+     */
+    private void rewrite (String name, File tmp) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+        try {
+            raf.getChannel().force(true);
+        } finally {
+            raf.close();
+        }
+        Files.move(tmp.toPath(), new File(dir, name).toPath(),
+                   StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void write (FileChannel channel, ByteBuffer b) {
+        try {
+            while (b.hasRemaining()) channel.write(b);
+            if (sync) channel.force(false);
+        } catch (IOException ex) {
+            throw new RuntimeException("cannot write to store " + dir, ex);
+        }
+    }
+
+    private static Date toDate (long time) {
+        return time == NULL_DATE ? null : new Date(time);
+    }
+
+}
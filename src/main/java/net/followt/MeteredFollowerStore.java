@@ -0,0 +1,159 @@
+package net.followt;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Map;
+
+/**
+ * A FollowerStore that times every call to another one, with one timer
+ * per operation type (store.open_intervals, store.save_scan, ...; see
+ * Metrics).  Storage wraps every store it creates in one of these, so
+ * the timings are available for both MongoDB and the local store.
+ *
+ * @author drmirror
+ */
+public class MeteredFollowerStore implements FollowerStore {
+
+    private final static Metrics.Timer NEXT_SCAN = Metrics.timer("store.next_scan");
+    private final static Metrics.Timer GET_SCAN = Metrics.timer("store.get_scan");
+    private final static Metrics.Timer SAVE_SCAN = Metrics.timer("store.save_scan");
+    private final static Metrics.Timer ADD_SCAN = Metrics.timer("store.add_scan");
+    private final static Metrics.Timer GET_SCAN_ENDED = Metrics.timer("store.get_scan_ended");
+    private final static Metrics.Timer GET_OPEN_FOLLOWERS = Metrics.timer("store.get_open_followers");
+    private final static Metrics.Timer OPEN_INTERVALS = Metrics.timer("store.open_intervals");
+    private final static Metrics.Timer CLOSE_INTERVALS = Metrics.timer("store.close_intervals");
+    private final static Metrics.Timer GET_FIRST_START = Metrics.timer("store.get_first_start");
+    private final static Metrics.Timer VISIT_INTERVALS = Metrics.timer("store.visit_intervals");
+    private final static Metrics.Timer GET_SCREEN_NAMES = Metrics.timer("store.get_screen_names");
+    private final static Metrics.Timer PUT_SCREEN_NAMES = Metrics.timer("store.put_screen_names");
+    private final static Metrics.Timer GET_USER_ID = Metrics.timer("store.get_user_id");
+
+    private final FollowerStore store;
+
+    public MeteredFollowerStore (FollowerStore store) {
+        this.store = store;
+    }
+
+    public Scan nextScan (Collection<Long> exclude) {
+        long start = System.nanoTime();
+        try {
+            return store.nextScan(exclude);
+        } finally {
+            NEXT_SCAN.stop(start);
+        }
+    }
+
+    public Scan getScan (long userId) {
+        long start = System.nanoTime();
+        try {
+            return store.getScan(userId);
+        } finally {
+            GET_SCAN.stop(start);
+        }
+    }
+
+    public void saveScan (Scan scan) {
+        long start = System.nanoTime();
+        try {
+            store.saveScan(scan);
+        } finally {
+            SAVE_SCAN.stop(start);
+        }
+    }
+
+    public void addScan (long userId) {
+        long start = System.nanoTime();
+        try {
+            store.addScan(userId);
+        } finally {
+            ADD_SCAN.stop(start);
+        }
+    }
+
+    public Map<Long,Date> getScanEnded() {
+        long start = System.nanoTime();
+        try {
+            return store.getScanEnded();
+        } finally {
+            GET_SCAN_ENDED.stop(start);
+        }
+    }
+
+    public long[] getOpenFollowers (long followee) {
+        long start = System.nanoTime();
+        try {
+            return store.getOpenFollowers(followee);
+        } finally {
+            GET_OPEN_FOLLOWERS.stop(start);
+        }
+    }
+
+    public void openIntervals (long followee, long[] followers, Date time) {
+        long start = System.nanoTime();
+        try {
+            store.openIntervals(followee, followers, time);
+        } finally {
+            OPEN_INTERVALS.stop(start);
+        }
+    }
+
+    public void closeIntervals (long followee, long[] followers, Date end, Date lastSeen) {
+        long start = System.nanoTime();
+        try {
+            store.closeIntervals(followee, followers, end, lastSeen);
+        } finally {
+            CLOSE_INTERVALS.stop(start);
+        }
+    }
+
+    public Date getFirstStart (long followee) {
+        long start = System.nanoTime();
+        try {
+            return store.getFirstStart(followee);
+        } finally {
+            GET_FIRST_START.stop(start);
+        }
+    }
+
+    /**
+     * Note that this includes the time spent in the visitor.
+     */
+    public void visitIntervals (long followee, Order order, Date from, Interval after, int limit,
+                                IntervalVisitor visitor) throws IOException {
+        long start = System.nanoTime();
+        try {
+            store.visitIntervals(followee, order, from, after, limit, visitor);
+        } finally {
+            VISIT_INTERVALS.stop(start);
+        }
+    }
+
+    public String[] getScreenNames (long[] ids) {
+        long start = System.nanoTime();
+        try {
+            return store.getScreenNames(ids);
+        } finally {
+            GET_SCREEN_NAMES.stop(start);
+        }
+    }
+
+    public void putScreenNames (long[] ids, String[] names) {
+        long start = System.nanoTime();
+        try {
+            store.putScreenNames(ids, names);
+        } finally {
+            PUT_SCREEN_NAMES.stop(start);
+        }
+    }
+
+    public long getUserId (String screenName) {
+        long start = System.nanoTime();
+        try {
+            return store.getUserId(screenName);
+        } finally {
+            GET_USER_ID.stop(start);
+        }
+    }
+
+}
@@ -0,0 +1,232 @@
+package net.followt;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+
+import org.slf4j.LoggerFactory;
+
+import net.followt.util.Histogram;
+
+/**
+ * The registry of live metrics of the application: counters, timers and
+ * gauges, identified by dotted names such as "twitter.followers_ids".
+ * <p>
+ * Metrics are created once, usually in a static field, and then recorded
+ * on the hot path without any lookup.  Recording a counter or a timer only
+ * updates atomic counters and never allocates (see Histogram).
+ * <p>
+ * All metrics are exposed over JMX as the attributes of the MBean
+ * net.followt:type=Metrics, and as text in the Prometheus exposition
+ * format by toText(), which the WebUI serves at /metrics.  Timers are
+ * recorded in nanoseconds, and reported in milliseconds (JMX) or seconds
+ * (text).
+ *
+ * @author drmirror
+ */
+public class Metrics {
+
+    public static class Counter {
+        private final AtomicLong count = new AtomicLong();
+        public void increment() {
+            count.incrementAndGet();
+        }
+        public void add (long n) {
+            count.addAndGet(n);
+        }
+        public long getCount() {
+            return count.get();
+        }
+    }
+
+    public static class Timer {
+        private final Histogram histogram = new Histogram();
+        /**
+         * Records a duration.
+         * @param start the start time, from System.nanoTime()
+         */
+        public void stop (long start) {
+            histogram.record(System.nanoTime() - start);
+        }
+        public void record (long nanos) {
+            histogram.record(nanos);
+        }
+        public Histogram getHistogram() {
+            return histogram;
+        }
+    }
+
+    public interface Gauge {
+        long getValue();
+    }
+
+    private final static Map<String,Object> metrics = new ConcurrentSkipListMap<String,Object>();
+
+    static {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                new MetricsMBean(), new ObjectName("net.followt:type=Metrics"));
+        } catch (JMException ex) {
+            LoggerFactory.getLogger(Metrics.class).warn("cannot register metrics with JMX", ex);
+        }
+    }
+
+    /**
+     * Returns the counter with the given name, creating it if necessary.
+     */
+    public static Counter counter (String name) {
+        return get(name, new Counter(), Counter.class);
+    }
+
+    /**
+     * Returns the timer with the given name, creating it if necessary.
+     */
+    public static Timer timer (String name) {
+        return get(name, new Timer(), Timer.class);
+    }
+
+    /**
+     * Registers a gauge, replacing one with the same name.
+     */
+    public static void gauge (String name, Gauge gauge) {
+        metrics.put(name, gauge);
+    }
+
+    private static synchronized <T> T get (String name, T created, Class<T> type) {
+        Object result = metrics.get(name);
+        if (result == null) {
+            metrics.put(name, created);
+            return created;
+        }
+        if (!type.isInstance(result)) {
+            throw new IllegalArgumentException(name + " is not a " + type.getSimpleName());
+        }
+        return type.cast(result);
+    }
+
+    /**
+     * Returns all metrics in the Prometheus text exposition format.
+     */
+    public static String toText() {
+        StringBuilder result = new StringBuilder();
+        for (Map.Entry<String,Object> e : metrics.entrySet()) {
+            String name = "followt_" + e.getKey().replace('.', '_');
+            Object m = e.getValue();
+            if (m instanceof Counter) {
+                result.append("# TYPE ").append(name).append("_total counter\n");
+                result.append(name).append("_total ").append(((Counter)m).getCount()).append('\n');
+            } else if (m instanceof Gauge) {
+                result.append("# TYPE ").append(name).append(" gauge\n");
+                result.append(name).append(' ').append(((Gauge)m).getValue()).append('\n');
+            } else {
+                Histogram h = ((Timer)m).getHistogram();
+                name = name + "_seconds";
+                result.append("# TYPE ").append(name).append(" summary\n");
+                for (double q : new double[] { 0.5, 0.9, 0.99 }) {
+                    result.append(name).append("{quantile=\"").append(q).append("\"} ")
+                          .append(seconds(h.getPercentile(q))).append('\n');
+                }
+                result.append(name).append("_sum ").append(seconds(h.getSum())).append('\n');
+                result.append(name).append("_count ").append(h.getCount()).append('\n');
+                result.append("# TYPE ").append(name).append("_max gauge\n");
+                result.append(name).append("_max ").append(seconds(h.getMax())).append('\n');
+            }
+        }
+        return result.toString();
+    }
+
+    private static String seconds (long nanos) {
+        return String.format(Locale.ROOT, "%.6f", nanos / 1e9);
+    }
+
+    private static double millis (double nanos) {
+        return nanos / 1e6;
+    }
+
+    /**
+     * Exposes the metrics as attributes: counters and gauges under their
+     * own name, timers as name.count, name.mean_ms, name.p50_ms,
+     * name.p99_ms and name.max_ms.  The attributes are derived from the
+     * registry whenever they are read, so metrics created later show up too.
+     */
+    private static class MetricsMBean implements DynamicMBean {
+
+        private final static String[] TIMER_SUFFIXES = { "count", "mean_ms", "p50_ms", "p99_ms", "max_ms" };
+
+        public Object getAttribute (String attribute) throws AttributeNotFoundException {
+            Object m = metrics.get(attribute);
+            if (m instanceof Counter) return ((Counter)m).getCount();
+            if (m instanceof Gauge) return ((Gauge)m).getValue();
+            int dot = attribute.lastIndexOf('.');
+            if (dot > 0 && metrics.get(attribute.substring(0, dot)) instanceof Timer) {
+                Histogram h = ((Timer)metrics.get(attribute.substring(0, dot))).getHistogram();
+                String suffix = attribute.substring(dot+1);
+                if (suffix.equals("count")) return h.getCount();
+                if (suffix.equals("mean_ms")) return millis(h.getMean());
+                if (suffix.equals("p50_ms")) return millis(h.getPercentile(0.5));
+                if (suffix.equals("p99_ms")) return millis(h.getPercentile(0.99));
+                if (suffix.equals("max_ms")) return millis(h.getMax());
+            }
+            throw new AttributeNotFoundException(attribute);
+        }
+
+        public AttributeList getAttributes (String[] attributes) {
+            AttributeList result = new AttributeList();
+            for (String a : attributes) {
+                try {
+                    result.add(new Attribute(a, getAttribute(a)));
+                } catch (AttributeNotFoundException ex) {
+                    // skipped, as the contract allows
+                }
+            }
+            return result;
+        }
+
+        public void setAttribute (Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("metrics are read-only");
+        }
+
+        public AttributeList setAttributes (AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        public Object invoke (String actionName, Object[] params, String[] signature) {
+            throw new UnsupportedOperationException(actionName);
+        }
+
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+            for (Map.Entry<String,Object> e : metrics.entrySet()) {
+                if (e.getValue() instanceof Timer) {
+                    for (String s : TIMER_SUFFIXES) {
+                        String type = s.equals("count") ? "java.lang.Long" : "java.lang.Double";
+                        attributes.add(new MBeanAttributeInfo(e.getKey() + "." + s, type,
+                                                              e.getKey(), true, false, false));
+                    }
+                } else {
+                    attributes.add(new MBeanAttributeInfo(e.getKey(), "java.lang.Long",
+                                                          e.getKey(), true, false, false));
+                }
+            }
+            return new MBeanInfo(Metrics.class.getName(), "followt metrics",
+                                 attributes.toArray(new MBeanAttributeInfo[attributes.size()]),
+                                 null, new MBeanOperationInfo[0], null);
+        }
+
+    }
+
+}
@@ -0,0 +1,241 @@
+package net.followt;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.types.ObjectId;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+import net.followt.util.LongList;
+
+/**
+ * Keeps the state of followt in MongoDB: the scan state in
+ * <code>fscans</code>, the follower history in <code>fhistory</code>, and
+ * the screen names in <code>users</code>.  The indexes for the queries of
+ * this class are created by Schema.
+ *
+ * @author drmirror
+ */
+public class MongoFollowerStore implements FollowerStore {
+
+    /**
+     * Maximum number of ids in a single $in query.
+     */
+    private static final int MAX_IN_CLAUSE = 1000;
+
+    private DBCollection fscans;
+    private DBCollection fhistory;
+    private DBCollection users;
+
+    public MongoFollowerStore (DB db) {
+        Schema.ensure(db);
+        fscans = db.getCollection("fscans");
+        fhistory = db.getCollection("fhistory");
+        users = db.getCollection("users");
+    }
+
+    // --- scan state
+
+    public Scan nextScan (Collection<Long> exclude) {
+        DBObject query = exclude.isEmpty()
+                       ? new BasicDBObject()
+                       : new BasicDBObject("user_id", new BasicDBObject("$nin", exclude));
+        DBCursor c = fscans.find(query)
+                           .sort(new BasicDBObject("next_cursor",-1)
+                                           .append("scan_ended",1))
+                           .limit(1);
+        return c.hasNext() ? toScan(c.next()) : null;
+    }
+
+    public Scan getScan (long userId) {
+        DBCursor c = fscans.find(new BasicDBObject("user_id",userId));
+        return c.hasNext() ? toScan(c.next()) : null;
+    }
+
+    public void saveScan (Scan scan) {
+        BasicDBObject o = new BasicDBObject("user_id",scan.user_id)
+                                    .append("scan_started",scan.scan_started);
+        if (scan.next_cursor > 0) o.append("next_cursor", scan.next_cursor);
+        if (scan.scan_ended != null) o.append("scan_ended", scan.scan_ended);
+        fscans.update(new BasicDBObject("user_id",scan.user_id),
+                      o, true, false);
+    }
+
+    public void addScan (long userId) {
+        if (!fscans.find(new BasicDBObject("user_id",userId)).hasNext())
+            fscans.insert(new BasicDBObject("user_id",userId));
+    }
+
+    public Map<Long,Date> getScanEnded() {
+        Map<Long,Date> result = new HashMap<Long,Date>();
+        DBCursor c = fscans.find(new BasicDBObject(),
+                                 new BasicDBObject("user_id",1).append("scan_ended",1));
+        for (DBObject o : c) {
+            result.put(((Number)o.get("user_id")).longValue(), (Date)o.get("scan_ended"));
+        }
+        return result;
+    }
+
+    private static Scan toScan (DBObject source) {
+        Scan result = new Scan(((Number)source.get("user_id")).longValue());
+        result.scan_started = (Date)source.get("scan_started");
+        if (source.containsField("next_cursor"))
+            result.next_cursor = ((Number)source.get("next_cursor")).longValue();
+        result.scan_ended = (Date)source.get("scan_ended");
+        return result;
+    }
+
+    // --- follower intervals
+
+    public long[] getOpenFollowers (long followee) {
+        DBCursor c = fhistory.find(new BasicDBObject("followee",followee)
+                                             .append("end",new BasicDBObject("$exists",false)),
+                                   new BasicDBObject("follower",1).append("_id",0))
+                             .batchSize(10000);
+        LongList ids = new LongList();
+        for (DBObject o : c) {
+            ids.add(((Number)o.get("follower")).longValue());
+        }
+        return ids.toSortedArray();
+    }
+
+    /**
+     * Inserts all intervals with a single batch insert.
+     */
+    public void openIntervals (long followee, long[] followers, Date start) {
+        if (followers.length == 0) return;
+        List<DBObject> entries = new ArrayList<DBObject>(followers.length);
+        for (long follower : followers) {
+            entries.add(new BasicDBObject("followee",followee)
+                                  .append("follower",follower)
+                                  .append("start",start)
+                                  .append("last",start));
+        }
+        fhistory.insert(entries);
+    }
+
+    /**
+     * Closes the intervals with one multi-update per MAX_IN_CLAUSE followers.
+     */
+    public void closeIntervals (long followee, long[] followers, Date end, Date lastSeen) {
+        BasicDBObject set = new BasicDBObject("end",end);
+        if (lastSeen != null) set.append("last",lastSeen);
+        for (int i=0; i<followers.length; i+=MAX_IN_CLAUSE) {
+            long[] chunk = Arrays.copyOfRange(followers, i,
+                                             Math.min(i+MAX_IN_CLAUSE, followers.length));
+            fhistory.update(new BasicDBObject("followee",followee)
+                                      .append("follower",new BasicDBObject("$in",chunk))
+                                      .append("end",new BasicDBObject("$exists",false)),
+                            new BasicDBObject("$set",set),
+                            false, true);
+        }
+    }
+
+    public Date getFirstStart (long followee) {
+        DBCursor c = fhistory.find(new BasicDBObject("followee",followee),
+                                   new BasicDBObject("start",1))
+                             .sort(new BasicDBObject("start",1))
+                             .limit(1);
+        return c.hasNext() ? (Date)c.next().get("start") : null;
+    }
+
+    /**
+     * Uses keyset pagination on the time and the _id: the rest of the
+     * intervals with the same time as <code>after</code> are read first,
+     * then those with a later time, each with one index range scan.
+     */
+    public void visitIntervals (long followee, Order order, Date from, Interval after, int limit,
+                                IntervalVisitor visitor) throws IOException {
+        String field = order == Order.BY_START ? "start" : "end";
+        Date afterTime = after == null ? null : (order == Order.BY_START ? after.start : after.end);
+        int count = 0;
+        if (afterTime != null && !afterTime.before(from)) {
+            DBCursor c = fhistory.find(new BasicDBObject("followee",followee)
+                                                 .append(field,afterTime)
+                                                 .append("_id",new BasicDBObject("$gt",new ObjectId(after.key))))
+                                 .sort(new BasicDBObject("_id",1))
+                                 .limit(limit);
+            for (DBObject o : c) {
+                visitor.visit(toInterval(o));
+                count++;
+            }
+        }
+        if (count < limit) {
+            String op = afterTime != null && !afterTime.before(from) ? "$gt" : "$gte";
+            Date start = op.equals("$gt") ? afterTime : from;
+            DBCursor c = fhistory.find(new BasicDBObject("followee",followee)
+                                                 .append(field,new BasicDBObject(op,start)))
+                                 .sort(new BasicDBObject(field,1).append("_id",1))
+                                 .limit(limit - count);
+            for (DBObject o : c) {
+                visitor.visit(toInterval(o));
+            }
+        }
+    }
+
+    private static Interval toInterval (DBObject o) {
+        return new Interval(((Number)o.get("followee")).longValue(),
+                            ((Number)o.get("follower")).longValue(),
+                            (Date)o.get("start"), (Date)o.get("last"), (Date)o.get("end"),
+                            o.get("_id").toString());
+    }
+
+    // --- user dictionary
+
+    /**
+     * Reads the names with one $in query per MAX_IN_CLAUSE ids.
+     */
+    public String[] getScreenNames (long[] ids) {
+        Map<Long,String> found = new HashMap<Long,String>();
+        for (int i=0; i<ids.length; i+=MAX_IN_CLAUSE) {
+            long[] chunk = Arrays.copyOfRange(ids, i, Math.min(i+MAX_IN_CLAUSE, ids.length));
+            DBCursor c = users.find(
+                new BasicDBObject("_id", new BasicDBObject("$in", chunk)),
+                new BasicDBObject("screen_name", 1)
+            );
+            for (DBObject o : c) {
+                String name = (String)o.get("screen_name");
+                if (name != null) found.put(((Number)o.get("_id")).longValue(), name);
+            }
+        }
+        String[] result = new String[ids.length];
+        for (int i=0; i<ids.length; i++) {
+            result[i] = found.get(ids[i]);
+        }
+        return result;
+    }
+
+    /**
+     * Writes all names with one unordered bulk upsert.  Note that existing
+     * documents may still have 32-bit ids, which is why we only $set the
+     * screen name instead of replacing the whole document.
+     */
+    public void putScreenNames (long[] ids, String[] names) {
+        if (ids.length == 0) return;
+        BulkWriteOperation bulk = users.initializeUnorderedBulkOperation();
+        for (int i=0; i<ids.length; i++) {
+            bulk.find(new BasicDBObject("_id", ids[i]))
+                .upsert()
+                .updateOne(new BasicDBObject("$set", new BasicDBObject("screen_name", names[i])));
+        }
+        bulk.execute();
+    }
+
+    public long getUserId (String screenName) {
+        DBCursor c = users.find(new BasicDBObject("screen_name", screenName));
+        return c.hasNext() ? ((Number)c.next().get("_id")).longValue() : -1;
+    }
+
+}
@@ -0,0 +1,293 @@
+package net.followt;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+import net.followt.util.DeltaCodec;
+import net.followt.util.LongList;
+
+/**
+ * Keeps the pages of the scans in progress in append-only files on local
+ * disk, one file per followee, so that a scan that was interrupted by a
+ * crash can be finished without fetching its pages from Twitter again.
+ * <p>
+ * A file starts with a header that identifies the scan (its start time, and
+ * that of the previous scan), followed by one record per page fetched: its
+ * cursor, the next cursor, and the follower ids, compressed with the
+ * DeltaCodec.  Every record is forced to disk before the page is written to
+ * the store.  Records carry a checksum, and an incomplete or corrupt record
+ * at the end of a file, left by a crash during a write, is cut off when the
+ * file is recovered.  The file is deleted when the scan is complete.
+ * <p>
+ * The pages of one followee must be journaled by one thread at a time,
+ * but different followees can be journaled concurrently.
+ * <p>
+ * The directory defaults to "journal" in the working directory, and can be
+ * changed with the system property followt.journal.dir.
+ *
+ * @author drmirror
+ */
+public class PageJournal {
+
+    private final static byte HEADER = 1;
+    private final static byte PAGE = 2;
+    private final static long NULL_DATE = Long.MIN_VALUE;
+
+    private final static Metrics.Timer SYNC = Metrics.timer("journal.sync");
+    private final static Metrics.Counter REPLAYED = Metrics.counter("journal.replayed");
+
+    /**
+     * The scan that a journal belongs to.
+     */
+    public static class Header {
+        public final Date scanStarted;
+        public final Date previousScan;
+        Header (Date scanStarted, Date previousScan) {
+            this.scanStarted = scanStarted;
+            this.previousScan = previousScan;
+        }
+    }
+
+    /**
+     * A page as it was received from Twitter.
+     */
+    public static class Record {
+        public final long cursor;
+        public final long nextCursor;
+        public final long[] followers;
+        Record (long cursor, long nextCursor, long[] followers) {
+            this.cursor = cursor;
+            this.nextCursor = nextCursor;
+            this.followers = followers;
+        }
+    }
+
+    /**
+     * The open journal of one followee, and the positions of the records
+     * that have been recovered but not replayed yet, by cursor.
+     */
+    private static class Log {
+        final FileChannel channel;
+        final Map<Long,Long> recovered = new HashMap<Long,Long>();
+        Log (FileChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    private File dir;
+    private Map<Long,Log> logs = new ConcurrentHashMap<Long,Log>();
+
+    public PageJournal() {
+        this(new File(System.getProperty("followt.journal.dir", "journal")));
+    }
+
+    public PageJournal (File dir) {
+        this.dir = dir;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new RuntimeException("cannot create journal directory " + dir);
+        }
+    }
+
+    /**
+     * Starts the journal of a new scan of the given user, replacing
+     * whatever was journaled for that user before.
+     */
+    public void begin (long followee, Date scanStarted, Date previousScan) {
+        close(followee);
+        try {
+            Log log = new Log(open(followee));
+            log.channel.truncate(0);
+            logs.put(followee, log);
+            ByteBuffer b = ByteBuffer.allocate(1 + 2 * 8);
+            b.put(HEADER).putLong(scanStarted.getTime())
+             .putLong(previousScan == null ? NULL_DATE : previousScan.getTime());
+            b.flip();
+            write(log.channel, b);
+        } catch (IOException ex) {
+            throw new RuntimeException("cannot write journal of " + followee, ex);
+        }
+    }
+
+    /**
+     * Appends a page to the journal of the given user, and forces it
+     * to disk.  The journal must have been started with begin() or
+     * recover() in this process.
+     */
+    public void append (long followee, long cursor, long nextCursor, LongList followers) {
+        Log log = logs.get(followee);
+        if (log == null) {
+            throw new IllegalStateException("no journal for " + followee);
+        }
+        byte[] ids = DeltaCodec.encode(unique(followers.toSortedArray()));
+        ByteBuffer b = ByteBuffer.allocate(1 + 2 * 8 + ids.length);
+        b.put(PAGE).putLong(cursor).putLong(nextCursor).put(ids);
+        b.flip();
+        try {
+            write(log.channel, b);
+        } catch (IOException ex) {
+            throw new RuntimeException("cannot write journal of " + followee, ex);
+        }
+    }
+
+    /**
+     * Reads the journal of the given user after a restart, and makes its
+     * pages available to take().  New pages are appended to it.
+     * @param scanStarted the start of the scan that is to be recovered
+     * @return the header of the journal, or null if there is no journal
+     * for that scan
+     */
+    public Header recover (long followee, Date scanStarted) {
+        close(followee);
+        if (scanStarted == null || !file(followee).exists()) return null;
+        try {
+            FileChannel channel = open(followee);
+            Log log = new Log(channel);
+            Header header = null;
+            long position = 0;
+            ByteBuffer payload;
+            while ((payload = read(channel, position)) != null) {
+                byte type = payload.get();
+                if (header == null) {
+                    if (type != HEADER) break;
+                    long started = payload.getLong();
+                    long previous = payload.getLong();
+                    header = new Header(new Date(started),
+                                        previous == NULL_DATE ? null : new Date(previous));
+                } else if (type == PAGE) {
+                    log.recovered.put(payload.getLong(), position);
+                }
+                position += 8 + payload.limit();
+            }
+            if (header == null || !header.scanStarted.equals(scanStarted)) {
+                channel.close();
+                return null;
+            }
+            if (position < channel.size()) {
+                System.out.println("truncating incomplete record at the end of " + file(followee));
+                channel.truncate(position);
+            }
+            channel.position(position);
+            logs.put(followee, log);
+            return header;
+        } catch (IOException ex) {
+            System.out.println("ignoring unreadable journal " + file(followee) + ": " + ex);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the recovered page of the given user at the given cursor,
+     * or null if there is none.  Each page is returned only once.
+     */
+    public Record take (long followee, long cursor) {
+        Log log = logs.get(followee);
+        Long position = log == null ? null : log.recovered.remove(cursor);
+        if (position == null) return null;
+        try {
+            ByteBuffer payload = read(log.channel, position);
+            payload.get();
+            long c = payload.getLong();
+            long nextCursor = payload.getLong();
+            byte[] ids = new byte[payload.remaining()];
+            payload.get(ids);
+            REPLAYED.increment();
+            return new Record(c, nextCursor, DeltaCodec.decode(ids));
+        } catch (IOException ex) {
+            throw new RuntimeException("cannot read journal of " + followee, ex);
+        }
+    }
+
+    /**
+     * Deletes the journal of the given user, whose scan is complete.
+     */
+    public void finish (long followee) {
+        close(followee);
+        File f = file(followee);
+        if (f.exists() && !f.delete()) {
+            throw new RuntimeException("cannot delete " + f);
+        }
+    }
+
+    private void close (long followee) {
+        Log log = logs.remove(followee);
+        if (log == null) return;
+        try {
+            log.channel.close();
+        } catch (IOException ex) {
+            System.out.println("cannot close journal of " + followee + ": " + ex);
+        }
+    }
+
+    @SuppressWarnings("resource")
+    private FileChannel open (long followee) throws IOException {
+        return new RandomAccessFile(file(followee), "rw").getChannel();
+    }
+
+    /**
+     * Writes a record with the given payload at the end of the channel:
+     * the length of the payload, its CRC-32, and the payload itself.
+     */
+    private static void write (FileChannel channel, ByteBuffer payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload.duplicate());
+        ByteBuffer head = ByteBuffer.allocate(8);
+        head.putInt(payload.remaining()).putInt((int)crc.getValue());
+        head.flip();
+        ByteBuffer[] record = new ByteBuffer[] { head, payload };
+        while (payload.hasRemaining()) channel.write(record);
+        long start = System.nanoTime();
+        channel.force(false);
+        SYNC.stop(start);
+    }
+
+    /**
+     * Reads the payload of the record at the given position, or returns
+     * null if the record is incomplete or its checksum does not match.
+     */
+    private static ByteBuffer read (FileChannel channel, long position) throws IOException {
+        if (channel.size() - position < 8) return null;
+        ByteBuffer head = ByteBuffer.allocate(8);
+        readFully(channel, head, position);
+        int length = head.getInt();
+        int checksum = head.getInt();
+        if (length <= 0 || channel.size() - position - 8 < length) return null;
+        ByteBuffer payload = ByteBuffer.allocate(length);
+        readFully(channel, payload, position + 8);
+        CRC32 crc = new CRC32();
+        crc.update(payload.duplicate());
+        return (int)crc.getValue() == checksum ? payload : null;
+    }
+
+    private static void readFully (FileChannel channel, ByteBuffer b, long position) throws IOException {
+        while (b.hasRemaining()) {
+            if (channel.read(b, position + b.position()) < 0) throw new IOException("unexpected end of journal");
+        }
+        b.flip();
+    }
+
+    /**
+     * Removes duplicates from a sorted array.  Twitter should not return
+     * a follower twice on one page, but the DeltaCodec would reject it.
+     */
+    private static long[] unique (long[] sorted) {
+        int n = 0;
+        for (int i=0; i<sorted.length; i++) {
+            if (i == 0 || sorted[i] != sorted[n-1]) sorted[n++] = sorted[i];
+        }
+        return n == sorted.length ? sorted : Arrays.copyOf(sorted, n);
+    }
+
+    private File file (long followee) {
+        return new File(dir, followee + ".journal");
+    }
+
+}
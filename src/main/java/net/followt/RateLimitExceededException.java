@@ -6,8 +6,23 @@ public class RateLimitExceededException extends TwitterException {
 
     private static final long serialVersionUID = 5051487864096303930L;
 
+    private long reset = 0;
+    
     public RateLimitExceededException (String message, List<?> errors) {
         super (message, errors);
     }
     
+    public RateLimitExceededException (String message, List<?> errors, long reset) {
+        super (message, errors);
+        this.reset = reset;
+    }
+    
+    /**
+     * Returns the time when the rate limit window ends, in milliseconds
+     * since the epoch, or 0 if Twitter did not say.
+     */
+    public long getReset() {
+        return reset;
+    }
+    
 }
@@ -0,0 +1,55 @@
+package net.followt;
+
+import java.util.Date;
+
+/**
+ * The rate limit state of one Twitter API endpoint at some point in time,
+ * as last reported by Twitter in the x-rate-limit-* response headers
+ * (or as estimated by us before the first response).
+ *
+ * @author drmirror
+ */
+public class RateLimitStatus {
+
+    private final String endpoint;
+    private final int limit;
+    private final int remaining;
+    private final Date reset;
+
+    public RateLimitStatus (String endpoint, int limit, int remaining, Date reset) {
+        this.endpoint = endpoint;
+        this.limit = limit;
+        this.remaining = remaining;
+        this.reset = reset;
+    }
+
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    /**
+     * The number of requests allowed per window.
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * The number of requests left in the current window.
+     */
+    public int getRemaining() {
+        return remaining;
+    }
+
+    /**
+     * The end of the current window, or null if no window has started yet.
+     */
+    public Date getReset() {
+        return reset;
+    }
+
+    public String toString() {
+        return endpoint + ": " + remaining + "/" + limit + (reset != null ? " until " + reset : "");
+    }
+
+}
@@ -0,0 +1,137 @@
+package net.followt;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import net.followt.util.JsonWriter;
+
+/**
+ * Writes the followers or unfollowers of a user as JSON, one page at a time,
+ * directly from the FollowerStore to the client.
+ * <p>
+ * Pages are delimited by keyset pagination rather than by skipping rows: the
+ * intervals are ordered by their start (for followers) or end (for
+ * unfollowers) time, with the key of the interval as a tie breaker, since all
+ * followers found on the same page of a scan share the same start time.  Each
+ * response contains an opaque token for the position of its last row,
+ * which is passed back as <code>after</code> to get the next page.
+ * A page is read with at most two index range scans, no matter how deep
+ * into the result it is.
+ * <p>
+ * Rows are written as soon as their screen names have been resolved,
+ * NAME_BATCH rows at a time, using only names that are already known
+ * (others are resolved in the background and written as null), so that
+ * the memory needed per request is bounded by NAME_BATCH.
+ *
+ * @author drmirror
+ */
+public class ReportStream {
+
+    public final static int DEFAULT_PAGE_SIZE = Integer.getInteger("followt.api.page.size", 100);
+    public final static int MAX_PAGE_SIZE = 1000;
+
+    private final static int NAME_BATCH = 100;
+
+    public enum Kind {
+        FOLLOWERS ("followers", FollowerStore.Order.BY_START),
+        UNFOLLOWERS ("unfollowers", FollowerStore.Order.BY_END);
+
+        private final String name;
+        private final FollowerStore.Order order;
+
+        private Kind (String name, FollowerStore.Order order) {
+            this.name = name;
+            this.order = order;
+        }
+    }
+
+    private final FollowerStore store;
+    private final UserDB userDB;
+
+    public ReportStream (FollowerStore store, UserDB userDB) {
+        this.store = store;
+        this.userDB = userDB;
+    }
+
+    /**
+     * Writes one page of followers or unfollowers.
+     * @param cutoff the earliest start or end time to include
+     * @param after the token of the last row of the previous page,
+     * or null for the first page
+     * @param limit the page size, at most MAX_PAGE_SIZE
+     * @throws IllegalArgumentException if the token is malformed, in
+     * which case nothing has been written
+     */
+    public void write (final Kind kind, long followee, Date cutoff, String after, int limit,
+                       Writer out) throws IOException
+    {
+        int pageSize = Math.max(1, Math.min(limit, MAX_PAGE_SIZE));
+        Interval afterInterval = null;
+        if (after != null) {
+            int dash = after.indexOf('-');
+            if (dash < 0 || dash == after.length()-1) {
+                throw new IllegalArgumentException("invalid token: " + after);
+            }
+            Date afterTime;
+            try {
+                afterTime = new Date(Long.parseLong(after.substring(0, dash)));
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException("invalid token: " + after);
+            }
+            afterInterval = new Interval(followee, 0, afterTime, null, afterTime,
+                                         after.substring(dash+1));
+        }
+
+        // the key in the token is only checked by the store, so nothing is
+        // written before it has found the first row
+        final JsonWriter json = new JsonWriter(out);
+        final List<Interval> rows = new ArrayList<Interval>(NAME_BATCH);
+        final Interval[] last = new Interval[1];
+        final int[] count = new int[1];
+        store.visitIntervals(followee, kind.order, cutoff, afterInterval, pageSize,
+            new FollowerStore.IntervalVisitor() {
+                public void visit (Interval i) throws IOException {
+                    if (count[0] == 0) json.beginObject().name(kind.name).beginArray();
+                    rows.add(i);
+                    if (rows.size() == NAME_BATCH) writeRows(kind, rows, json);
+                    last[0] = i;
+                    count[0]++;
+                }
+            });
+        if (count[0] == 0) json.beginObject().name(kind.name).beginArray();
+        writeRows(kind, rows, json);
+        json.endArray().name("next");
+        if (count[0] == pageSize && last[0] != null) {
+            Date time = kind == Kind.FOLLOWERS ? last[0].start : last[0].end;
+            json.value(time.getTime() + "-" + last[0].key);
+        } else {
+            json.value((String)null);
+        }
+        json.endObject().flush();
+    }
+
+    private void writeRows (Kind kind, List<Interval> rows, JsonWriter json) throws IOException {
+        if (rows.isEmpty()) return;
+        long[] ids = new long[rows.size()];
+        for (int i=0; i<ids.length; i++) {
+            ids[i] = rows.get(i).follower;
+        }
+        String[] names = userDB.getScreenNames(ids);
+        for (int i=0; i<ids.length; i++) {
+            Interval o = rows.get(i);
+            json.beginObject()
+                .name("id").value(ids[i])
+                .name("screen_name").value(names[i])
+                .name("start").value(o.start)
+                .name("last").value(o.last);
+            if (kind == Kind.UNFOLLOWERS) json.name("end").value(o.end);
+            json.endObject();
+        }
+        json.flush();
+        rows.clear();
+    }
+
+}
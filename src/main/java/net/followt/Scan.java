@@ -0,0 +1,31 @@
+package net.followt;
+
+import java.util.Date;
+
+/**
+ * The state of the scans of one monitored user: when the current (or last)
+ * scan started, where it is to be continued, and when a page of it was
+ * last processed.
+ *
+ * @author drmirror
+ */
+public class Scan {
+
+    public long user_id;
+    public Date scan_started;
+    /** the cursor of the next page, or -1 if the next page starts a new scan */
+    public long next_cursor = -1;
+    public Date scan_ended;
+
+    public Scan (long user_id) {
+        this.user_id = user_id;
+    }
+
+    public Scan (long user_id, Date scan_started, long next_cursor, Date scan_ended) {
+        this.user_id = user_id;
+        this.scan_started = scan_started;
+        this.next_cursor = next_cursor;
+        this.scan_ended = scan_ended;
+    }
+
+}
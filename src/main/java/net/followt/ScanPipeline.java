@@ -0,0 +1,201 @@
+package net.followt;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Works through whole scans in overlapping stages, so that the next page
+ * of a scan is fetched from Twitter while the previous one is written to
+ * the store.
+ * <p>
+ * The fetch stage runs in the thread that calls scan(): it follows the
+ * cursor chain of the scan, retrieving and decoding one page after the
+ * other (decoding is part of this stage, because the cursor of the next
+ * page is only known once a page is decoded).  Each page is handed to
+ * the write stage, which computes the diff and writes the changes, and then
+ * to the checkpoint stage, which records in the scan state that the page is
+ * done.  The pages of one scan always go to the same writer thread, so they
+ * are written in order; different scans are written in parallel.
+ * <p>
+ * The queues between the stages are bounded.  When the store falls behind,
+ * the fetch stage blocks until there is room again, so that no more than
+ * a few pages per writer are held in memory.
+ * <p>
+ * If a page cannot be written, the rest of the scan is dropped, and the
+ * scan is continued from its last checkpoint the next time, just as if the
+ * page had been scanned on its own by Scanner.scan().
+ *
+ * @author drmirror
+ */
+public class ScanPipeline {
+
+    private final static Metrics.Timer BACKPRESSURE = Metrics.timer("pipeline.backpressure");
+
+    private Scanner scanner;
+    private List<BlockingQueue<Item>> writeQueues = new ArrayList<BlockingQueue<Item>>();
+    private BlockingQueue<Item> checkpointQueue;
+    private List<Thread> threads = new ArrayList<Thread>();
+
+    /**
+     * The state that the stages share about one scan.
+     */
+    private static class Chain {
+        final Runnable done;
+        volatile boolean failed = false;
+        Chain (Runnable done) {
+            this.done = done;
+        }
+    }
+
+    /**
+     * A page on its way through the stages, or, if page is null, the marker
+     * that ends a scan whose last page could not be fetched.  The last item
+     * of every scan is either the last page or such a marker.
+     */
+    private static class Item {
+        final Chain chain;
+        final Scanner.Page page;
+        Item (Chain chain, Scanner.Page page) {
+            this.chain = chain;
+            this.page = page;
+        }
+        boolean isLast() {
+            return page == null || page.next_cursor <= 0;
+        }
+    }
+
+    /**
+     * @param writers the number of writer threads
+     * @param capacity the number of pages that may wait for each writer
+     */
+    public ScanPipeline (Scanner scanner, int writers, int capacity) {
+        this.scanner = scanner;
+        for (int i=0; i<writers; i++) {
+            final BlockingQueue<Item> queue = new ArrayBlockingQueue<Item>(capacity);
+            writeQueues.add(queue);
+            threads.add(new Thread(new Runnable() {
+                public void run() {
+                    while (true) writeNext(queue);
+                }
+            }, "scan-writer-" + i));
+        }
+        checkpointQueue = new ArrayBlockingQueue<Item>(writers * capacity);
+        threads.add(new Thread(new Runnable() {
+            public void run() {
+                while (true) checkpointNext();
+            }
+        }, "scan-checkpoint"));
+        Metrics.gauge("pipeline.write_queue", new Metrics.Gauge() {
+            public long getValue() {
+                long result = 0;
+                for (BlockingQueue<Item> q : writeQueues) result += q.size();
+                return result;
+            }
+        });
+        Metrics.gauge("pipeline.checkpoint_queue", new Metrics.Gauge() {
+            public long getValue() {
+                return checkpointQueue.size();
+            }
+        });
+    }
+
+    /**
+     * Starts the write and checkpoint stages.  Their threads are daemon
+     * threads, which wait for pages for as long as the process runs.
+     */
+    public void start() {
+        for (Thread t : threads) {
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    /**
+     * Runs the fetch stage for the given scan, from where it is to be
+     * continued to its last page, in the calling thread.  Returns as soon as
+     * the last page has been handed to the write stage, or the scan failed.
+     * Errors are logged, not thrown.
+     * @param done is called by the checkpoint stage once the scan has been
+     * completely written, or has failed; only then may the scan be given to
+     * this method again
+     */
+    public void scan (Scan scan, Runnable done) {
+        Chain chain = new Chain(done);
+        BlockingQueue<Item> queue = writeQueues.get(
+            (int)((scan.user_id & Long.MAX_VALUE) % writeQueues.size()));
+        Scanner.Page page = null;
+        try {
+            page = scanner.start(scan);
+            while (true) {
+                scanner.fetch(page);
+                handOver(queue, new Item(chain, page));
+                if (page.next_cursor <= 0) return;
+                if (chain.failed) break;
+                page = scanner.next(page);
+            }
+        } catch (Exception ex) {
+            scanner.fail(page, ex);
+        }
+        handOver(queue, new Item(chain, null));
+    }
+
+    private void writeNext (BlockingQueue<Item> queue) {
+        Item item = take(queue);
+        if (item.page != null && !item.chain.failed) {
+            try {
+                scanner.write(item.page);
+            } catch (Exception ex) {
+                item.chain.failed = true;
+                scanner.fail(item.page, ex);
+            }
+        }
+        handOver(checkpointQueue, item);
+    }
+
+    private void checkpointNext() {
+        Item item = take(checkpointQueue);
+        if (item.page != null && !item.chain.failed) {
+            try {
+                scanner.checkpoint(item.page);
+            } catch (Exception ex) {
+                item.chain.failed = true;
+                scanner.fail(item.page, ex);
+            }
+        }
+        if (item.isLast()) item.chain.done.run();
+    }
+
+    /**
+     * Puts the item into the queue, waiting for room if necessary.  Items
+     * must never be lost, or the scan would never be done, so an interrupt
+     * only takes effect after the item has been handed over.
+     */
+    private static void handOver (BlockingQueue<Item> queue, Item item) {
+        if (queue.offer(item)) return;
+        long start = System.nanoTime();
+        boolean interrupted = false;
+        while (true) {
+            try {
+                queue.put(item);
+                break;
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+        BACKPRESSURE.stop(start);
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    private static Item take (BlockingQueue<Item> queue) {
+        while (true) {
+            try {
+                return queue.take();
+            } catch (InterruptedException ex) {
+                // the stages run until the process ends
+            }
+        }
+    }
+
+}
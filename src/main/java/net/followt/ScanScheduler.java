@@ -0,0 +1,139 @@
+package net.followt;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Drives the Scanner for many users concurrently.
+ * <p>
+ * Instead of scanning one page per fixed tick, a dispatcher thread hands
+ * out the next due scan whenever a worker thread is free and the
+ * followers/ids endpoint has budget left.  The rate of pages is therefore
+ * only limited by Twitter's rate limits (see Twitter.Endpoint), while the
+ * database writes and screen name lookups of several users overlap.
+ * <p>
+ * Unless followt.scanner.pipeline is set to false, each worker follows
+ * the scan it was handed through all of its pages, and the pages are
+ * written by a ScanPipeline, so that fetching and writing overlap.
+ * Otherwise, a worker scans a single page, and two pages of the same
+ * user are never worked on at the same time.
+ *
+ * @author drmirror
+ */
+public class ScanScheduler {
+
+    /**
+     * How long to wait before looking again when there is nothing to scan.
+     */
+    private final static long IDLE_DELAY = 10000;
+
+    private Scanner scanner;
+    private ScanPipeline pipeline = null;
+    private Twitter twitter = Twitter.getInstance();
+    private ExecutorService workers;
+    private Semaphore freeWorkers;
+    private Set<Long> inFlight = Collections.newSetFromMap(new ConcurrentHashMap<Long,Boolean>());
+    private volatile boolean running = false;
+
+    private Thread dispatcher = new Thread (new Runnable() {
+        public void run() {
+            while (running) {
+                try {
+                    dispatch();
+                } catch (InterruptedException ex) {
+                    // re-check running
+                } catch (Exception ex) {
+                    ex.printStackTrace();
+                    sleep(IDLE_DELAY);
+                }
+            }
+        }
+    }, "scan-dispatcher");
+
+    public ScanScheduler (Scanner scanner, int threads) {
+        this.scanner = scanner;
+        this.workers = Executors.newFixedThreadPool(threads);
+        this.freeWorkers = new Semaphore(threads);
+        if (!"false".equals(System.getProperty("followt.scanner.pipeline"))) {
+            this.pipeline = new ScanPipeline(scanner,
+                                             Integer.getInteger("followt.scanner.writers", 2),
+                                             Integer.getInteger("followt.scanner.queue", 4));
+        }
+    }
+
+    public void start() {
+        running = true;
+        if (pipeline != null) pipeline.start();
+        dispatcher.start();
+    }
+
+    /**
+     * Stops dispatching new pages; pages that are in progress are finished.
+     */
+    public void stop() {
+        running = false;
+        dispatcher.interrupt();
+        workers.shutdown();
+    }
+
+    /**
+     * Waits for a free worker and for followers/ids budget, then
+     * hands the next due scan to the worker.
+     */
+    private void dispatch() throws InterruptedException {
+        freeWorkers.acquire();
+        boolean submitted = false;
+        try {
+            // don't claim a scan before we could actually fetch its page
+            twitter.awaitBudget(Twitter.Endpoint.FOLLOWERS_IDS);
+            final Scan scan = scanner.nextScan(inFlight);
+            if (scan == null) {
+                sleep(IDLE_DELAY);
+                return;
+            }
+            inFlight.add(scan.user_id);
+            if (pipeline != null) {
+                workers.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            pipeline.scan(scan, new Runnable() {
+                                public void run() {
+                                    inFlight.remove(scan.user_id);
+                                }
+                            });
+                        } finally {
+                            freeWorkers.release();
+                        }
+                    }
+                });
+            } else {
+                workers.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            scanner.scan(scan);
+                        } finally {
+                            inFlight.remove(scan.user_id);
+                            freeWorkers.release();
+                        }
+                    }
+                });
+            }
+            submitted = true;
+        } finally {
+            if (!submitted) freeWorkers.release();
+        }
+    }
+
+    private static void sleep (long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
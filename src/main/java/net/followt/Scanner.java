@@ -1,24 +1,34 @@
 package net.followt;
 
-import java.net.UnknownHostException;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.mongodb.BasicDBObject;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
-import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
-import com.mongodb.MongoClient;
+
+import net.followt.util.LongBitmap;
+import net.followt.util.LongList;
 
 /**
  * Process that scans the followers of twitter users and
- * updates their follower history in the database.
+ * updates their follower history in the FollowerStore.
+ * <p>
+ * If the store is backed by MongoDB, the Scanner also keeps a snapshot
+ * of each complete scan and the hourly follower counters there.
+ * <p>
+ * Every page is recorded in the PageJournal before it is written, unless
+ * followt.scanner.journal is set to false.  If the Scanner is restarted in
+ * the middle of a scan, or a page could not be written, the scan is replayed
+ * from the journal: its pages are processed again, without fetching them
+ * from Twitter, and only the changes that did not reach the store yet
+ * are written.
  * @author drmirror
  */
 public class Scanner implements Runnable {
@@ -26,102 +36,264 @@ public class Scanner implements Runnable {
     private Twitter twitter = Twitter.getInstance();
     private UserDB  userDB  = UserDB.getInstance();
     
-    private DBCollection fscans = null;
+    private FollowerStore store = Storage.getStore();
     private DBCollection fcurrent = null;
     private DBCollection fhistory = null;
-    
-    private SimpleDateFormat df = new SimpleDateFormat("HH:mm:ss");
+    private SnapshotStore snapshots = null;
+    private FollowerCounts counts = null;
+    private BitmapIndex bitmaps = new BitmapIndex();
+    private PageJournal journal = null;
+
+    private final static Metrics.Timer PAGE = Metrics.timer("scanner.page");
+    private final static Metrics.Timer DIFF = Metrics.timer("scanner.diff");
+    private final static Metrics.Timer SNAPSHOT = Metrics.timer("scanner.snapshot");
+    private final static Metrics.Timer COUNTS = Metrics.timer("scanner.counts");
+    private final static Metrics.Timer BITMAP = Metrics.timer("scanner.bitmap");
+    private final static Metrics.Counter PAGES = Metrics.counter("scanner.pages");
+    private final static Metrics.Counter FAILURES = Metrics.counter("scanner.failures");
+    private final static Metrics.Counter NEW_FOLLOWERS = Metrics.counter("scanner.followers.new");
+    private final static Metrics.Counter LOST_FOLLOWERS = Metrics.counter("scanner.followers.lost");
+
+    /**
+     * If true (the default), each page is compared against the set of
+     * open intervals in memory, and only actual changes are written
+     * to the database.  If false, every follower is looked up and
+     * written individually.  Can be switched off by setting the
+     * system property followt.scanner.mode to "legacy", which is
+     * only supported with MongoDB.
+     */
+    private boolean diffMode = !"legacy".equals(System.getProperty("followt.scanner.mode"));
+
+    /**
+     * The in-memory state of the scans that are currently in progress,
+     * by followee.  Several scans may be worked on concurrently by the
+     * ScanScheduler, but the pages of one followee are always written
+     * one after the other.
+     */
+    private Map<Long,FollowerDiff> diffs = new ConcurrentHashMap<Long,FollowerDiff>();
     
     public Scanner() {
-        initMongo();
-    }
-
-    private void initMongo() {
-        try {
-            MongoClient client = new MongoClient();
-            DB db = client.getDB("followt");
-            fscans = db.getCollection("fscans");
+        DB db = Storage.getMongoDB();
+        if (db != null) {
             fcurrent = db.getCollection("fcurrent");
             fhistory = db.getCollection("fhistory");
-        } catch (UnknownHostException e) {
-            throw new RuntimeException(e);
-        }
-    }
-    
-    private class Scan {
-        public int user_id;
-        public Date scan_started;
-        public long next_cursor = -1;
-        public Date scan_ended;
-        public Scan (DBObject source) {
-            this.user_id = (Integer)source.get("user_id");
-            this.scan_started = (Date)source.get("scan_started");
-            if (source.containsField("next_cursor"))
-                next_cursor = (long)source.get("next_cursor");
-            this.scan_ended = (Date)source.get("scan_ended");
+            snapshots = new SnapshotStore(db);
+            counts = new FollowerCounts(db);
+        } else if (!diffMode) {
+            throw new IllegalStateException("legacy mode requires MongoDB");
         }
-        public void update() {
-            BasicDBObject o = new BasicDBObject("user_id",user_id)
-                                        .append("scan_started",scan_started);
-            if (next_cursor > 0) o.append("next_cursor", next_cursor);
-            if (scan_ended != null) o.append("scan_ended", scan_ended);
-            fscans.update(new BasicDBObject("user_id",user_id),
-                          o, true, false);
+        if (diffMode && !"false".equals(System.getProperty("followt.scanner.journal"))) {
+            journal = new PageJournal();
         }
     }
     
+    /**
+     * Scans the next page of the user that is most due for it.
+     */
     @Override
     public void run() {
+        Scan currentScan = nextScan(Collections.<Long>emptySet());
+        if (currentScan != null) scan(currentScan);
+    }
+
+    /**
+     * Scans the next page of the given scan.  Errors are logged, not thrown.
+     * This method is safe to call concurrently for different users.
+     */
+    void scan (Scan currentScan) {
+        Page page = null;
         try {
-            long startTime = System.currentTimeMillis();
-            // get user to scan
-            Scan currentScan = nextScan();
-            if (currentScan == null) return;
-            System.out.print(df.format(new Date()) + " scanning "
-                    + userDB.getScreenName(currentScan.user_id) + " ("
-                    + currentScan.user_id + ") ...");
-
-            if (currentScan.next_cursor <= 0) { // this is the start of the scan
-                fcurrent.remove(new BasicDBObject("followee", currentScan.user_id));
-                currentScan.scan_started = new Date();
-                currentScan.scan_ended = null;
-                currentScan.next_cursor = -1;
-                currentScan.update();
-            }
+            page = start(currentScan);
+            fetch(page);
+            write(page);
+            checkpoint(page);
+        } catch (Exception ex) {
+            fail(page, ex);
+        }
+    }
+
+    /**
+     * One page of a scan, on its way through the steps of scanning it:
+     * start() or next(), fetch(), write() and checkpoint().  The ScanPipeline
+     * runs these steps in different threads, so that the next page of a scan
+     * is fetched while the previous one is written.
+     */
+    static class Page {
+        final Scan scan;
+        final long cursor;
+        final long startTime = System.currentTimeMillis();
+        final long startNanos = System.nanoTime();
+        final StringBuilder log = new StringBuilder();
+        LongList followers;
+        long next_cursor;
 
-            List<Integer> followers = new ArrayList<Integer>();
-            long next_cursor = twitter.getFollowerBatch(currentScan.user_id,
-                                                        currentScan.next_cursor, followers);
+        Page (Scan scan, long cursor) {
+            this.scan = scan;
+            this.cursor = cursor;
+        }
+    }
 
-            // insert_fcurrent(currentScan.user_id, followers);
-            insert_fhistory_positive(currentScan.user_id, followers);
-            if (next_cursor <= 0) { // scan completed
-                insert_fhistory_negative(currentScan.user_id);
+    /**
+     * Returns the page at which the given scan is to be continued.  If that
+     * is the start of a new scan, the scan state is reset and saved, and the
+     * in-memory state of the scan is set up.  If the in-memory state has been
+     * lost, the scan is replayed from the journal, from its first page on.
+     */
+    Page start (Scan currentScan) {
+        String log = new SimpleDateFormat("HH:mm:ss").format(new Date()) + " scanning "
+                   + userDB.getScreenName(currentScan.user_id) + " ("
+                   + currentScan.user_id + ") ...";
+        // whether the previous scan ran to completion (MongoDB does not
+        // keep a cursor of 0, so a finished scan may also have -1)
+        boolean finished = currentScan.next_cursor <= 0
+            && (currentScan.scan_started == null || currentScan.scan_ended != null);
+        boolean replay = false;
+        if (diffMode && !finished && !diffs.containsKey(currentScan.user_id)) {
+            // we lost the state of this scan (e.g. after a restart)
+            PageJournal.Header header = journal == null ? null
+                : journal.recover(currentScan.user_id, currentScan.scan_started);
+            if (header != null) {
+                diffs.put(currentScan.user_id, recoverDiff(currentScan.user_id, header.previousScan));
+                currentScan.next_cursor = -1;
+                replay = true;
+                log += " replaying journal ...";
+            } else {
+                // we cannot tell who unfollowed; start over
+                currentScan.next_cursor = -1;
+            }
+        }
+        if (!replay && currentScan.next_cursor <= 0) { // this is the start of the scan
+            Date previousScan = currentScan.scan_started;
+            if (fcurrent != null) fcurrent.remove(new BasicDBObject("followee", currentScan.user_id));
+            currentScan.scan_started = new Date();
+            currentScan.scan_ended = null;
+            currentScan.next_cursor = -1;
+            store.saveScan(currentScan);
+            if (diffMode) {
+                diffs.put(currentScan.user_id, loadDiff(currentScan.user_id, previousScan, finished));
+                if (journal != null) {
+                    journal.begin(currentScan.user_id, currentScan.scan_started, previousScan);
+                }
             }
+        }
+        Page result = new Page(currentScan, currentScan.next_cursor);
+        result.log.append(log);
+        return result;
+    }
 
-            currentScan.scan_ended = new Date();
-            currentScan.next_cursor = next_cursor;
-            currentScan.update();
-            long time = System.currentTimeMillis() - startTime;
-            if (next_cursor > 0)
-                System.out.println(" to be continued (" + time + ")");
-            else
-                System.out.println(" done (" + time + ")");
-        } catch (Exception ex) {
-            ex.printStackTrace();
+    /**
+     * Returns the page that follows the given one, which must have been
+     * fetched, within the same scan.
+     */
+    Page next (Page previous) {
+        Page result = new Page(previous.scan, previous.next_cursor);
+        result.log.append(new SimpleDateFormat("HH:mm:ss").format(new Date()) + " scanning "
+                        + userDB.getScreenName(previous.scan.user_id) + " ("
+                        + previous.scan.user_id + ") ...");
+        return result;
+    }
+
+    /**
+     * Retrieves the followers on the given page from the journal, if the
+     * scan is being replayed, and otherwise from Twitter.  Pages from
+     * Twitter are journaled before they are written.
+     */
+    void fetch (Page page) {
+        long user_id = page.scan.user_id;
+        PageJournal.Record record = journal == null ? null : journal.take(user_id, page.cursor);
+        if (record != null) {
+            page.followers = new LongList(record.followers.length);
+            page.followers.addAll(record.followers);
+            page.next_cursor = record.nextCursor;
+            page.log.append(" (journal)");
+            return;
         }
+        page.followers = new LongList(5000);
+        page.next_cursor = twitter.getFollowerBatch(user_id, page.cursor, page.followers);
+        if (journal != null) journal.append(user_id, page.cursor, page.next_cursor, page.followers);
     }
 
-    private Scan nextScan() {
-        DBCursor c = fscans.find()
-                           .sort(new BasicDBObject("next_cursor",-1)
-                                           .append("scan_ended",1));
-        if (c.hasNext()) {
-            return new Scan(c.next());
+    /**
+     * Writes the changes that the given page reveals to the store, and
+     * finishes the scan if it is the last page.  The pages of a scan must
+     * be written one at a time, and in order.
+     */
+    void write (Page page) {
+        long user_id = page.scan.user_id;
+        // insert_fcurrent(user_id, page.followers);
+        if (diffMode) {
+            FollowerDiff diff = diffs.get(user_id);
+            try {
+                insert_fhistory_diff(diff, page.followers);
+                if (page.next_cursor <= 0) { // scan completed
+                    close_fhistory_diff(diff);
+                    if (snapshots != null) {
+                        long t = System.nanoTime();
+                        snapshots.save(user_id, page.scan.scan_started, diff.getFollowers());
+                        SNAPSHOT.stop(t);
+                    }
+                    long t = System.nanoTime();
+                    bitmaps.save(user_id, diff.getCurrent());
+                    BITMAP.stop(t);
+                    diffs.remove(user_id);
+                }
+            } catch (RuntimeException ex) {
+                // the diff may be ahead of the store now, so drop it: the scan
+                // is then replayed from the journal, or started over
+                diffs.remove(user_id);
+                throw ex;
+            }
         } else {
-            return null;
+            insert_fhistory_positive(user_id, page.followers);
+            if (page.next_cursor <= 0) { // scan completed
+                insert_fhistory_negative(user_id);
+                // the bitmap of an earlier diff mode scan is stale now
+                bitmaps.remove(user_id);
+            }
         }
     }
+
+    /**
+     * Records in the scan state that the given page has been written,
+     * so that the scan continues after it.
+     */
+    void checkpoint (Page page) {
+        Scan currentScan = page.scan;
+        currentScan.scan_ended = new Date();
+        currentScan.next_cursor = page.next_cursor;
+        store.saveScan(currentScan);
+        if (page.next_cursor <= 0 && journal != null) journal.finish(currentScan.user_id);
+        long time = System.currentTimeMillis() - page.startTime;
+        if (page.next_cursor > 0)
+            page.log.append(" to be continued (" + time + ")");
+        else
+            page.log.append(" done (" + time + ")");
+        System.out.println(page.log);
+        PAGES.increment();
+        PAGE.stop(page.startNanos);
+    }
+
+    /**
+     * Logs the failure of a page.
+     * @param page the page, or null if the failure happened before it was started
+     */
+    void fail (Page page, Exception ex) {
+        FAILURES.increment();
+        StringBuilder log = page != null ? page.log : new StringBuilder();
+        System.out.println(log.append(" failed: " + ex));
+        ex.printStackTrace();
+    }
+
+    /**
+     * Returns the scan that should be worked on next: unfinished scans first,
+     * then the one that was last worked on the longest time ago.
+     * @param exclude users that must not be returned, because they are
+     * already being scanned
+     * @return the next scan, or null if there is none
+     */
+    Scan nextScan (Collection<Long> exclude) {
+        return store.nextScan(exclude);
+    }
     
     //private void insert_fcurrent(int followee, List<Integer> followers) {
     //    for (int follower : followers) {
@@ -130,8 +302,86 @@ public class Scanner implements Runnable {
     //    }
     //}
     
-    private void insert_fhistory_positive(int followee, List<Integer> followers) {
-        for (int follower : followers) {
+    /**
+     * Sets up the in-memory state for a new scan.  The followers which
+     * currently have an open interval are taken from the bitmap of the
+     * previous scan, if there is one and that scan finished.  Otherwise
+     * (e.g. for the first scan after an upgrade, after a scan in legacy mode,
+     * or if the previous scan was abandoned after writing some of its pages)
+     * they are loaded from the follower history, in a single query.
+     * @param previousScan the start of the previous scan of this user,
+     * which is when the followers were last seen if there is no snapshot
+     * @param finished whether the previous scan ran to completion, so
+     * that its bitmap matches the follower history
+     */
+    private FollowerDiff loadDiff (long followee, Date previousScan, boolean finished) {
+        LongBitmap open = finished ? bitmaps.load(followee) : null;
+        if (open == null) {
+            open = LongBitmap.of(store.getOpenFollowers(followee));
+        }
+        Date lastSeen = snapshots != null ? snapshots.getLatestScan(followee) : previousScan;
+        return new FollowerDiff(followee, open, lastSeen);
+    }
+
+    /**
+     * Sets up the in-memory state for a scan that is replayed from the
+     * journal.  The open intervals are loaded from the store, because some
+     * pages of the scan may have been written already: the followers that
+     * they added are then open, and are not added again.
+     * @param previousScan the start of the previous scan, as journaled
+     */
+    private FollowerDiff recoverDiff (long followee, Date previousScan) {
+        LongBitmap open = LongBitmap.of(store.getOpenFollowers(followee));
+        return new FollowerDiff(followee, open, previousScan);
+    }
+
+    /**
+     * Creates new intervals for those followers on the page which did
+     * not have an open interval, in a single write.
+     */
+    private void insert_fhistory_diff (FollowerDiff diff, LongList followers) {
+        long start = System.nanoTime();
+        long[] newFollowers = diff.addPage(followers);
+        DIFF.stop(start);
+        if (newFollowers.length == 0) return;
+        NEW_FOLLOWERS.add(newFollowers.length);
+        Date now = new Date();
+        store.openIntervals(diff.getFollowee(), newFollowers, now);
+        recordCounts(diff.getFollowee(), now, newFollowers.length, 0);
+    }
+
+    /**
+     * Closes the intervals of all followers that were not seen during the scan,
+     * in one batch rather than one update per follower.
+     * <p>
+     * The followers that are still there are not touched at all: that they
+     * were seen in this scan is recorded in the scan's snapshot instead.
+     * Consequently, the <code>last</code> field of an interval is only
+     * maintained when the interval is closed, where it is set to the start
+     * of the previous scan, i.e. the last time the follower was seen.
+     */
+    private void close_fhistory_diff (FollowerDiff diff) {
+        long followee = diff.getFollowee();
+        long start = System.nanoTime();
+        long[] unfollowers = diff.getUnfollowers();
+        DIFF.stop(start);
+        LOST_FOLLOWERS.add(unfollowers.length);
+        Date now = new Date();
+        store.closeIntervals(followee, unfollowers, now, diff.getLastSeen());
+        recordCounts(followee, now, 0, unfollowers.length);
+    }
+
+    private void recordCounts (long followee, Date time, int gained, int lost) {
+        if (counts == null) return;
+        long start = System.nanoTime();
+        counts.record(followee, time, gained, lost);
+        COUNTS.stop(start);
+    }
+
+    private void insert_fhistory_positive(long followee, LongList followers) {
+        int gained = 0;
+        for (int i=0; i<followers.size(); i++) {
+            long follower = followers.get(i);
             List<DBObject> followHistory = fhistory.find(
                 new BasicDBObject("followee",followee)
                           .append("follower",follower))
@@ -144,6 +394,7 @@ public class Scanner implements Runnable {
                                            .append("start",now)
                                            .append("last",now);
                 fhistory.insert(entry);
+                gained++;
             } else if (followHistory.size() > 0) {
                 // been following that user already: update "last" timestamp
                 DBObject firstEntry = followHistory.get(0);
@@ -151,17 +402,21 @@ public class Scanner implements Runnable {
                 fhistory.update(new BasicDBObject("_id",firstEntry.get("_id")), firstEntry);
             }
         }
+        NEW_FOLLOWERS.add(gained);
+        recordCounts(followee, new Date(), gained, 0);
     }
     
     
-    private void insert_fhistory_negative (int followee) {
-        DBObject fscan = fscans.find(new BasicDBObject("user_id",followee)).toArray().get(0);
-        Scan s = new Scan(fscan);
-        fhistory.update(new BasicDBObject("followee",followee)
-                                  .append("end",new BasicDBObject("$exists",false))
-                                  .append("last",new BasicDBObject("$lt",s.scan_started)),
-                        new BasicDBObject("$set",new BasicDBObject("end",new Date())),
-                        false, true);
+    private void insert_fhistory_negative (long followee) {
+        Scan s = store.getScan(followee);
+        Date now = new Date();
+        int lost = fhistory.update(new BasicDBObject("followee",followee)
+                                             .append("end",new BasicDBObject("$exists",false))
+                                             .append("last",new BasicDBObject("$lt",s.scan_started)),
+                                   new BasicDBObject("$set",new BasicDBObject("end",now)),
+                                   false, true).getN();
+        LOST_FOLLOWERS.add(lost);
+        recordCounts(followee, now, 0, lost);
     }
     
 //    private void insert_fhistory_negative_old(int followee) {
@@ -180,14 +435,15 @@ public class Scanner implements Runnable {
 //    }
     
     public void startMonitoring (String screenName) {
-        int user_id = twitter.getId(screenName);
-        if (!fscans.find(new BasicDBObject("user_id",user_id)).hasNext())
-            fscans.insert(new BasicDBObject("user_id",user_id));
+        long user_id = twitter.getId(screenName);
+        store.addScan(user_id);
     }
     
     public static void main(String[] args) {
         Scanner s = new Scanner();
-        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
-        scheduler.scheduleWithFixedDelay(s, 0, 60, TimeUnit.SECONDS);
+        // four workers per access token keep every token's budget in use
+        int threads = Integer.getInteger("followt.scanner.threads",
+                                         4 * Twitter.getInstance().getCredentialCount());
+        new ScanScheduler(s, threads).start();
     }
 }
@@ -0,0 +1,217 @@
+package net.followt;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.bson.types.ObjectId;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+/**
+ * Creates the indexes that the queries of the Scanner, FollowT and UserDB
+ * depend on, and verifies with explain() that each typical query is actually
+ * answered from an index, without scanning the collection and without
+ * sorting in memory.
+ * <p>
+ * What happens if a query is not covered depends on the system property
+ * followt.schema.check: "warn" (the default) prints a warning, "fail" throws
+ * an IllegalStateException so that the process does not start, and "off"
+ * skips the explain checks altogether.  The indexes are created in any case.
+ *
+ * @author drmirror
+ */
+public class Schema {
+
+    private final static String CHECK = System.getProperty("followt.schema.check", "warn");
+
+    private static boolean done = false;
+
+    /**
+     * Makes sure the indexes exist and checks the query plans, once per
+     * process.  Called by all components when they connect to the database.
+     */
+    public static synchronized void ensure (DB db) {
+        if (done) return;
+        ensureIndexes(db);
+        if (!"off".equals(CHECK)) {
+            List<String> problems = checkQueries(db);
+            for (String p : problems) {
+                System.out.println("WARNING: " + p);
+            }
+            if (!problems.isEmpty() && "fail".equals(CHECK)) {
+                throw new IllegalStateException("query plans not covered by indexes: " + problems);
+            }
+        }
+        done = true;
+    }
+
+    private static void ensureIndexes (DB db) {
+        DBCollection fhistory = db.getCollection("fhistory");
+        fhistory.createIndex(new BasicDBObject("followee",1).append("follower",1).append("end",1));
+        // the _id is needed for the keyset pagination in ReportStream
+        fhistory.createIndex(new BasicDBObject("followee",1).append("start",1).append("_id",1));
+        fhistory.createIndex(new BasicDBObject("followee",1).append("end",1).append("_id",1));
+        dropObsoleteIndexes(fhistory);
+
+        DBCollection fscans = db.getCollection("fscans");
+        fscans.createIndex(new BasicDBObject("next_cursor",-1).append("scan_ended",1));
+        fscans.createIndex(new BasicDBObject("user_id",1));
+
+        db.getCollection("users").createIndex(new BasicDBObject("screen_name",1));
+
+        db.getCollection("fsnapshots").createIndex(
+            new BasicDBObject("followee",1).append("scan_started",1).append("chunk",1));
+
+        db.getCollection("fcounts").createIndex(
+            new BasicDBObject("followee",1).append("hour",1),
+            new BasicDBObject("unique",true));
+    }
+
+    /**
+     * Drops the indexes on fhistory that earlier versions created and that
+     * the indexes above have replaced, so that existing deployments don't
+     * maintain both on every write.  Dropping an index cannot be undone
+     * (see the README on how to recreate them), so this is only done when
+     * the replacement is actually there, and the queries are never left
+     * without an index.
+     */
+    private static void dropObsoleteIndexes (DBCollection fhistory) {
+        for (String name : getObsoleteIndexes(fhistory.getIndexInfo())) {
+            System.out.println("dropping obsolete index " + name + " on fhistory");
+            fhistory.dropIndex(name);
+        }
+    }
+
+    /**
+     * Returns the names of the obsolete indexes among the given ones
+     * (as returned by getIndexInfo()) whose replacement exists.
+     */
+    static List<String> getObsoleteIndexes (List<DBObject> indexes) {
+        boolean byStart = false, byEnd = false;
+        for (DBObject index : indexes) {
+            DBObject key = (DBObject)index.get("key");
+            if (isKey(key, "followee", "start", "_id")) byStart = true;
+            if (isKey(key, "followee", "end", "_id")) byEnd = true;
+        }
+        List<String> result = new ArrayList<String>();
+        for (DBObject index : indexes) {
+            DBObject key = (DBObject)index.get("key");
+            if ((byStart && isKey(key, "followee", "start")) || (byEnd && isKey(key, "followee", "end"))) {
+                result.add((String)index.get("name"));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns true if the index key consists of exactly the given fields,
+     * in this order, all ascending.
+     */
+    private static boolean isKey (DBObject key, String... fields) {
+        if (key == null || !new ArrayList<String>(key.keySet()).equals(Arrays.asList(fields))) {
+            return false;
+        }
+        for (String f : fields) {
+            Object direction = key.get(f);
+            if (!(direction instanceof Number) || ((Number)direction).intValue() != 1) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Runs explain() on the typical shape of each query the application issues.
+     * @return a description of each query that is not properly supported
+     * by an index
+     */
+    static List<String> checkQueries (DB db) {
+        List<String> problems = new ArrayList<String>();
+        Date now = new Date();
+        DBCollection fhistory = db.getCollection("fhistory");
+        DBCollection fscans = db.getCollection("fscans");
+
+        check(problems, "fhistory open intervals",
+              fhistory.find(new BasicDBObject("followee",0L)
+                                      .append("end",new BasicDBObject("$exists",false))));
+        check(problems, "fhistory intervals of a follower",
+              fhistory.find(new BasicDBObject("followee",0L)
+                                      .append("follower",new BasicDBObject("$in",new long[] { 1, 2 }))
+                                      .append("end",new BasicDBObject("$exists",false))));
+        check(problems, "fhistory recent followers",
+              fhistory.find(new BasicDBObject("followee",0L)
+                                      .append("start",new BasicDBObject("$gte",now)))
+                      .sort(new BasicDBObject("start",1)));
+        check(problems, "fhistory recent unfollowers",
+              fhistory.find(new BasicDBObject("followee",0L)
+                                      .append("end",new BasicDBObject("$gte",now)))
+                      .sort(new BasicDBObject("end",1)));
+        check(problems, "fhistory report page",
+              fhistory.find(new BasicDBObject("followee",0L)
+                                      .append("start",new BasicDBObject("$gt",now)))
+                      .sort(new BasicDBObject("start",1).append("_id",1))
+                      .limit(100));
+        check(problems, "fhistory report page continuation",
+              fhistory.find(new BasicDBObject("followee",0L)
+                                      .append("end",now)
+                                      .append("_id",new BasicDBObject("$gt",new ObjectId())))
+                      .sort(new BasicDBObject("_id",1))
+                      .limit(100));
+        check(problems, "fscans next scan",
+              fscans.find(new BasicDBObject())
+                    .sort(new BasicDBObject("next_cursor",-1).append("scan_ended",1))
+                    .limit(1));
+        check(problems, "fscans by user",
+              fscans.find(new BasicDBObject("user_id",0L)));
+        check(problems, "users by screen name",
+              db.getCollection("users").find(new BasicDBObject("screen_name","")));
+        check(problems, "fsnapshots of a scan",
+              db.getCollection("fsnapshots").find(new BasicDBObject("followee",0L)
+                                                            .append("scan_started",now))
+                                            .sort(new BasicDBObject("chunk",1)));
+        check(problems, "fcounts series",
+              db.getCollection("fcounts").find(new BasicDBObject("followee",0L)
+                                                         .append("hour",new BasicDBObject("$gte",now)
+                                                                                   .append("$lt",now)))
+                                         .sort(new BasicDBObject("hour",1)));
+        return problems;
+    }
+
+    private static void check (List<String> problems, String name, DBCursor query) {
+        DBObject plan = query.explain();
+        if (plan.containsField("queryPlanner")) {
+            // MongoDB 3.0 and later: a tree of stages
+            DBObject winning = (DBObject)((DBObject)plan.get("queryPlanner")).get("winningPlan");
+            if (hasStage(winning, "COLLSCAN")) problems.add(name + ": collection scan");
+            if (hasStage(winning, "SORT")) problems.add(name + ": in-memory sort");
+        } else {
+            // MongoDB 2.x: the cursor type and a flag for in-memory sorts
+            String cursor = (String)plan.get("cursor");
+            if (cursor != null && cursor.startsWith("BasicCursor")) {
+                problems.add(name + ": collection scan");
+            }
+            if (Boolean.TRUE.equals(plan.get("scanAndOrder"))) {
+                problems.add(name + ": in-memory sort");
+            }
+        }
+    }
+
+    private static boolean hasStage (DBObject stage, String type) {
+        if (stage == null) return false;
+        if (type.equals(stage.get("stage"))) return true;
+        if (hasStage((DBObject)stage.get("inputStage"), type)) return true;
+        Object inputs = stage.get("inputStages");
+        if (inputs instanceof BasicDBList) {
+            for (Object o : (BasicDBList)inputs) {
+                if (hasStage((DBObject)o, type)) return true;
+            }
+        }
+        return false;
+    }
+
+}
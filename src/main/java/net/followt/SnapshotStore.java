@@ -0,0 +1,229 @@
+package net.followt;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+import net.followt.util.DeltaCodec;
+import net.followt.util.LongList;
+
+/**
+ * Keeps the complete follower set of each finished scan as a compressed
+ * snapshot in the <code>fsnapshots</code> collection, keyed by the followee
+ * and the scan_started time of the scan in fscans.
+ * <p>
+ * The follower ids are sorted, delta-encoded and varint-packed (see
+ * DeltaCodec), so a snapshot costs about 2-4 bytes per follower and is
+ * written sequentially as a handful of documents, instead of touching one
+ * fhistory document per follower.  Large follower sets are split into
+ * chunks of CHUNK_SIZE ids to stay below MongoDB's document size limit.
+ * <p>
+ * Snapshots can be compared with each other, and the follower history
+ * of a user can be reconstructed from its snapshots.
+ *
+ * @author drmirror
+ */
+public class SnapshotStore {
+
+    /**
+     * Maximum number of ids per document.  Even in the worst case of
+     * 10 bytes per id, this stays well below 16 MB.
+     */
+    public final static int CHUNK_SIZE = 1000000;
+
+    private DBCollection fsnapshots;
+
+    public SnapshotStore (DB db) {
+        fsnapshots = db.getCollection("fsnapshots");
+    }
+
+    /**
+     * The difference between two snapshots of the same user.
+     */
+    public static class Diff {
+        /** followers contained in the newer snapshot, but not in the older one */
+        public long[] added;
+        /** followers contained in the older snapshot, but not in the newer one */
+        public long[] removed;
+    }
+
+    /**
+     * Stores the follower set of a finished scan.  An existing snapshot
+     * with the same key is replaced.
+     * @param followee the user whose followers were scanned
+     * @param scanStarted the start time of the scan
+     * @param followers the followers, sorted and without duplicates
+     */
+    public void save (long followee, Date scanStarted, long[] followers) {
+        BasicDBObject key = new BasicDBObject("followee", followee)
+                                      .append("scan_started", scanStarted);
+        fsnapshots.remove(key);
+        int chunks = Math.max(1, (followers.length + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        List<DBObject> docs = new ArrayList<DBObject>(chunks);
+        for (int i=0; i<chunks; i++) {
+            int from = i * CHUNK_SIZE;
+            int to = Math.min(from + CHUNK_SIZE, followers.length);
+            docs.add(new BasicDBObject("followee", followee)
+                               .append("scan_started", scanStarted)
+                               .append("chunk", i)
+                               .append("chunks", chunks)
+                               .append("count", followers.length)
+                               .append("ids", DeltaCodec.encode(followers, from, to)));
+        }
+        fsnapshots.insert(docs);
+    }
+
+    /**
+     * Loads a snapshot.
+     * @return the followers in ascending order, or null if there is no
+     * (complete) snapshot for the given scan
+     */
+    public long[] load (long followee, Date scanStarted) {
+        DBCursor c = fsnapshots.find(new BasicDBObject("followee", followee)
+                                               .append("scan_started", scanStarted))
+                               .sort(new BasicDBObject("chunk", 1));
+        List<long[]> parts = new ArrayList<long[]>();
+        int chunks = -1;
+        for (DBObject o : c) {
+            chunks = ((Number)o.get("chunks")).intValue();
+            parts.add(DeltaCodec.decode((byte[])o.get("ids")));
+        }
+        if (parts.isEmpty() || parts.size() != chunks) return null;
+        return DeltaCodec.concat(parts.toArray(new long[parts.size()][]));
+    }
+
+    /**
+     * Returns the start times of all scans of the given user for which
+     * snapshots exist, in chronological order.
+     */
+    public List<Date> getScans (long followee) {
+        DBCursor c = fsnapshots.find(new BasicDBObject("followee", followee)
+                                               .append("chunk", 0),
+                                     new BasicDBObject("scan_started", 1))
+                               .sort(new BasicDBObject("scan_started", 1));
+        List<Date> result = new ArrayList<Date>();
+        for (DBObject o : c) {
+            result.add((Date)o.get("scan_started"));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the start time of the most recent scan of the given user
+     * for which a snapshot exists, or null if there is none.
+     */
+    public Date getLatestScan (long followee) {
+        DBCursor c = fsnapshots.find(new BasicDBObject("followee", followee)
+                                               .append("chunk", 0),
+                                     new BasicDBObject("scan_started", 1))
+                               .sort(new BasicDBObject("scan_started", -1))
+                               .limit(1);
+        return c.hasNext() ? (Date)c.next().get("scan_started") : null;
+    }
+
+    /**
+     * Computes the difference between two follower sets, both sorted
+     * in ascending order, with a single merge pass.
+     */
+    public static Diff diff (long[] older, long[] newer) {
+        LongList added = new LongList();
+        LongList removed = new LongList();
+        int i = 0, j = 0;
+        while (i < older.length || j < newer.length) {
+            if (j == newer.length || (i < older.length && older[i] < newer[j])) {
+                removed.add(older[i++]);
+            } else if (i == older.length || newer[j] < older[i]) {
+                added.add(newer[j++]);
+            } else {
+                i++;
+                j++;
+            }
+        }
+        Diff result = new Diff();
+        result.added = added.toArray();
+        result.removed = removed.toArray();
+        return result;
+    }
+
+    /**
+     * Compares the snapshots of two scans of the same user.
+     * @return the difference, or null if one of the snapshots does not exist
+     */
+    public Diff diff (long followee, Date older, Date newer) {
+        long[] a = load(followee, older);
+        long[] b = load(followee, newer);
+        if (a == null || b == null) return null;
+        return diff(a, b);
+    }
+
+    /**
+     * Reconstructs the follower history of the given user from its snapshots
+     * and inserts the resulting intervals into the target collection, in the
+     * same format as fhistory.  A follower's interval starts at the first scan
+     * that contains it, and ends at the first scan that does not contain it
+     * any more; <code>last</code> is the last scan that contained it.
+     * Only two snapshots are held in memory at any time.
+     * @return the number of intervals written
+     */
+    public int rebuildHistory (long followee, DBCollection target) {
+        long[] current = new long[0];
+        long[] starts = new long[0];
+        Date previous = null;
+        int count = 0;
+        List<DBObject> batch = new ArrayList<DBObject>();
+        for (Date scan : getScans(followee)) {
+            long[] next = load(followee, scan);
+            if (next == null) continue;
+            long[] nextStarts = new long[next.length];
+            int i = 0, j = 0;
+            while (i < current.length || j < next.length) {
+                if (j == next.length || (i < current.length && current[i] < next[j])) {
+                    // follower disappeared in this scan
+                    batch.add(interval(followee, current[i], starts[i], previous, scan));
+                    i++;
+                } else if (i == current.length || next[j] < current[i]) {
+                    nextStarts[j++] = scan.getTime();
+                } else {
+                    nextStarts[j++] = starts[i++];
+                }
+                if (batch.size() >= 1000) {
+                    target.insert(batch);
+                    count += batch.size();
+                    batch.clear();
+                }
+            }
+            current = next;
+            starts = nextStarts;
+            previous = scan;
+        }
+        for (int i=0; i<current.length; i++) {
+            batch.add(interval(followee, current[i], starts[i], previous, null));
+            if (batch.size() >= 1000) {
+                target.insert(batch);
+                count += batch.size();
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            target.insert(batch);
+            count += batch.size();
+        }
+        return count;
+    }
+
+    private static DBObject interval (long followee, long follower, long start, Date last, Date end) {
+        BasicDBObject result = new BasicDBObject("followee", followee)
+                                         .append("follower", follower)
+                                         .append("start", new Date(start))
+                                         .append("last", last);
+        if (end != null) result.append("end", end);
+        return result;
+    }
+
+}
@@ -0,0 +1,67 @@
+package net.followt;
+
+import java.io.IOException;
+import java.net.UnknownHostException;
+
+import com.mongodb.DB;
+import com.mongodb.MongoClient;
+
+/**
+ * Provides the FollowerStore that all components of a process share.
+ * <p>
+ * The system property followt.store selects the implementation: "mongo"
+ * (the default) for MongoFollowerStore on the local MongoDB, or "local"
+ * for LocalFollowerStore.  Features that only exist on MongoDB (the
+ * follower snapshots and the hourly counters) are only available if
+ * getMongoDB() returns a database.  Store operations are timed by a
+ * MeteredFollowerStore.  The name of the MongoDB database
+ * is "followt", unless set with the system property followt.mongo.db.
+ *
+ * @author drmirror
+ */
+public class Storage {
+
+    private static FollowerStore store = null;
+    private static DB db = null;
+
+    public static synchronized FollowerStore getStore() {
+        if (store == null) {
+            if ("local".equals(System.getProperty("followt.store", "mongo"))) {
+                try {
+                    store = new MeteredFollowerStore(new LocalFollowerStore());
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            } else {
+                store = new MeteredFollowerStore(new MongoFollowerStore(getMongoDB()));
+            }
+        }
+        return store;
+    }
+
+    /**
+     * Replaces the shared store, e.g. with one that collects statistics.
+     * Must be called before any component uses the store.
+     */
+    public static synchronized void setStore (FollowerStore store) {
+        Storage.store = store;
+    }
+
+    /**
+     * Returns the MongoDB database, or null if the local store is used.
+     */
+    public static synchronized DB getMongoDB() {
+        if ("local".equals(System.getProperty("followt.store", "mongo"))) return null;
+        if (db == null) {
+            try {
+                MongoClient client = new MongoClient();
+                db = client.getDB(System.getProperty("followt.mongo.db", "followt"));
+                Schema.ensure(db);
+            } catch (UnknownHostException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return db;
+    }
+
+}
@@ -0,0 +1,151 @@
+package net.followt;
+
+import java.util.Date;
+
+/**
+ * A rate limiter that hands out a fixed number of tokens per time window,
+ * modeled after the way Twitter limits API calls: each endpoint allows a
+ * certain number of requests per 15-minute window, and the window starts
+ * with the first request made in it.
+ * <p>
+ * Until the first response arrives, the window is estimated locally.
+ * After that, the bucket follows what Twitter reports in the rate limit
+ * headers of each response (see update()), so that waiting ends exactly
+ * when Twitter resets the window.
+ * <p>
+ * This class is thread-safe.
+ *
+ * @author drmirror
+ */
+public class TokenBucket {
+
+    public final static long FIFTEEN_MINUTES = 15 * 60 * 1000;
+
+    /**
+     * Safety margin when waiting for a reset reported by Twitter,
+     * to allow for clock differences.
+     */
+    private final static long RESET_MARGIN = 1000;
+
+    private final String name;
+    private int capacity;
+    private final long window;
+
+    private int tokens;
+    private long windowEnd = 0;
+
+    /**
+     * @param name a name for log messages, usually the endpoint
+     * @param capacity the number of tokens available per window
+     * @param window the length of a window in milliseconds
+     */
+    public TokenBucket (String name, int capacity, long window) {
+        this.name = name;
+        this.capacity = capacity;
+        this.window = window;
+        this.tokens = capacity;
+    }
+
+    /**
+     * Takes a token from the bucket, waiting for the next window
+     * if there are none left in the current one.
+     */
+    public synchronized void acquire() throws InterruptedException {
+        while (!tryAcquire()) {
+            wait(Math.max(1, windowEnd - System.currentTimeMillis()));
+        }
+    }
+
+    /**
+     * Takes a token from the bucket if one is available right now.
+     * @return true if a token was taken
+     */
+    public synchronized boolean tryAcquire() {
+        refill();
+        if (tokens == 0) return false;
+        long now = System.currentTimeMillis();
+        if (tokens == capacity && windowEnd <= now) {
+            // first request of a new window
+            windowEnd = now + window;
+        }
+        tokens--;
+        return true;
+    }
+
+    /**
+     * Waits until at least one token is available, without taking it.
+     */
+    public synchronized void awaitAvailable() throws InterruptedException {
+        while (available() == 0) {
+            wait(Math.max(1, windowEnd - System.currentTimeMillis()));
+        }
+    }
+
+    /**
+     * Returns the number of tokens that are available right now.
+     */
+    public synchronized int available() {
+        refill();
+        return tokens;
+    }
+
+    /**
+     * Updates the state of this bucket from the rate limit headers
+     * of a response.
+     * @param limit the number of requests per window (x-rate-limit-limit)
+     * @param remaining requests left in this window (x-rate-limit-remaining)
+     * @param reset the end of the window in milliseconds since the epoch
+     * (x-rate-limit-reset, which is in seconds)
+     */
+    public synchronized void update (int limit, int remaining, long reset) {
+        capacity = limit;
+        // requests that are in flight have taken their token already,
+        // but may not be counted by Twitter yet
+        tokens = Math.min(remaining, tokens);
+        if (reset > System.currentTimeMillis()) {
+            windowEnd = reset + RESET_MARGIN;
+        }
+        notifyAll();
+    }
+
+    /**
+     * Marks this bucket as empty until the given time, after Twitter
+     * has rejected a request because of the rate limit.
+     * @param reset the end of the window in milliseconds since the epoch,
+     * or 0 if unknown
+     */
+    public synchronized void exhaust (long reset) {
+        tokens = 0;
+        long now = System.currentTimeMillis();
+        windowEnd = reset > now ? reset + RESET_MARGIN : Math.max(windowEnd, now + window);
+    }
+
+    /**
+     * Returns the current state of this bucket.
+     */
+    public synchronized RateLimitStatus getStatus() {
+        refill();
+        return new RateLimitStatus(name, capacity, tokens,
+                                   windowEnd > System.currentTimeMillis() ? new Date(windowEnd) : null);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    private void refill() {
+        if (tokens < capacity && System.currentTimeMillis() >= windowEnd) {
+            tokens = capacity;
+            notifyAll();
+        }
+    }
+
+    public String toString() {
+        return getStatus().toString();
+    }
+
+}
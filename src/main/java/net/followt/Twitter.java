@@ -1,35 +1,66 @@
 package net.followt;
 
 import java.io.IOException;
-import java.util.ArrayList;
+import java.io.InputStream;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 
-import org.scribe.builder.ServiceBuilder;
-import org.scribe.builder.api.TwitterApi;
 import org.scribe.model.OAuthRequest;
-import org.scribe.model.Response;
-import org.scribe.model.Token;
 import org.scribe.model.Verb;
-import org.scribe.oauth.OAuthService;
 
 import com.mongodb.BasicDBList;
 import com.mongodb.DBObject;
 import com.mongodb.util.JSON;
 
+import net.followt.util.LongList;
+
 /**
  * Provides the interface for sending requests to Twitter and receiving responses.
  * There is a low-level method, request(String), which can send arbitrary requests,
  * and several higher-level methods such as getId() or getScreenName().
  * <p>
  * This class does not perform any caching by itself; it only encapsulates
- * the actual requests to the Twitter API.
+ * the actual requests to the Twitter API.  It does enforce the rate limits
+ * of the endpoints in Twitter.Endpoint: each of them has a TokenBucket, and
+ * requests wait until the bucket has budget for them.  The buckets follow
+ * the x-rate-limit-* headers of every response, so that we go right up to
+ * the limit, and wait exactly until the reset once it is reached.
+ * <p>
+ * Since Twitter counts requests per access token, several sets of credentials
+ * can be configured, and each request is sent with the one that has the most
+ * budget left for its endpoint (see CredentialPool).  A credential that
+ * Twitter no longer accepts (an authentication or suspension error) is
+ * quarantined for QUARANTINE_TIME, and the request is retried with another
+ * one; the last credential in service is never quarantined.  Transient
+ * errors (connection errors, timeouts and server errors) say nothing about
+ * the credential, so the request is retried up to MAX_RETRIES times, after
+ * a delay that starts at RETRY_DELAY and doubles with each retry.
  * <p>
  * For authorization, a file twitter.properties must be provided with four
  * values, api_key, api_secret, access_token, and access_secret. These values
- * can be obtained by registering on Twitter's developer website.
+ * can be obtained by registering on Twitter's developer website.  Additional
+ * credentials are added with numbered keys, such as api_key.2, api_secret.2,
+ * access_token.2, and access_secret.2.
+ * <p>
+ * Requests are sent by a TwitterTransport, which does not need a thread per
+ * request in flight.  The methods ending in Async return a CompletableFuture
+ * right away; while they wait for rate limit budget, they do not block a
+ * thread either.  The other methods wait for the result.
+ * <p>
+ * The API root URL can be changed with api_url in twitter.properties, or
+ * with the system property followt.twitter.url, e.g. to run against the
+ * TwitterSimulator.
  * 
  * @author drmirror
  */
@@ -38,100 +69,407 @@ public class Twitter {
     public final static int MAX_LOOKUPS = 100;
     public final static int MAX_FOLLOWER_BATCHES = 15;
     
-    private static OAuthService oauthService;
-    private static Token accessToken;
+    /**
+     * The error code with which users/lookup answers if none of the
+     * requested users exist (any more).
+     */
+    public final static int NO_MATCHES = 17;
+    
+    /**
+     * How long a credential is taken out of service after an error.
+     */
+    public final static long QUARANTINE_TIME = 5 * 60 * 1000;
+    
+    /**
+     * How often a request that failed with a transient error is retried.
+     */
+    public final static int MAX_RETRIES = 3;
+    
+    /**
+     * How long to wait before the first retry of a transient error, in
+     * milliseconds.
+     */
+    public final static long RETRY_DELAY = Long.getLong("followt.twitter.retry.delay", 500);
+    
+    public final static String DEFAULT_URL = "https://api.twitter.com/1.1/";
+    
+    private final static Metrics.Timer OTHER_REQUESTS = Metrics.timer("twitter.other");
+    private final static Metrics.Timer DECODE = Metrics.timer("twitter.followers_ids.decode");
+    private final static Metrics.Counter RATE_LIMITED = Metrics.counter("twitter.rate_limited");
+    private final static Metrics.Counter ERRORS = Metrics.counter("twitter.errors");
+    
+    /**
+     * The API endpoints we use, with their rate limits (requests per
+     * 15-minute window, for user authentication).
+     */
+    public enum Endpoint {
+        FOLLOWERS_IDS ("followers/ids", 15),
+        USERS_LOOKUP  ("users/lookup", 180);
+        
+        private final String path;
+        private final int limit;
+        private final Metrics.Timer requests;
+        private final Metrics.Timer waits;
+        
+        private Endpoint (String path, int limit) {
+            this.path = path;
+            this.limit = limit;
+            String name = "twitter." + path.replace('/', '_');
+            this.requests = Metrics.timer(name);
+            this.waits = Metrics.timer(name + ".wait");
+        }
+        
+        public String getPath() {
+            return path;
+        }
+        
+        public int getLimit() {
+            return limit;
+        }
+        
+        /**
+         * Returns the endpoint that the given command (a URL relative
+         * to the API root) refers to, or null if it is not rate-limited by us.
+         */
+        public static Endpoint forCommand (String command) {
+            for (Endpoint e : values()) {
+                if (command.startsWith(e.path)) return e;
+            }
+            return null;
+        }
+    }
+    
+    private CredentialPool credentials;
+    private String url;
+    private TwitterTransport transport;
+    
+    /**
+     * Retries requests that had to wait for rate limit budget.
+     */
+    private final static ScheduledExecutorService budgetWaits =
+        Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread (Runnable r) {
+                Thread result = new Thread(r, "twitter-budget");
+                result.setDaemon(true);
+                return result;
+            }
+        });
     
     private static Twitter instance = null;
     
     /**
-     * Private constructor to enforce singleton pattern.  Use Twitter.getInstance()
-     * to retrieve the only object of this class.
+     * Use Twitter.getInstance() to retrieve the object of this class that
+     * the application shares.
+     * @param url the API root URL, ending with a slash
      */
-    private Twitter (String api_key, String api_secret,
-                     String access_token, String access_secret) {
-        oauthService = new ServiceBuilder()
-            .provider(TwitterApi.class)
-            .apiKey(api_key)
-            .apiSecret(api_secret)
-            .build();
-        accessToken = new Token (access_token, access_secret);
+    Twitter (CredentialPool credentials, String url) {
+        this.credentials = credentials;
+        this.url = url;
+        this.transport = new TwitterTransport(url);
     }
     
     /**
      * Sends a single GET request to Twitter by appending the given command to
-     * the URL "https://api.twitter.com/1.1/".  The JSON response is parsed
+     * the API root URL (see DEFAULT_URL).  The JSON response is parsed
      * into a DBObject and returned. 
      * @param command
      * @return the parsed JSON response
      * @throws TwitterException or subtype thereof
      */
     public DBObject request (String command) {
-
-        OAuthRequest request = new OAuthRequest(Verb.GET, "https://api.twitter.com/1.1/" + command);
-        oauthService.signRequest(accessToken, request);
-        Response response = request.send();
-        if (!response.isSuccessful()) {
-            throw TwitterException.create(response);
-        }
-        DBObject result = (DBObject)JSON.parse(response.getBody());
+        return join(requestAsync(command));
+    }
+    
+    /**
+     * Like request(String), but returns immediately.
+     */
+    public CompletableFuture<DBObject> requestAsync (String command) {
+        return sendAsync(Endpoint.forCommand(command), Verb.GET, url + command, null)
+            .thenApply(new Function<TwitterResponse,DBObject>() {
+                public DBObject apply (TwitterResponse response) {
+                    return (DBObject)JSON.parse(response.getBody());
+                }
+            });
+    }
+    
+    /**
+     * Waits until the given endpoint has budget for another request
+     * with any of the credentials, without using it up.
+     */
+    public void awaitBudget (Endpoint endpoint) throws InterruptedException {
+        credentials.awaitBudget(endpoint);
+    }
+    
+    /**
+     * Returns the current rate limit state of the given endpoint,
+     * as last reported by Twitter, summed over all credentials that
+     * are currently in service.
+     */
+    public RateLimitStatus getRateLimitStatus (Endpoint endpoint) {
+        return credentials.getStatus(endpoint);
+    }
+    
+    CredentialPool getCredentialPool() {
+        return credentials;
+    }
+    
+    /**
+     * Returns the number of configured credentials.
+     */
+    public int getCredentialCount() {
+        return credentials.size();
+    }
+    
+    /**
+     * Signs and sends the given request with the credential that has the
+     * most budget left for the given endpoint, waiting for budget first
+     * if necessary.  If Twitter rejects the request because of the rate
+     * limit, or the credential turns out to be unusable, the request is
+     * retried with the next best credential, at most once per credential.
+     * Transient errors are retried after a delay, at most MAX_RETRIES times.
+     * @param endpoint the endpoint, or null if no rate limit applies
+     * @param body the body parameters of the request, or null
+     * @return a future of the response, which is guaranteed to be
+     * successful; otherwise, the future completes with a TwitterException
+     * or subtype thereof
+     */
+    private CompletableFuture<TwitterResponse> sendAsync (Endpoint endpoint, Verb verb,
+                                                          String url, Map<String,String> body) {
+        CompletableFuture<TwitterResponse> result = new CompletableFuture<TwitterResponse>();
+        attempt(endpoint, verb, url, body, 1, 0, System.nanoTime(), result);
         return result;
-        
+    }
+    
+    /**
+     * Makes one attempt of sendAsync(), and completes <code>result</code>
+     * unless another attempt is made.  If no credential has budget, the
+     * attempt is rescheduled for when one might have, rather than waited for.
+     * @param attempt the number of this attempt, counting those that were
+     * made with another credential
+     * @param retries the number of transient errors so far
+     * @param waitStart when the attempt started waiting for budget
+     */
+    private void attempt (final Endpoint endpoint, final Verb verb, final String url,
+                          final Map<String,String> body, final int attempt, final int retries,
+                          final long waitStart, final CompletableFuture<TwitterResponse> result) {
+        try {
+            final Credential credential = credentials.tryAcquire(endpoint);
+            if (credential == null) {
+                budgetWaits.schedule(new Runnable() {
+                    public void run() {
+                        attempt(endpoint, verb, url, body, attempt, retries, waitStart, result);
+                    }
+                }, credentials.waitTime(endpoint), TimeUnit.MILLISECONDS);
+                return;
+            }
+            if (endpoint != null) endpoint.waits.stop(waitStart);
+            OAuthRequest request = new OAuthRequest(verb, url);
+            if (body != null) {
+                for (Map.Entry<String,String> e : body.entrySet()) {
+                    request.addBodyParameter(e.getKey(), e.getValue());
+                }
+            }
+            credential.sign(request);
+            final long start = System.nanoTime();
+            transport.send(request).whenComplete(new BiConsumer<TwitterResponse,Throwable>() {
+                public void accept (TwitterResponse response, Throwable error) {
+                    if (error != null) {
+                        ERRORS.increment();
+                        if (!retryLater()) {
+                            result.completeExceptionally(
+                                new TwitterException("cannot connect: " + unwrap(error)));
+                        }
+                        return;
+                    }
+                    (endpoint != null ? endpoint.requests : OTHER_REQUESTS).stop(start);
+                    if (endpoint != null) updateRateLimit(credential.getBucket(endpoint), response);
+                    if (response.isSuccessful()) {
+                        result.complete(response);
+                        return;
+                    }
+                    TwitterException ex = TwitterException.create(response);
+                    if (ex instanceof RateLimitExceededException) {
+                        RATE_LIMITED.increment();
+                        if (endpoint != null) {
+                            credential.getBucket(endpoint).exhaust(((RateLimitExceededException)ex).getReset());
+                        }
+                        if (retry(attempt)) return;
+                    } else {
+                        ERRORS.increment();
+                        if (response.getCode() >= 500) {
+                            if (retryLater()) return;
+                        } else if (isCredentialFailure(ex)) {
+                            if (credentials.quarantine(credential, QUARANTINE_TIME) && retry(attempt)) return;
+                        }
+                    }
+                    result.completeExceptionally(ex);
+                }
+                
+                /**
+                 * Makes the next attempt, with another credential if there
+                 * is one, unless this was the last one.
+                 */
+                private boolean retry (int attempt) {
+                    if (attempt >= credentials.size() + 1) return false;
+                    attempt(endpoint, verb, url, body, attempt + 1, retries, System.nanoTime(), result);
+                    return true;
+                }
+                
+                /**
+                 * Schedules the next attempt after a transient error, unless
+                 * there have been MAX_RETRIES of them already.
+                 */
+                private boolean retryLater() {
+                    if (retries >= MAX_RETRIES) return false;
+                    budgetWaits.schedule(new Runnable() {
+                        public void run() {
+                            attempt(endpoint, verb, url, body, attempt, retries + 1, System.nanoTime(), result);
+                        }
+                    }, RETRY_DELAY << retries, TimeUnit.MILLISECONDS);
+                    return true;
+                }
+            });
+        } catch (RuntimeException ex) {
+            result.completeExceptionally(ex);
+        }
+    }
+    
+    /**
+     * Waits for the given future, and throws the TwitterException it
+     * failed with, if any.
+     */
+    static <T> T join (CompletableFuture<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new TwitterException("interrupted while waiting for Twitter");
+        } catch (ExecutionException ex) {
+            Throwable cause = unwrap(ex);
+            if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+            throw new TwitterException(cause.toString());
+        }
+    }
+    
+    /**
+     * Returns the actual cause of a failed future.
+     */
+    static Throwable unwrap (Throwable error) {
+        while ((error instanceof CompletionException || error instanceof ExecutionException)
+               && error.getCause() != null) {
+            error = error.getCause();
+        }
+        return error;
+    }
+    
+    /**
+     * Returns true if the given error indicates that Twitter does not accept
+     * the credential any more, rather than a problem with the request itself.
+     * Note that a 401 without an error code is not counted, because that is
+     * what followers/ids returns for protected accounts.
+     */
+    private boolean isCredentialFailure (TwitterException ex) {
+        switch (ex.getCode()) {
+        case 32:  // could not authenticate you
+        case 64:  // account is suspended
+        case 89:  // invalid or expired token
+        case 326: // account is temporarily locked
+            return true;
+        default:
+            return false;
+        }
+    }
+    
+    /**
+     * Updates the given bucket from the rate limit headers of a response.
+     */
+    private void updateRateLimit (TokenBucket bucket, TwitterResponse response) {
+        String limit = response.getHeader("x-rate-limit-limit");
+        String remaining = response.getHeader("x-rate-limit-remaining");
+        long reset = TwitterException.getResetHeader(response);
+        if (limit == null || remaining == null || reset == 0) return;
+        try {
+            bucket.update(Integer.parseInt(limit.trim()), Integer.parseInt(remaining.trim()), reset);
+        } catch (NumberFormatException ex) {
+            // ignore malformed headers, keep our own estimate
+        }
     }
     
     /**
      * Translates a batch of numeric user ids into screen names,
-     * by looking them up via the Twitter API.  The list may not
+     * by looking them up via the Twitter API.  The array may not
      * be longer than MAX_LOOKUPS users (currently 100).
+     * <p>
+     * This method is kept for compatibility with callers that still use
+     * 32-bit ids; new code should use lookupScreenNames(long[]).
      * @param ids the user ids to be looked up
      * @return a map from user ids to the corresponding screen names
      */
-    public Map<Integer,String> lookupIds (List<Integer> ids) {
+    public Map<Integer,String> lookupIds (int[] ids) {
         if (ids == null) throw new IllegalArgumentException();
-        int[] args = new int[ids.size()];
-        for (int i=0; i<ids.size(); i++) {
-           args[i] = ids.get(i);
+        long[] args = new long[ids.length];
+        for (int i=0; i<ids.length; i++) {
+            args[i] = ids[i];
         }
-        return lookupIds(args);
+        String[] names = lookupScreenNames(args);
+        Map<Integer,String> m = new HashMap<Integer,String>();
+        for (int i=0; i<ids.length; i++) {
+            if (names[i] != null) m.put(ids[i], names[i]);
+        }
+        return m;
     }
     
     /**
      * Translates a batch of numeric user ids into screen names,
-     * by looking them up via the Twitter API.  The list may not
+     * by looking them up via the Twitter API.  The array may not
      * be longer than MAX_LOOKUPS users (currently 100).
      * @param ids the user ids to be looked up
-     * @return a map from user ids to the corresponding screen names
+     * @return an array of the same length as <code>ids</code>, containing
+     * the screen name of each user, or null if Twitter did not return
+     * that user
+     * @throws TwitterException with the code NO_MATCHES if Twitter did
+     * not return any of the users
      */
-    public Map<Integer,String> lookupIds (int[] ids) {
+    public String[] lookupScreenNames (long[] ids) {
+        return join(lookupScreenNamesAsync(ids));
+    }
+    
+    /**
+     * Like lookupScreenNames(long[]), but returns immediately.
+     */
+    public CompletableFuture<String[]> lookupScreenNamesAsync (final long[] ids) {
         if (ids == null) throw new IllegalArgumentException();
-        if (ids.length == 0) return new HashMap<Integer,String>();
+        if (ids.length == 0) return CompletableFuture.completedFuture(new String[0]);
         if (ids.length > MAX_LOOKUPS) {
             throw new IllegalArgumentException(
                 "only " + MAX_LOOKUPS + " ids can be resolved at a time "
               + "(parameter array contains " + ids.length + ")"
             );
         }
-        OAuthRequest request = new OAuthRequest(
-            Verb.POST, "https://api.twitter.com/1.1/users/lookup.json"
-        );
         StringBuilder idList = new StringBuilder();
         for (int i=0; i<ids.length; i++) {
             idList.append(ids[i]);
             if (i<ids.length-1) idList.append(",");
         }
-        request.addBodyParameter("user_id", idList.toString());
-        oauthService.signRequest(accessToken, request);
-        Response response = request.send();
-        if (!response.isSuccessful()) throw TwitterException.create(response);
-        BasicDBList result = (BasicDBList)JSON.parse(response.getBody());
-        Map<Integer,String> m = new HashMap<Integer,String>();
-        for (Object o : result) {
-            DBObject dbo = (DBObject)o;
-            int id = (Integer)dbo.get("id");
-            String name = (String)dbo.get("screen_name");
-            m.put(id, name);
-        }
-        if (m.size() == 0) throw new TwitterException("empty response");
-        return m;
+        return sendAsync(Endpoint.USERS_LOOKUP, Verb.POST, url + "users/lookup.json",
+                         Collections.singletonMap("user_id", idList.toString()))
+            .thenApply(new Function<TwitterResponse,String[]>() {
+                public String[] apply (TwitterResponse response) {
+                    String[] names = new String[ids.length];
+                    int count = 0;
+                    InputStream in = null;
+                    try {
+                        in = response.getStream();
+                        count = TwitterDecoder.decodeScreenNames(in, ids, names);
+                    } catch (IOException ex) {
+                        throw new TwitterException("cannot read response: " + ex.getMessage());
+                    } finally {
+                        close(in);
+                    }
+                    if (count == 0) throw new TwitterException("empty response", NO_MATCHES);
+                    return names;
+                }
+            });
     }
 
     /**
@@ -141,7 +479,7 @@ public class Twitter {
      * @return the screen name of the user
      * @throws PageNotExistException if there is no user with the given id
      */
-    public String getScreenName (int id) {
+    public String getScreenName (long id) {
         DBObject result = request("users/lookup.json?user_id="+id);
         return (String)((DBObject)((BasicDBList)result).get(0)).get("screen_name");
     }
@@ -153,9 +491,9 @@ public class Twitter {
      * @return the id of the user
      * @throws PageNotExistException if there is no user with the given screen name
      */
-    public int getId (String screenName) {
+    public long getId (String screenName) {
         DBObject result = request("users/lookup.json?screen_name="+screenName);
-        return (Integer)((DBObject)((BasicDBList)result).get(0)).get("id");
+        return ((Number)((DBObject)((BasicDBList)result).get(0)).get("id")).longValue();
     }
     
     /**
@@ -173,8 +511,8 @@ public class Twitter {
      * @throws PageNotExistException if there is no user with the given
      * screen name
      */
-    public List<Integer> getFollowers (String screenName) {
-        int id = getId(screenName);
+    public long[] getFollowers (String screenName) {
+        long id = getId(screenName);
         return getFollowers(id, -1, MAX_FOLLOWER_BATCHES);
     }
     
@@ -192,7 +530,7 @@ public class Twitter {
      * retrieved by repeated calls to the API
      * @throws PageNotExistException if there is no user with the given id
      */
-    public List<Integer> getFollowers (int id) {
+    public long[] getFollowers (long id) {
         return getFollowers(id, -1, MAX_FOLLOWER_BATCHES);
     }
     
@@ -204,36 +542,61 @@ public class Twitter {
      * if this is the first batch
      * @param result returned follower ids are added to this list
      * @return the next cursor, if more followers can be retrieved,
-     * or -1 if the follower list has been exhausted
+     * or 0 if the follower list has been exhausted
      */
-    public long getFollowerBatch (int id, long cursor, List<Integer> result) {
-        DBObject response = request("followers/ids.json?user_id="+id+"&cursor="+cursor);
-        BasicDBList list = (BasicDBList)response.get("ids"); 
-        for (Object o : list) {
-            int i = (Integer)o;
-            result.add(i);
+    public long getFollowerBatch (long id, long cursor, LongList result) {
+        return join(getFollowerBatchAsync(id, cursor, result));
+    }
+    
+    /**
+     * Like getFollowerBatch(long, long, LongList), but returns immediately.
+     * The followers are added to <code>result</code> before the future
+     * completes.
+     */
+    public CompletableFuture<Long> getFollowerBatchAsync (long id, long cursor, final LongList result) {
+        return sendAsync(Endpoint.FOLLOWERS_IDS, Verb.GET,
+                         url + "followers/ids.json?user_id="+id+"&cursor="+cursor, null)
+            .thenApply(new Function<TwitterResponse,Long>() {
+                public Long apply (TwitterResponse response) {
+                    long start = System.nanoTime();
+                    InputStream in = null;
+                    try {
+                        in = response.getStream();
+                        return TwitterDecoder.decodeFollowerIds(in, result);
+                    } catch (IOException ex) {
+                        throw new TwitterException("cannot read response: " + ex.getMessage());
+                    } finally {
+                        close(in);
+                        DECODE.stop(start);
+                    }
+                }
+            });
+    }
+    
+    private static void close (InputStream in) {
+        try {
+            if (in != null) in.close();
+        } catch (IOException ex) {
+            // nothing we can do about it
         }
-        long next_cursor = Long.parseLong((String)response.get("next_cursor_str"));
-        return next_cursor;
     }
     
-    private List<Integer> getFollowers (int id, long cursor, int numBatchesAllowed) {
-        List<Integer> result = new ArrayList<Integer>();
-        long next_cursor = getFollowerBatch (id, cursor, result);
-        if (next_cursor != 0) {
-            if (numBatchesAllowed > 1) {
-                result.addAll (getFollowers (id, next_cursor, numBatchesAllowed-1));
-            } else {
+    private long[] getFollowers (long id, long cursor, int numBatchesAllowed) {
+        LongList result = new LongList(5000);
+        long next_cursor = cursor;
+        do {
+            if (numBatchesAllowed-- == 0) {
                 throw new TwitterException ("maximum number of batches exceeded");
             }
-        }
-        return result;
+            next_cursor = getFollowerBatch (id, next_cursor, result);
+        } while (next_cursor != 0);
+        return result.toArray();
     }
     
     /**
      * Returns the single instance of this class.
      */
-    public static Twitter getInstance() {
+    public static synchronized Twitter getInstance() {
         if (instance == null) {
             Properties conf = new Properties();
             try {
@@ -241,17 +604,34 @@ public class Twitter {
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
-            instance = new Twitter (conf.getProperty("api_key"),
-                                    conf.getProperty("api_secret"),
-                                    conf.getProperty("access_token"),
-                                    conf.getProperty("access_secret"));
+            instance = create(conf);
         }
         return instance;
     }
     
+    /**
+     * Replaces the shared instance, e.g. with one that talks to the
+     * TwitterSimulator.  Must be called before any component uses Twitter.
+     */
+    public static synchronized void setInstance (Twitter twitter) {
+        instance = twitter;
+    }
+    
+    /**
+     * Creates an instance from the given configuration, with the same
+     * keys as twitter.properties.  The system property followt.twitter.url
+     * takes precedence over api_url.
+     */
+    public static Twitter create (Properties conf) {
+        String url = System.getProperty("followt.twitter.url", conf.getProperty("api_url", ""));
+        if (url.trim().isEmpty()) url = DEFAULT_URL;
+        if (!url.endsWith("/")) url = url + "/";
+        return new Twitter (CredentialPool.fromProperties(conf), url.trim());
+    }
+    
     public static void main(String[] args) {
-        // List<Integer> result = getInstance().getFollowers("MongoDB");
-        // System.out.println("follower count: " + result.size());
+        // long[] result = getInstance().getFollowers("MongoDB");
+        // System.out.println("follower count: " + result.length);
         System.out.println(getInstance().getId("drmirror"));
     }
     
@@ -0,0 +1,105 @@
+package net.followt;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import net.followt.util.JsonReader;
+import net.followt.util.LongList;
+
+/**
+ * Decodes the responses of the Twitter API endpoints that are on the hot
+ * path of the application, directly from the response stream.
+ * <p>
+ * Only the fields we actually need are extracted (the follower ids and the
+ * next cursor from followers/ids, the id and screen name from users/lookup);
+ * everything else is skipped without being materialized.  Compared to
+ * parsing the whole response with com.mongodb.util.JSON, this avoids
+ * building the response body as a String and creating a boxed object
+ * for every single id.
+ *
+ * @author drmirror
+ */
+public class TwitterDecoder {
+
+    private static final byte[][] FOLLOWER_FIELDS = names("ids", "next_cursor_str", "next_cursor");
+    private static final byte[][] USER_FIELDS = names("id", "screen_name");
+
+    /**
+     * Decodes a followers/ids response.
+     * @param in the response body
+     * @param result the follower ids are added to this list
+     * @return the next cursor, or 0 if there are no more followers
+     */
+    public static long decodeFollowerIds (InputStream in, LongList result) throws IOException {
+        JsonReader r = new JsonReader(in);
+        long next_cursor = 0;
+        boolean haveCursorString = false;
+        r.beginObject();
+        while (r.hasNext()) {
+            switch (r.nextName(FOLLOWER_FIELDS)) {
+            case 0:
+                r.beginArray();
+                while (r.hasNext()) result.add(r.nextLong());
+                r.endArray();
+                break;
+            case 1:
+                next_cursor = Long.parseLong(r.nextString());
+                haveCursorString = true;
+                break;
+            case 2:
+                // only used if next_cursor_str is absent, because
+                // cursors may not fit into a JavaScript number
+                if (haveCursorString) r.skipValue();
+                else next_cursor = r.nextLong();
+                break;
+            default:
+                r.skipValue();
+            }
+        }
+        r.endObject();
+        return next_cursor;
+    }
+
+    /**
+     * Decodes a users/lookup response.
+     * @param in the response body
+     * @param ids the ids that were looked up
+     * @param names the screen name of each user returned by Twitter is
+     * stored into this array, at the same position as its id in <code>ids</code>
+     * @return the number of users contained in the response
+     */
+    public static int decodeScreenNames (InputStream in, long[] ids, String[] names) throws IOException {
+        JsonReader r = new JsonReader(in);
+        int count = 0;
+        r.beginArray();
+        while (r.hasNext()) {
+            long id = -1;
+            String name = null;
+            r.beginObject();
+            while (r.hasNext()) {
+                switch (r.nextName(USER_FIELDS)) {
+                case 0:  id = r.nextLong(); break;
+                case 1:  name = r.nextString(); break;
+                default: r.skipValue();
+                }
+            }
+            r.endObject();
+            for (int i=0; i<ids.length; i++) {
+                if (ids[i] == id) names[i] = name;
+            }
+            count++;
+        }
+        r.endArray();
+        return count;
+    }
+
+    private static byte[][] names (String... names) {
+        byte[][] result = new byte[names.length][];
+        for (int i=0; i<names.length; i++) {
+            result[i] = Arrays.copyOf(names[i].getBytes(), names[i].length());
+        }
+        return result;
+    }
+
+}
@@ -2,8 +2,6 @@ package net.followt;
 
 import java.util.List;
 
-import org.scribe.model.Response;
-
 import com.mongodb.BasicDBList;
 import com.mongodb.DBObject;
 import com.mongodb.util.JSON;
@@ -13,30 +11,77 @@ public class TwitterException extends RuntimeException {
     private static final long serialVersionUID = -3227149020223036977L;
 
     private List<?> errors = null; 
+    private int code = 0;
     
     public TwitterException (String message) {
         super(message);
     }
     
+    /**
+     * Creates an exception with the given Twitter error code, for
+     * errors that we detect ourselves.
+     */
+    public TwitterException (String message, int code) {
+        super(message);
+        this.code = code;
+    }
+    
     public TwitterException (String message, List<?> errors) {
         super(message);
         this.errors = errors;
+        if (errors != null && !errors.isEmpty() && errors.get(0) instanceof DBObject) {
+            Object c = ((DBObject)errors.get(0)).get("code");
+            if (c instanceof Number) code = ((Number)c).intValue();
+        }
     }
     
     public List<?> getErrors() {
         return errors;
     }
     
-    public static TwitterException create (Response response) {
-        DBObject body = (DBObject)JSON.parse(response.getBody());
-        BasicDBList errors = (BasicDBList)body.get("errors");
+    /**
+     * Returns the Twitter error code of the first error, or 0 if
+     * the response did not contain one.
+     */
+    public int getCode() {
+        return code;
+    }
+    
+    public static TwitterException create (TwitterResponse response) {
+        // proxies and overloaded servers do not necessarily answer with JSON
+        BasicDBList errors = null;
+        try {
+            Object body = JSON.parse(response.getBody());
+            if (body instanceof DBObject && ((DBObject)body).get("errors") instanceof BasicDBList) {
+                errors = (BasicDBList)((DBObject)body).get("errors");
+            }
+        } catch (RuntimeException ex) {
+            // not JSON
+        }
+        if (errors == null || errors.isEmpty() || !(errors.get(0) instanceof DBObject)) {
+            return new TwitterException ("HTTP " + response.getCode());
+        }
         DBObject firstError = (DBObject)errors.get(0);
-        int code = (int)firstError.get("code");
+        int code = ((Number)firstError.get("code")).intValue();
         String message = (String)firstError.get("message");
         switch (code) {
         case 34: return new PageNotExistException (message, errors);
-        case 88: return new RateLimitExceededException (message, errors);
+        case 88: return new RateLimitExceededException (message, errors,
+                                                        getResetHeader(response));
         default: return new TwitterException (message, errors);
         }
     }
+    
+    /**
+     * Returns the x-rate-limit-reset header in milliseconds since the epoch,
+     * or 0 if there is none.
+     */
+    static long getResetHeader (TwitterResponse response) {
+        String reset = response.getHeader("x-rate-limit-reset");
+        try {
+            return reset == null ? 0 : Long.parseLong(reset.trim()) * 1000;
+        } catch (NumberFormatException ex) {
+            return 0;
+        }
+    }
 }
@@ -0,0 +1,71 @@
+package net.followt;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.http.HttpHeaders;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * A response from the Twitter API, as received by the TwitterTransport:
+ * the status code, the headers, and the complete body.  A compressed body
+ * is kept as it is, and only inflated while it is read.
+ *
+ * @author drmirror
+ */
+public class TwitterResponse {
+
+    private final int code;
+    private final HttpHeaders headers;
+    private final byte[] body;
+
+    public TwitterResponse (int code, HttpHeaders headers, byte[] body) {
+        this.code = code;
+        this.headers = headers;
+        this.body = body;
+    }
+
+    public int getCode() {
+        return code;
+    }
+
+    public boolean isSuccessful() {
+        return code >= 200 && code < 300;
+    }
+
+    /**
+     * Returns the first value of a header, ignoring case, or null.
+     */
+    public String getHeader (String name) {
+        return headers.firstValue(name).orElse(null);
+    }
+
+    /**
+     * Returns the body, uncompressed.
+     */
+    public InputStream getStream() throws IOException {
+        InputStream result = new ByteArrayInputStream(body);
+        if ("gzip".equalsIgnoreCase(getHeader("Content-Encoding"))) {
+            result = new GZIPInputStream(result, 8192);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the body as a string, uncompressed.
+     */
+    public String getBody() {
+        try {
+            InputStream in = getStream();
+            ByteArrayOutputStream result = new ByteArrayOutputStream(body.length);
+            byte[] buf = new byte[8192];
+            for (int n; (n = in.read(buf)) > 0; ) result.write(buf, 0, n);
+            return new String(result.toByteArray(), StandardCharsets.UTF_8);
+        } catch (IOException ex) {
+            throw new TwitterException("cannot read response: " + ex.getMessage());
+        }
+    }
+
+}
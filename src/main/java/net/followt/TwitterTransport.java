@@ -0,0 +1,99 @@
+package net.followt;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.scribe.model.OAuthRequest;
+import org.scribe.model.Request;
+import org.scribe.model.Verb;
+
+/**
+ * Sends signed requests to the Twitter API without blocking a thread
+ * while they are in flight.
+ * <p>
+ * The requests are built and signed with scribe as before, but sent with
+ * the JDK's HttpClient, which keeps connections alive and reuses them
+ * (scribe opens a new connection for every request), asks for compressed
+ * responses, and gives up on a request after a timeout (TIMEOUT by
+ * default).  Over https, it uses HTTP/2 where the server supports it, so
+ * that many requests share one connection.  Plain http, which is only used
+ * for the TwitterSimulator, stays at HTTP/1.1, so that the client does not
+ * try to upgrade.
+ *
+ * @author drmirror
+ */
+public class TwitterTransport {
+
+    /**
+     * How long to wait for a connection, in milliseconds.
+     */
+    public final static long CONNECT_TIMEOUT = Long.getLong("followt.twitter.connect_timeout", 10000);
+
+    /**
+     * How long to wait for a complete response, in milliseconds.
+     */
+    public final static long TIMEOUT = Long.getLong("followt.twitter.timeout", 30000);
+
+    private final HttpClient client;
+    private final long timeout;
+
+    /**
+     * @param url the API root URL
+     */
+    public TwitterTransport (String url) {
+        this(url, CONNECT_TIMEOUT, TIMEOUT);
+    }
+
+    /**
+     * @param url the API root URL
+     * @param connectTimeout how long to wait for a connection, in milliseconds
+     * @param timeout how long to wait for a complete response, in milliseconds
+     */
+    public TwitterTransport (String url, long connectTimeout, long timeout) {
+        this.client = HttpClient.newBuilder()
+            .version(url.startsWith("https:") ? HttpClient.Version.HTTP_2 : HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofMillis(connectTimeout))
+            .build();
+        this.timeout = timeout;
+    }
+
+    /**
+     * Sends a request that has been signed already.
+     * @return a future that completes with the response, whether it is
+     * successful or not, or exceptionally if no response was received
+     * in time (with a java.util.concurrent.TimeoutException or a
+     * java.net.http.HttpTimeoutException) or the connection failed
+     * (with an IOException)
+     */
+    public CompletableFuture<TwitterResponse> send (OAuthRequest request) {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(request.getCompleteUrl()))
+            .timeout(Duration.ofMillis(timeout))
+            .header("Accept-Encoding", "gzip");
+        for (Map.Entry<String,String> h : request.getHeaders().entrySet()) {
+            builder.header(h.getKey(), h.getValue());
+        }
+        if (request.getVerb() == Verb.POST) {
+            builder.header("Content-Type", Request.DEFAULT_CONTENT_TYPE)
+                   .POST(HttpRequest.BodyPublishers.ofString(request.getBodyContents()));
+        } else {
+            builder.GET();
+        }
+        return client.sendAsync(builder.build(), HttpResponse.BodyHandlers.ofByteArray())
+            // the request timeout only covers the headers, so cap the body too
+            .orTimeout(timeout, TimeUnit.MILLISECONDS)
+            .thenApply(new Function<HttpResponse<byte[]>,TwitterResponse>() {
+                public TwitterResponse apply (HttpResponse<byte[]> response) {
+                    return new TwitterResponse(response.statusCode(), response.headers(),
+                                               response.body());
+                }
+            });
+    }
+
+}
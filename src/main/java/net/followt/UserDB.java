@@ -1,207 +1,500 @@
 package net.followt;
 
-import java.net.UnknownHostException;
 import java.util.ArrayList;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
 
-import com.mongodb.BasicDBObject;
-import com.mongodb.DB;
-import com.mongodb.DBCollection;
-import com.mongodb.DBCursor;
-import com.mongodb.DBObject;
-import com.mongodb.MongoClient;
+import net.followt.util.LongList;
+import net.followt.util.LongLruCache;
 
 /**
  * A cache that maps numeric user ids of Twitter users
  * to their screen names.  The mapping is stored
- * persistently in a MongoDB collection.
+ * persistently in the FollowerStore.
  * <p>
  * Since round-trips to Twitter take quite long, and
  * we can only resolve 100 uids at a time (and perform
  * 180 of these queries per 15 min time window), this
  * class resolves uids asynchronously and in batches
  * up to 100 uids.
+ * <p>
+ * Each uid that is being resolved has a CompletableFuture
+ * in the <code>inFlight</code> map, which is shared by all
+ * callers asking for the same uid, so that a uid is only
+ * queued once no matter how many threads are waiting for it.
+ * Callers can wait for the future with or without a timeout,
+ * or just attach to it (see getScreenNameAsync()).
+ * <p>
+ * Screen names that have been read from the database or
+ * resolved by Twitter are kept in an in-memory LRU cache
+ * of CACHE_SIZE entries, so that repeated lookups never go
+ * to the database.  A cached name that is older than
+ * REFRESH_AGE is still returned, but is also resolved again
+ * in the background, so that renamed users eventually show
+ * up with their new names.
  * 
  * @author drmirror
  */
 public class UserDB {
     
-    private Twitter twitter = Twitter.getInstance();
-    private DBCollection userCollection = null;
-    private BlockingQueue<Integer> lookupQueue = new LinkedBlockingQueue<Integer>();
+    /**
+     * Maximum number of screen names kept in memory.
+     */
+    public final static int CACHE_SIZE = Integer.getInteger("followt.users.cache.size", 100000);
+    
+    /**
+     * Age in milliseconds after which a cached screen name is refreshed.
+     */
+    public final static long REFRESH_AGE = Long.getLong("followt.users.cache.refresh", 24 * 60 * 60 * 1000L);
+    
+    private final Twitter twitter;
+    private final FollowerStore store;
+    
+    private BlockingQueue<Long> lookupQueue = new LinkedBlockingQueue<Long>();
+    private LongLruCache<String> cache = new LongLruCache<String>(CACHE_SIZE);
 
     /**
-     * A lock that allows other threads to wait until
-     * new id/screen names have been written to the
-     * database.
+     * The pending lookups, by user id.  A future is added here before its
+     * id is put into the <code>lookupQueue</code>, and removed when it is
+     * completed.
      */
-    private Object dbLock = new Object();
+    private ConcurrentMap<Long,CompletableFuture<String>> inFlight =
+        new ConcurrentHashMap<Long,CompletableFuture<String>>();
+    
+    /**
+     * How long the lookup thread waits for more ids to fill a batch,
+     * in milliseconds, before it sends an incomplete batch to Twitter.
+     */
+    private final static long BATCH_DELAY = 100;
+    
+    /**
+     * How long callers are blocked waiting for screen names.
+     */
+    private final static Metrics.Timer WAIT = Metrics.timer("userdb.wait");
+    /**
+     * How long it takes to resolve and store a batch of names.
+     */
+    private final static Metrics.Timer BATCH = Metrics.timer("userdb.batch");
+    
+    /**
+     * Limits the batches that have been sent to Twitter but not answered
+     * yet.  While all of them are pending, ids collect in the queue and
+     * make for fuller batches.
+     */
+    private final Semaphore pendingBatches;
     
     /**
      * Continuously running thread that takes requests from the
      * <code>lookupQueue</code>, batches them into groups of
      * up to 100, and passes them to Twitter for resolution.
-     * Results are written to the database, from where clients
-     * calling other methods of this class pick them up.
+     * A batch is sent as soon as it is full, or BATCH_DELAY after
+     * its first id was taken.  The thread does not wait for the
+     * response, so several batches can be in flight; when one
+     * arrives, the results are written to the database
+     * and the cache, and the futures of the ids are completed.
      */
     private Thread lookupThread = new Thread (new Runnable() {
         public void run() {
-            List<Integer> batch = new LinkedList<Integer>();
+            List<Long> queued = new ArrayList<Long>(Twitter.MAX_LOOKUPS);
             while (true) {
-                batch.clear();
+                queued.clear();
                 try {
-                    int first = -1;
-                    try {
-                        first = lookupQueue.take();
-                    } catch (InterruptedException ex) {
-                        continue;
-                    }
-                    batch.add(first);
-                    try { Thread.sleep(100); } catch (InterruptedException ex) {}
-                    lookupQueue.drainTo(batch, Twitter.MAX_LOOKUPS - 1);
-                    Map<Integer,String> result = twitter.lookupIds(batch);
-                    fixResult (result, batch);
-                    synchronized(dbLock) {
-                        insertUsers (result);
-                        dbLock.notifyAll();
-                    }    
-                } catch (TwitterException ex) {
-                    System.out.println(ex);
-                    synchronized(dbLock) {
-                        insertFailures (batch);
-                        dbLock.notifyAll();
-                    }
+                    pendingBatches.acquire();
+                } catch (InterruptedException ex) {
+                    continue;
+                }
+                try {
+                    nextBatch(queued);
+                } catch (InterruptedException ex) {
+                    pendingBatches.release();
+                    continue;
                 }
+                final long[] batch = new long[queued.size()];
+                for (int i=0; i<batch.length; i++) batch[i] = queued.get(i);
+                final long start = System.nanoTime();
+                CompletableFuture<String[]> names;
+                try {
+                    names = twitter.lookupScreenNamesAsync(batch);
+                } catch (RuntimeException ex) {
+                    names = new CompletableFuture<String[]>();
+                    names.completeExceptionally(ex);
+                }
+                names.whenComplete(new BiConsumer<String[],Throwable>() {
+                    public void accept (String[] result, Throwable error) {
+                        try {
+                            finishBatch(batch, result, error, start);
+                        } finally {
+                            pendingBatches.release();
+                        }
+                    }
+                });
             }
             
         }
-    });
+    }, "user-lookup");
+
+    /**
+     * Stores the result of a lookup and completes the futures of its ids.
+     * @param error what the lookup failed with, or null
+     */
+    private void finishBatch (long[] batch, String[] result, Throwable error, long start) {
+        try {
+            if (error == null) {
+                fixResult (result, batch);
+                insertUsers (batch, result);
+                complete (batch, result);
+                BATCH.stop(start);
+                return;
+            }
+            Throwable cause = Twitter.unwrap(error);
+            if (cause instanceof RateLimitExceededException) {
+                // not the fault of these ids; Twitter has already
+                // waited for the reset, so just try them again
+                System.out.println(cause);
+                for (long id : batch) lookupQueue.add(id);
+            } else if (cause instanceof TwitterException
+                       && ((TwitterException)cause).getCode() == Twitter.NO_MATCHES) {
+                // none of the users exist any more: an answer, not an error
+                String[] none = new String[batch.length];
+                fixResult (none, batch);
+                insertUsers (batch, none);
+                complete (batch, none);
+                BATCH.stop(start);
+            } else if (cause instanceof TwitterException) {
+                // a transient error, which says nothing about the ids, so keep
+                // the names we have; the ids are looked up again when next asked for
+                System.out.println(cause);
+                complete (batch, keepNames (batch));
+            } else {
+                cause.printStackTrace();
+                fail (batch, cause);
+            }
+        } catch (RuntimeException ex) {
+            // e.g. the database is unavailable; don't leave the callers waiting
+            ex.printStackTrace();
+            fail (batch, ex);
+        }
+    }
+
+    /**
+     * Waits for the next id in the queue, and then for more ids until
+     * the batch is full or BATCH_DELAY has passed.
+     */
+    private void nextBatch (List<Long> batch) throws InterruptedException {
+        batch.add(lookupQueue.take());
+        long deadline = System.currentTimeMillis() + BATCH_DELAY;
+        while (batch.size() < Twitter.MAX_LOOKUPS) {
+            lookupQueue.drainTo(batch, Twitter.MAX_LOOKUPS - batch.size());
+            long remaining = deadline - System.currentTimeMillis();
+            if (batch.size() == Twitter.MAX_LOOKUPS || remaining <= 0) break;
+            Long id = lookupQueue.poll(remaining, TimeUnit.MILLISECONDS);
+            if (id == null) break;
+            batch.add(id);
+        }
+    }
+    
+    /**
+     * Returns the future for the given id, and queues the id for
+     * lookup unless it is already pending.
+     */
+    private CompletableFuture<String> request (long id) {
+        CompletableFuture<String> result = inFlight.get(id);
+        if (result != null) return result;
+        CompletableFuture<String> f = new CompletableFuture<String>();
+        result = inFlight.putIfAbsent(id, f);
+        if (result != null) return result;
+        lookupQueue.add(id);
+        return f;
+    }
+    
+    private void complete (long[] ids, String[] names) {
+        if (ids == null) return;
+        for (int i=0; i<ids.length; i++) {
+            CompletableFuture<String> f = inFlight.remove(ids[i]);
+            if (f != null) f.complete(names[i]);
+        }
+    }
+    
+    private void fail (long[] ids, Throwable cause) {
+        if (ids == null) return;
+        for (long id : ids) {
+            CompletableFuture<String> f = inFlight.remove(id);
+            if (f != null) f.completeExceptionally(cause);
+        }
+    }
 
     /**
      * If we have asked for a certain user id, but have not received its screen name
      * from Twitter, mark it as a non-resolvable user id (*uid*) to make sure we
-     * don't query it over and over again. 
+     * don't query it over and over again.  This is only done for ids that are
+     * missing from a successful response, or for all ids of a batch if Twitter
+     * found none of them (NO_MATCHES), i.e. for suspended or deleted users.
      * @param result
      * @param batch
      */
-    private void fixResult (Map<Integer,String> result, List<Integer> batch) {
-        for (int id : batch) {
-            if (result.get(id) == null) {
-                result.put(id, "*" + id + "*");
+    private void fixResult (String[] result, long[] batch) {
+        for (int i=0; i<batch.length; i++) {
+            if (result[i] == null) {
+                result[i] = "*" + batch[i] + "*";
             }
         }
     }
     
-    private void insertUsers (Map<Integer,String> users) {
-        for (Map.Entry<Integer,String> e : users.entrySet()) {
-            getUserCollection().update(
-                    new BasicDBObject("_id", e.getKey()),
-                    new BasicDBObject("_id", e.getKey()).append("screen_name", e.getValue()),
-                    true, false);
+    private void insertUsers (long[] ids, String[] names) {
+        store.putScreenNames(ids, names);
+        for (int i=0; i<ids.length; i++) {
+            cache.put(ids[i], names[i]);
         }
     }
     
-    private void insertFailures (List<Integer> ids) {
-        for (int id : ids) {
-            getUserCollection().update(
-                    new BasicDBObject("_id", id),
-                    new BasicDBObject("_id", id).append("screen_name", "*" + id + "*"),
-                    true, false);
+    /**
+     * Returns the names that are known for ids whose lookup failed, or null
+     * for those that have none.  A stale cached name stays in the cache, and
+     * can be refreshed again.
+     */
+    private String[] keepNames (long[] ids) {
+        String[] names = store.getScreenNames(ids);
+        for (int i=0; i<ids.length; i++) {
+            LongLruCache.Entry<String> e = cache.getEntry(ids[i]);
+            if (e != null) {
+                names[i] = e.getValue();
+                e.cancelRefresh();
+            }
         }
+        return names;
     }
     
     private UserDB() {
+        this(Twitter.getInstance(), Storage.getStore());
+    }
+    
+    /**
+     * Creates an instance with its own lookup thread, which lives as long
+     * as the process.  The application uses getInstance().
+     */
+    UserDB (Twitter twitter, FollowerStore store) {
+        this.twitter = twitter;
+        this.store = store;
+        this.pendingBatches = new Semaphore(2 * twitter.getCredentialCount());
+        Metrics.gauge("userdb.queue", new Metrics.Gauge() {
+            public long getValue() {
+                return lookupQueue.size();
+            }
+        });
+        Metrics.gauge("userdb.in_flight", new Metrics.Gauge() {
+            public long getValue() {
+                return inFlight.size();
+            }
+        });
         lookupThread.setDaemon(true);
         lookupThread.start();
     }
     
     private static UserDB instance = null;
     
-    public static UserDB getInstance() {
+    public static synchronized UserDB getInstance() {
         if (instance == null) instance = new UserDB();
         return instance;
     }
     
-    private DBCollection getUserCollection() {
-        if (userCollection == null) {
-            try {
-                MongoClient client = new MongoClient();
-                DB db = client.getDB("followt");
-                userCollection = db.getCollection("users");
-            } catch (UnknownHostException e) {
-                throw new RuntimeException(e);
-            }
+    /**
+     * Returns the screen name from the cache, or null if it is not cached.
+     * If the cached name is stale, a refresh is started in the background.
+     */
+    private String getScreenNameFromCache (long id) {
+        LongLruCache.Entry<String> e = cache.getEntry(id);
+        if (e == null) return null;
+        if (e.getAge() > REFRESH_AGE && e.startRefresh()) {
+            request(id);
         }
-        return userCollection;
+        return e.getValue();
     }
     
-    private String getScreenNameFromDB (int id) {
-        String result = null;
-        synchronized(dbLock) {
-            DBCursor c = getUserCollection().find(
-                new BasicDBObject("_id", id)
-            );
-            if (c.hasNext()) {
-                result = (String)((DBObject)c.next()).get("screen_name");
-            }
+    private String getScreenNameFromDB (long id) {
+        String result = getScreenNameFromCache(id);
+        if (result != null) return result;
+        result = store.getScreenNames(new long[] { id })[0];
+        if (result != null) cache.put(id, result);
+        return result;
+    }
+    
+    /**
+     * Returns the statistics of the screen name cache.
+     */
+    public String getCacheStatus() {
+        return cache.toString();
+    }
+    
+    /**
+     * Returns the screen names of the given users that are in the cache
+     * or the database, reading the ids that are not cached from the
+     * database in a single call.
+     * @return an array of the same length as <code>ids</code>, with null
+     * for the users whose names are not known yet
+     */
+    private String[] getScreenNamesFromDB (long[] ids) {
+        String[] result = new String[ids.length];
+        LongList missing = new LongList();
+        for (int i=0; i<ids.length; i++) {
+            result[i] = getScreenNameFromCache(ids[i]);
+            if (result[i] == null) missing.add(ids[i]);
+        }
+        if (missing.isEmpty()) return result;
+        long[] m = missing.toArray();
+        String[] found = store.getScreenNames(m);
+        for (int i=0, j=0; i<ids.length; i++) {
+            if (result[i] != null) continue;
+            result[i] = found[j];
+            if (found[j] != null) cache.put(m[j], found[j]);
+            j++;
         }
         return result;
     }
     
-    public void lookupUsers (List<Integer> ids) {
-        for (int id : ids) {
-            if (getScreenNameFromDB(id) == null) {
-                if (!lookupQueue.contains(id)) {
-                    lookupQueue.add(id);
-                }
+    /**
+     * Makes sure that the screen names of the given users are resolved
+     * in the background, without waiting for them.
+     */
+    public void lookupUsers (long[] ids) {
+        getScreenNames(ids);
+    }
+    
+    /**
+     * Returns the screen names of the given users that are already known,
+     * without waiting.  The others are resolved in the background.
+     * @return an array of the same length as <code>ids</code>, with null
+     * for the users whose names are not known yet
+     */
+    public String[] getScreenNames (long[] ids) {
+        String[] names = getScreenNamesFromDB(ids);
+        for (int i=0; i<ids.length; i++) {
+            if (names[i] == null) {
+                request(ids[i]);
             }
         }
+        return names;
     }
 
-    public void lookupUsers (int[] ids) {
-        List<Integer> args = new ArrayList<Integer>();
-        for (int id : ids) args.add(id);
-        lookupUsers(args);
-    }
-    
-    public String getScreenName (int id) {
-        String result = null;
-        while (true) {
-            result = getScreenNameFromDB(id);
-            if (result != null) {
-                break;   
+    /**
+     * Returns the screen names of the given users, waiting at most the
+     * given time for those that need to be resolved by Twitter.
+     * @return an array of the same length as <code>ids</code>, with null
+     * for the users whose names could not be resolved in time
+     */
+    public String[] getScreenNames (long[] ids, long timeout, TimeUnit unit) {
+        String[] names = getScreenNamesFromDB(ids);
+        List<CompletableFuture<String>> pending = new ArrayList<CompletableFuture<String>>();
+        List<Integer> positions = new ArrayList<Integer>();
+        for (int i=0; i<ids.length; i++) {
+            if (names[i] == null) {
+                pending.add(request(ids[i]));
+                positions.add(i);
             }
-            if (!lookupQueue.contains(id)) {
-                lookupQueue.add(id);
-                synchronized(dbLock) {
-                    try {
-                        dbLock.wait(10000);
-                    } catch (InterruptedException e) {
-                        throw new RuntimeException(e);
-                    }
-                }
+        }
+        if (pending.isEmpty()) return names;
+        long start = System.nanoTime();
+        try {
+            CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[pending.size()]))
+                             .get(timeout, unit);
+        } catch (TimeoutException e) {
+            // use what we have
+        } catch (ExecutionException e) {
+            // the failed ones remain null
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            WAIT.stop(start);
+        }
+        for (int i=0; i<pending.size(); i++) {
+            CompletableFuture<String> f = pending.get(i);
+            if (f.isDone() && !f.isCompletedExceptionally()) {
+                names[positions.get(i)] = f.getNow(null);
             }
         }
-        return result;
+        return names;
+    }
+    
+    /**
+     * Returns the screen name of the given user, as a future that is
+     * already complete if the name is known.
+     */
+    public CompletableFuture<String> getScreenNameAsync (long id) {
+        String result = getScreenNameFromDB(id);
+        if (result != null) return CompletableFuture.completedFuture(result);
+        return request(id);
+    }
+
+    /**
+     * Returns the screen name of the given user, waiting as long
+     * as it takes to resolve it.
+     */
+    public String getScreenName (long id) {
+        CompletableFuture<String> f = getScreenNameAsync(id);
+        if (f.isDone() && !f.isCompletedExceptionally()) return f.getNow(null);
+        long start = System.nanoTime();
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            WAIT.stop(start);
+        }
     }
     
-    public int getId (String screenName) {
-        int result = -1;
-        DBCursor c = getUserCollection().find(
-            new BasicDBObject("screen_name", screenName)
-        );
-        if (!c.hasNext()) {
-            result = twitter.getId(screenName);
-            getUserCollection().insert(new BasicDBObject("_id", result)
-                                                 .append("screen_name",screenName));
-        } else {
-            DBObject o = c.next();
-            result = (Integer)o.get("_id");
+    /**
+     * Returns the screen name of the given user, or null if it
+     * cannot be resolved within the given time.
+     */
+    public String getScreenName (long id, long timeout, TimeUnit unit) {
+        CompletableFuture<String> f = getScreenNameAsync(id);
+        if (f.isDone() && !f.isCompletedExceptionally()) return f.getNow(null);
+        long start = System.nanoTime();
+        try {
+            return f.get(timeout, unit);
+        } catch (TimeoutException e) {
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            WAIT.stop(start);
         }
+    }
+    
+    public long getId (String screenName) {
+        long result = getStoredId(screenName);
+        return result == -1 ? fetchId(screenName) : result;
+    }
+
+    /**
+     * Returns the id of the given screen name from the store, or -1 if it
+     * is not known there.  Does not call Twitter.
+     */
+    public long getStoredId (String screenName) {
+        return store.getUserId(screenName);
+    }
+
+    /**
+     * Looks up the id of the given screen name on Twitter, and records
+     * the name in the store.
+     */
+    public long fetchId (String screenName) {
+        long result = twitter.getId(screenName);
+        store.putScreenNames(new long[] { result }, new String[] { screenName });
+        cache.put(result, screenName);
         return result;
     }
     
@@ -1,12 +1,30 @@
 package net.followt;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.http.HttpServletRequest;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import net.followt.FollowT.Follower;
 import net.followt.FollowT.Unfollower;
-import spark.ModelAndView;
 import spark.Request;
 import spark.Response;
 import spark.Route;
@@ -18,13 +36,174 @@ import freemarker.template.TemplateModel;
 /**
  * The web-based user interface of the followt application,
  * implemented using Spark and Freemarker.
+ * <p>
+ * The report routes may block for a long time in FollowT, on the database
+ * or on screen names.  So that they cannot use up the threads of the web
+ * server, they are computed on report threads instead (see async()): on
+ * virtual threads if the JVM has them (Java 21 and later), otherwise on a
+ * pool of REPORT_THREADS threads.  How many of them may use the database
+ * or wait for names at a time is limited by the bulkheads in FollowT.
+ * The JSON API is written by the report thread directly to the client, as
+ * the rows come from the store (see ResponseWriter).
+ * <p>
+ * The server listens on port 4567, or on the port set with the system
+ * property followt.webui.port.
  * @author drmirror
  */
 public class WebUI {
 
-    private static FollowT ui = FollowT.getInstance();
+    private final static Logger LOG = LoggerFactory.getLogger(WebUI.class);
+
+    /**
+     * The number of report threads if there are no virtual threads.
+     */
+    public final static int REPORT_THREADS = Integer.getInteger("followt.webui.threads", 64);
+
+    private static FollowT ui;
+
+    private static Executor reportThreads = createReportThreads();
+
+    /**
+     * The request attribute that holds the result of an asynchronous route.
+     */
+    private final static String RESULT = WebUI.class.getName() + ".result";
+
+    /**
+     * The request attribute that holds the ResponseWriter of an asynchronous
+     * route whose response is to be committed.
+     */
+    private final static String STREAM = WebUI.class.getName() + ".stream";
+
+    /**
+     * How long a report thread waits for the web server to commit the
+     * response, in milliseconds.
+     */
+    private final static long COMMIT_TIMEOUT = 30000;
+
+    /**
+     * Renders the report template for the asynchronous report route,
+     * which is a plain Route.  It is not registered itself.
+     */
+    private static FreeMarkerRoute templates = new FreeMarkerRoute("/report") {
+        @Override
+        public Object handle(Request request, Response response) {
+            return null;
+        }
+    };
+
+    /**
+     * The response of an asynchronous route.
+     */
+    private static class Result {
+        final int status;
+        final String type;
+        final String body;
+        Result (int status, String type, String body) {
+            this.status = status;
+            this.type = type;
+            this.body = body;
+        }
+    }
+
+    /**
+     * The part of an asynchronous route that runs on a report thread.
+     */
+    private interface AsyncRoute {
+        /**
+         * Computes the response of the route.  A route either returns its
+         * Result, or writes its body to <code>out</code> and returns null.
+         * If it fails after writing, the response ends where it was.
+         */
+        Result call (ResponseWriter out) throws Exception;
+    }
+
+    /**
+     * Writes the body of an asynchronous route from the report thread,
+     * so that the client gets the first rows while the others are still
+     * being read.  The status and headers are committed on the first write:
+     * the request is dispatched again, and async() sends the headers on a
+     * thread of the web server and suspends the request once more, before
+     * the report thread writes the body.  Spark writes to any response that
+     * is not committed yet after the route returns, so the report thread
+     * must not touch the response before it is.
+     */
+    private static class ResponseWriter extends Writer {
+        private final AsyncContext dispatch;
+        private final String type;
+        private final CountDownLatch committed = new CountDownLatch(1);
+        private volatile AsyncContext context;
+        private Writer out;
+
+        ResponseWriter (AsyncContext dispatch, String type) {
+            this.dispatch = dispatch;
+            this.type = type;
+        }
+
+        /**
+         * Called by async() when the headers have been sent.
+         */
+        void committed (AsyncContext context) {
+            this.context = context;
+            committed.countDown();
+        }
+
+        boolean isCommitted() {
+            return out != null;
+        }
+
+        private Writer out() throws IOException {
+            if (out != null) return out;
+            dispatch.getRequest().setAttribute(STREAM, this);
+            dispatch.dispatch();
+            try {
+                if (!committed.await(COMMIT_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                    throw new IOException("response was not committed");
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            out = new BufferedWriter(new OutputStreamWriter(context.getResponse().getOutputStream(),
+                                                            StandardCharsets.UTF_8));
+            return out;
+        }
+
+        public void write (char[] cbuf, int off, int len) throws IOException {
+            out().write(cbuf, off, len);
+        }
+
+        public void flush() throws IOException {
+            out().flush();
+        }
+
+        /**
+         * Sends what is left of the body, and ends the response.
+         */
+        public void close() throws IOException {
+            try {
+                out().flush();
+            } finally {
+                if (context != null) context.complete();
+            }
+        }
+    }
     
     public static void main(String[] args) {
+        if (Boolean.getBoolean("followt.webui.scanner")) {
+            // the local store can only be opened by one process,
+            // so the scanner must run within the web UI then
+            Scanner.main(args);
+        }
+        start(FollowT.getInstance(), Integer.getInteger("followt.webui.port", 4567));
+    }
+
+    /**
+     * Registers the routes, which starts the server in the background.
+     * Can only be called once per process.
+     */
+    static void start (FollowT followt, int port) {
+        ui = followt;
+        Spark.setPort(port);
         Spark.staticFileLocation("/spark/static");
         
         Spark.get(new FreeMarkerRoute("/") {
@@ -37,16 +216,52 @@ public class WebUI {
                 return modelAndView(root,"report.ftl");
             }
         });
-        Spark.get(new FreeMarkerRoute("/report/:screen_name") {
+        Spark.get(new Route("/report/:screen_name") {
             @Override
-            public ModelAndView handle(Request request, Response response) {
-                String screen_name = request.params("screen_name");
-                String is = request.queryParams("interval");
-                if (is == null) is = "86400000";
-                long interval = Long.parseLong(is);
-                        
-                TemplateModel root = getModel (screen_name, interval);
-                return modelAndView(root,"report.ftl");
+            public Object handle(final Request request, Response response) {
+                return async(request, response, new AsyncRoute() {
+                    public Result call (ResponseWriter out) {
+                        String screen_name = request.params("screen_name");
+                        String is = request.queryParams("interval");
+                        long interval;
+                        try {
+                            interval = is == null ? 86400000 : Long.parseLong(is);
+                        } catch (NumberFormatException ex) {
+                            return new Result(400, "text/plain", "invalid number: " + ex.getMessage());
+                        }
+
+                        TemplateModel root = getModel (screen_name, interval);
+                        return new Result(200, "text/html; charset=utf-8",
+                                          templates.render(templates.modelAndView(root, "report.ftl")));
+                    }
+                }, "text/html; charset=utf-8");
+            }
+        });
+        Spark.get(new Route("/api/followers/:screen_name") {
+            @Override
+            public Object handle(final Request request, Response response) {
+                return async(request, response, new AsyncRoute() {
+                    public Result call (ResponseWriter out) throws IOException {
+                        return writeReport(ReportStream.Kind.FOLLOWERS, request, out);
+                    }
+                }, "application/json; charset=utf-8");
+            }
+        });
+        Spark.get(new Route("/api/unfollowers/:screen_name") {
+            @Override
+            public Object handle(final Request request, Response response) {
+                return async(request, response, new AsyncRoute() {
+                    public Result call (ResponseWriter out) throws IOException {
+                        return writeReport(ReportStream.Kind.UNFOLLOWERS, request, out);
+                    }
+                }, "application/json; charset=utf-8");
+            }
+        });
+        Spark.get(new Route("/metrics") {
+            @Override
+            public Object handle(Request request, Response response) {
+                response.type("text/plain; version=0.0.4");
+                return Metrics.toText();
             }
         });
         Spark.post(new Route("/report") {
@@ -62,6 +277,135 @@ public class WebUI {
         });
     }
     
+    /**
+     * Computes the response of a route on a report thread, so that the
+     * thread of the web server is free while it waits.  The request is
+     * suspended (with the Servlet 3.0 async API), and dispatched again once
+     * the result is there; the route is then called a second time, and this
+     * method returns the result, which Spark writes as usual.  A route that
+     * streams its body has it dispatched again to commit the response
+     * instead (see ResponseWriter).
+     * @param type the content type of a streamed body
+     * @return what the route should return
+     */
+    private static Object async (Request request, Response response, final AsyncRoute route,
+                                 final String type) {
+        HttpServletRequest raw = request.raw();
+        ResponseWriter stream = (ResponseWriter)raw.getAttribute(STREAM);
+        if (stream != null) {
+            raw.removeAttribute(STREAM);
+            response.status(200);
+            response.type(stream.type);
+            try {
+                // Spark leaves a committed response alone
+                response.raw().flushBuffer();
+            } catch (IOException ex) {
+                // the client is gone; the report thread finds out when it writes
+            }
+            AsyncContext context = raw.startAsync();
+            context.setTimeout(0);
+            stream.committed(context);
+            return "";
+        }
+        Result result = (Result)raw.getAttribute(RESULT);
+        if (result != null) {
+            response.status(result.status);
+            response.type(result.type);
+            return result.body;
+        }
+        final AsyncContext context = raw.startAsync();
+        // the bulkheads and Twitter requests have their own timeouts
+        context.setTimeout(0);
+        reportThreads.execute(new Runnable() {
+            public void run() {
+                ResponseWriter out = new ResponseWriter(context, type);
+                Result r;
+                try {
+                    r = route.call(out);
+                } catch (RejectedExecutionException ex) {
+                    r = new Result(503, "text/plain", ex.getMessage());
+                } catch (Exception ex) {
+                    ex.printStackTrace();
+                    r = new Result(500, "text/plain", "internal error");
+                }
+                if (r == null || out.isCommitted()) {
+                    try {
+                        out.close();
+                    } catch (IOException ex) {
+                        // the client is gone
+                    }
+                } else {
+                    context.getRequest().setAttribute(RESULT, r);
+                    context.dispatch();
+                }
+            }
+        });
+        // not null, or Spark would answer with 404
+        return "";
+    }
+
+    /**
+     * Returns an executor that runs every task on a new virtual thread,
+     * if the JVM supports them, and otherwise on a fixed pool of
+     * REPORT_THREADS daemon threads.
+     */
+    private static Executor createReportThreads() {
+        try {
+            // Thread.ofVirtual().factory(), without requiring Java 21 to build
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            final ThreadFactory factory = (ThreadFactory)Class.forName("java.lang.Thread$Builder")
+                .getMethod("factory").invoke(builder);
+            LOG.info("reports run on virtual threads");
+            return new Executor() {
+                public void execute (Runnable command) {
+                    factory.newThread(command).start();
+                }
+            };
+        } catch (ReflectiveOperationException ex) {
+            LOG.info("reports run on {} threads", REPORT_THREADS);
+            final AtomicInteger count = new AtomicInteger();
+            return Executors.newFixedThreadPool(REPORT_THREADS, new ThreadFactory() {
+                public Thread newThread (Runnable r) {
+                    Thread result = new Thread(r, "report-" + count.incrementAndGet());
+                    result.setDaemon(true);
+                    return result;
+                }
+            });
+        }
+    }
+
+    /**
+     * Handles the JSON API: /api/followers/:screen_name and
+     * /api/unfollowers/:screen_name, with the query parameters
+     * <code>interval</code> (as in the report), <code>limit</code>
+     * (the page size) and <code>after</code> (the <code>next</code>
+     * token from the previous page).  The page is streamed to
+     * <code>out</code>.
+     * @return the result if the request is invalid, or null
+     */
+    private static Result writeReport (ReportStream.Kind kind, Request request, Writer out)
+        throws IOException
+    {
+        String is = request.queryParams("interval");
+        String ls = request.queryParams("limit");
+        long interval;
+        int limit;
+        try {
+            interval = is == null ? 86400000 : Long.parseLong(is);
+            limit = ls == null ? ReportStream.DEFAULT_PAGE_SIZE : Integer.parseInt(ls);
+        } catch (NumberFormatException ex) {
+            return new Result(400, "text/plain", "invalid number: " + ex.getMessage());
+        }
+        try {
+            ui.writeReport(kind, request.params("screen_name"), interval,
+                           request.queryParams("after"), limit, out);
+        } catch (IllegalArgumentException ex) {
+            // the token is checked before anything is written
+            return new Result(400, "text/plain", ex.getMessage());
+        }
+        return null;
+    }
+    
     private static TemplateModel getModel (String screen_name, long interval) {
         List<Follower> followers = ui.getRecentFollowers(screen_name, interval);
         List<Unfollower> unfollowers = ui.getRecentUnfollowers(screen_name, interval);
@@ -0,0 +1,122 @@
+package net.followt.benchmark;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.followt.FollowerStore;
+import net.followt.Interval;
+import net.followt.Scan;
+
+/**
+ * A FollowerStore that passes all calls on to another one and counts
+ * them, so that benchmarks can report the store operations per page
+ * for any backend.  Optionally, every write is delayed, to emulate a
+ * database on another machine.
+ */
+public class CountingFollowerStore implements FollowerStore {
+
+    private final FollowerStore store;
+    private final AtomicLong reads = new AtomicLong();
+    private final AtomicLong writes = new AtomicLong();
+    private final long writeLatency;
+
+    public CountingFollowerStore (FollowerStore store) {
+        this(store, 0);
+    }
+
+    /**
+     * @param writeLatency the delay of every write, in milliseconds
+     */
+    public CountingFollowerStore (FollowerStore store, long writeLatency) {
+        this.store = store;
+        this.writeLatency = writeLatency;
+    }
+
+    public long getReads() {
+        return reads.get();
+    }
+
+    public long getWrites() {
+        return writes.get();
+    }
+
+    private void write() {
+        writes.incrementAndGet();
+        if (writeLatency == 0) return;
+        try {
+            Thread.sleep(writeLatency);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public Scan nextScan (Collection<Long> exclude) {
+        reads.incrementAndGet();
+        return store.nextScan(exclude);
+    }
+
+    public Scan getScan (long userId) {
+        reads.incrementAndGet();
+        return store.getScan(userId);
+    }
+
+    public void saveScan (Scan scan) {
+        write();
+        store.saveScan(scan);
+    }
+
+    public void addScan (long userId) {
+        write();
+        store.addScan(userId);
+    }
+
+    public Map<Long,Date> getScanEnded() {
+        reads.incrementAndGet();
+        return store.getScanEnded();
+    }
+
+    public long[] getOpenFollowers (long followee) {
+        reads.incrementAndGet();
+        return store.getOpenFollowers(followee);
+    }
+
+    public void openIntervals (long followee, long[] followers, Date start) {
+        write();
+        store.openIntervals(followee, followers, start);
+    }
+
+    public void closeIntervals (long followee, long[] followers, Date end, Date lastSeen) {
+        write();
+        store.closeIntervals(followee, followers, end, lastSeen);
+    }
+
+    public Date getFirstStart (long followee) {
+        reads.incrementAndGet();
+        return store.getFirstStart(followee);
+    }
+
+    public void visitIntervals (long followee, Order order, Date from, Interval after, int limit,
+                                IntervalVisitor visitor) throws IOException {
+        reads.incrementAndGet();
+        store.visitIntervals(followee, order, from, after, limit, visitor);
+    }
+
+    public String[] getScreenNames (long[] ids) {
+        reads.incrementAndGet();
+        return store.getScreenNames(ids);
+    }
+
+    public void putScreenNames (long[] ids, String[] names) {
+        write();
+        store.putScreenNames(ids, names);
+    }
+
+    public long getUserId (String screenName) {
+        reads.incrementAndGet();
+        return store.getUserId(screenName);
+    }
+
+}
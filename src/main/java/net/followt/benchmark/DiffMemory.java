@@ -0,0 +1,41 @@
+package net.followt.benchmark;
+
+import java.util.Date;
+import java.util.List;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+import net.followt.FollowerDiff;
+import net.followt.util.LongList;
+
+/**
+ * Same as MultiSearchMemory, but using the FollowerDiff engine of the
+ * Scanner: a sorted primitive array, a single query to load the open intervals,
+ * and a single multi-update to close them.
+ */
+public class DiffMemory extends SetBenchmark {
+
+    public void computeDifference(List<Integer> a, List<Integer> b, List<Integer> c) {
+        DBCursor history = fhistory.find(new BasicDBObject("followee", FOLLOWEE),
+                                         new BasicDBObject("follower", 1).append("_id", 0))
+                                   .batchSize(10000);
+        LongList open = new LongList();
+        for (DBObject o : history) {
+            open.add(((Number)o.get("follower")).longValue());
+        }
+        LongList page = new LongList(b.size());
+        for (int x : b) page.add(x);
+        FollowerDiff diff = new FollowerDiff(FOLLOWEE, open.toSortedArray());
+        long[] newFollowers = diff.addPage(page);
+        if (newFollowers.length != 0) throw new RuntimeException ("wrong result: " + newFollowers.length);
+        long[] unfollowers = diff.getUnfollowers();
+        fhistory.update(new BasicDBObject("followee", FOLLOWEE)
+                                  .append("follower", new BasicDBObject("$in", unfollowers)),
+                        new BasicDBObject("$set", new BasicDBObject("end", new Date())),
+                        false, true);
+        if (unfollowers.length != DIFF_SIZE) throw new RuntimeException ("wrong result: " + unfollowers.length);
+    }
+
+}
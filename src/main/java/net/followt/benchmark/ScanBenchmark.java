@@ -0,0 +1,302 @@
+package net.followt.benchmark;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import com.mongodb.DB;
+import com.mongodb.DBObject;
+import com.mongodb.MongoClient;
+
+import net.followt.FollowerStore;
+import net.followt.Scan;
+import net.followt.ScanPipeline;
+import net.followt.Scanner;
+import net.followt.Storage;
+import net.followt.Twitter;
+import net.followt.UserDB;
+import net.followt.sim.FollowerGraph;
+import net.followt.sim.TwitterSimulator;
+import net.followt.util.LongList;
+
+/**
+ * Measures the whole ingest path of the Scanner (fetching a page, computing
+ * the diff, writing the follower history, closing intervals and updating the
+ * scan state) against the TwitterSimulator and a local store or mongod.
+ * <p>
+ * The accounts are scanned for a number of rounds; round 0 imports all
+ * followers, and before each further round, a share of the followers of each
+ * account (the churn) is replaced.  For every round, one line is appended to
+ * a CSV file, with the followers ingested per second, the store operations
+ * (and, on MongoDB, the server's operations) per page, the median and 99th
+ * percentile of the page latency, and the heap high-water mark.
+ * <p>
+ * The simulator's rate limits are lifted, so that the numbers reflect our
+ * own code.  Everything is configured with system properties:
+ * followt.bench.profile (one of the Profiles, SMALL by default), which can be
+ * refined with followt.bench.accounts, followt.bench.followers,
+ * followt.bench.followers.max and followt.bench.churn; followt.bench.rounds
+ * (3), followt.bench.latency (simulated network latency in ms, 0),
+ * followt.bench.store ("local" or "mongo") and followt.bench.csv (the output
+ * file, scan-benchmark.csv).  On MongoDB, the database followt_bench is
+ * dropped and recreated, unless another one is set with followt.mongo.db.
+ * followt.bench.store.latency delays every write to the store by the given
+ * number of milliseconds, to emulate a database on another machine.
+ * <p>
+ * With followt.bench.pipeline=true, the scans go through a ScanPipeline
+ * instead of being scanned one page at a time, so that fetching and
+ * writing overlap.  There is a single fetching thread in both modes.  In
+ * pipeline mode, the latencies are those of whole scans rather than pages.
+ */
+public class ScanBenchmark {
+
+    /**
+     * Predefined account-size and churn profiles.
+     */
+    public enum Profile {
+        /** many small accounts */
+        SMALL (1000, 100, 5000, 0.01),
+        /** a realistic mix, from small accounts to one with a million followers */
+        MIXED (100, 1000, 1000000, 0.01),
+        /** a single very large account */
+        LARGE (1, 5000000, 5000000, 0.001),
+        /** medium-sized accounts with high churn, to stress closing intervals */
+        CHURN (100, 10000, 10000, 0.1);
+
+        final int accounts;
+        final int minFollowers;
+        final int maxFollowers;
+        final double churn;
+
+        private Profile (int accounts, int minFollowers, int maxFollowers, double churn) {
+            this.accounts = accounts;
+            this.minFollowers = minFollowers;
+            this.maxFollowers = maxFollowers;
+            this.churn = churn;
+        }
+    }
+
+    private final static String HEADER =
+        "date,profile,store,accounts,min_followers,max_followers,churn,round,pages,followers,"
+      + "seconds,followers_per_sec,store_ops_per_page,mongo_ops_per_page,p50_ms,p99_ms,heap_peak_mb,mode";
+
+    /**
+     * The simulator's rate limit window.  It is short, so that the client's
+     * rate limiter picks up the lifted limits quickly (see primeRateLimit()).
+     */
+    private final static long WINDOW = 1000;
+
+    private static final String[] OPCOUNTERS = { "insert", "query", "update", "delete", "getmore" };
+
+    public static void main (String[] args) throws IOException {
+        Profile profile = Profile.valueOf(System.getProperty("followt.bench.profile", "SMALL"));
+        int accounts = Integer.getInteger("followt.bench.accounts", profile.accounts);
+        int minFollowers = Integer.getInteger("followt.bench.followers", profile.minFollowers);
+        int maxFollowers = Integer.getInteger("followt.bench.followers.max",
+                                              Math.max(minFollowers, profile.maxFollowers));
+        double churn = Double.parseDouble(System.getProperty("followt.bench.churn", "" + profile.churn));
+        int rounds = Integer.getInteger("followt.bench.rounds", 3);
+        String storeName = System.getProperty("followt.bench.store", "local");
+        File csv = new File(System.getProperty("followt.bench.csv", "scan-benchmark.csv"));
+        boolean pipelined = Boolean.getBoolean("followt.bench.pipeline");
+
+        File dir = Files.createTempDirectory("followt-bench").toFile();
+        System.setProperty("followt.bitmap.dir", new File(dir, "bitmaps").getPath());
+        System.setProperty("followt.journal.dir", new File(dir, "journal").getPath());
+        if (storeName.equals("local")) {
+            System.setProperty("followt.store", "local");
+            System.setProperty("followt.store.dir", new File(dir, "store").getPath());
+        } else {
+            System.setProperty("followt.store", "mongo");
+            if (System.getProperty("followt.mongo.db") == null) {
+                System.setProperty("followt.mongo.db", "followt_bench");
+            }
+            MongoClient client = new MongoClient();
+            client.getDB(System.getProperty("followt.mongo.db")).dropDatabase();
+            client.close();
+        }
+
+        FollowerGraph graph = new FollowerGraph(1, minFollowers, maxFollowers, churn, 1);
+        graph.setEpoch(0);
+        TwitterSimulator sim = new TwitterSimulator(graph, WINDOW,
+                                                    Long.getLong("followt.bench.latency", 0), 0);
+        sim.setLimits(Integer.MAX_VALUE, Integer.MAX_VALUE);
+        sim.start(0);
+        Properties conf = new Properties();
+        conf.setProperty("api_key", "bench");
+        conf.setProperty("api_secret", "bench");
+        conf.setProperty("access_token", "bench");
+        conf.setProperty("access_secret", "bench");
+        conf.setProperty("api_url", sim.getUrl());
+        Twitter.setInstance(Twitter.create(conf));
+
+        CountingFollowerStore store = new CountingFollowerStore(Storage.getStore(),
+                                                                Long.getLong("followt.bench.store.latency", 0));
+        Storage.setStore(store);
+        DB db = Storage.getMongoDB();
+        Scanner scanner = new Scanner();
+        ScanPipeline pipeline = null;
+        if (pipelined) {
+            pipeline = new ScanPipeline(scanner, Integer.getInteger("followt.scanner.writers", 2),
+                                        Integer.getInteger("followt.scanner.queue", 4));
+            pipeline.start();
+        }
+
+        System.out.println("monitoring " + accounts + " accounts");
+        long[] ids = new long[accounts];
+        int pagesPerRound = 0;
+        for (int i=0; i<accounts; i++) {
+            ids[i] = i + 1;
+            scanner.startMonitoring("user" + ids[i]);
+            int n = graph.getFollowerCount(ids[i]);
+            pagesPerRound += Math.max(1, (n + TwitterSimulator.PAGE_SIZE - 1) / TwitterSimulator.PAGE_SIZE);
+        }
+        // the Scanner logs the screen name of each account, so resolve them up front
+        UserDB.getInstance().getScreenNames(ids, 5, TimeUnit.MINUTES);
+        primeRateLimit();
+
+        boolean newFile = !csv.exists();
+        PrintWriter out = new PrintWriter(new FileWriter(csv, true));
+        if (newFile) out.println(HEADER);
+        String date = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss").format(new Date());
+        PrintStream stdout = System.out;
+        long[] latencies = new long[pipelined ? accounts : pagesPerRound];
+        for (int round=0; round<rounds; round++) {
+            graph.setEpoch(round);
+            System.gc();
+            resetPeakHeap();
+            long followers = sim.getFollowersServed();
+            long storeOps = store.getReads() + store.getWrites();
+            long mongoOps = mongoOps(db);
+            long start = System.nanoTime();
+            // the Scanner logs every page, which would distort the measurement
+            System.setOut(new PrintStream(new OutputStream() {
+                public void write (int b) {}
+                public void write (byte[] b, int off, int len) {}
+            }));
+            try {
+                if (pipelined) {
+                    scanAll(store, pipeline, latencies);
+                } else {
+                    for (int page=0; page<pagesPerRound; page++) {
+                        long t = System.nanoTime();
+                        scanner.run();
+                        latencies[page] = System.nanoTime() - t;
+                    }
+                }
+            } finally {
+                System.setOut(stdout);
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            followers = sim.getFollowersServed() - followers;
+            storeOps = store.getReads() + store.getWrites() - storeOps;
+            mongoOps = db == null ? -1 : mongoOps(db) - mongoOps;
+            Arrays.sort(latencies);
+            String line = String.format(Locale.ROOT,
+                "%s,%s,%s,%d,%d,%d,%s,%d,%d,%d,%.3f,%.0f,%.2f,%s,%.3f,%.3f,%.1f,%s",
+                date, profile, storeName, accounts, minFollowers, maxFollowers, churn,
+                round, pagesPerRound, followers, seconds, followers / seconds,
+                (double)storeOps / pagesPerRound,
+                mongoOps < 0 ? "" : String.format(Locale.ROOT, "%.2f", (double)mongoOps / pagesPerRound),
+                percentile(latencies, 0.50) / 1e6, percentile(latencies, 0.99) / 1e6,
+                peakHeap() / 1048576.0, pipelined ? "pipeline" : "page");
+            out.println(line);
+            out.flush();
+            System.out.println(line);
+        }
+        out.close();
+        sim.stop();
+        System.out.println("results appended to " + csv);
+        System.exit(0);
+    }
+
+    /**
+     * Runs one scan of each account through the pipeline, and waits until
+     * all of them have been written.
+     * @param latencies receives the time of each scan, from the start of
+     * its fetch stage to the end of its last checkpoint
+     */
+    private static void scanAll (FollowerStore store, ScanPipeline pipeline, final long[] latencies) {
+        final Set<Long> inFlight = Collections.newSetFromMap(new ConcurrentHashMap<Long,Boolean>());
+        final Semaphore done = new Semaphore(0);
+        for (int i=0; i<latencies.length; i++) {
+            final Scan scan = store.nextScan(inFlight);
+            final int index = i;
+            final long start = System.nanoTime();
+            inFlight.add(scan.user_id);
+            pipeline.scan(scan, new Runnable() {
+                public void run() {
+                    latencies[index] = System.nanoTime() - start;
+                    inFlight.remove(scan.user_id);
+                    done.release();
+                }
+            });
+        }
+        done.acquireUninterruptibly(latencies.length);
+    }
+
+    /**
+     * Sends one request to followers/ids and waits for the window to end.
+     * The client's rate limiter starts with Twitter's limit, and only adopts
+     * the simulator's lifted limit at the end of a window.
+     */
+    private static void primeRateLimit() {
+        Twitter.getInstance().getFollowerBatch(1, -1, new LongList());
+        try {
+            Thread.sleep(WINDOW + 2000);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static long percentile (long[] sorted, double p) {
+        return sorted[Math.min(sorted.length - 1, (int)Math.ceil(p * sorted.length) - 1)];
+    }
+
+    /**
+     * Returns the operations the server has executed, from serverStatus.
+     * This includes the operations of other clients, so the benchmark
+     * should have the mongod to itself.
+     */
+    private static long mongoOps (DB db) {
+        if (db == null) return -1;
+        DBObject counters = (DBObject)db.command("serverStatus").get("opcounters");
+        long result = 0;
+        for (String c : OPCOUNTERS) {
+            result += ((Number)counters.get(c)).longValue();
+        }
+        return result;
+    }
+
+    private static void resetPeakHeap() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) pool.resetPeakUsage();
+        }
+    }
+
+    private static long peakHeap() {
+        long result = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) result += pool.getPeakUsage().getUsed();
+        }
+        return result;
+    }
+
+}
@@ -66,7 +66,7 @@ public abstract class SetBenchmark {
         Date now = new Date();
         fhistory = getCollection("fhistory");
         fhistory.drop();
-        fhistory.ensureIndex(new BasicDBObject("followee",1)
+        fhistory.createIndex(new BasicDBObject("followee",1)
                                        .append("follower",1));
         for (int x : a) {
             fhistory.insert(new BasicDBObject("followee",FOLLOWEE)
@@ -79,7 +79,7 @@ public abstract class SetBenchmark {
     public void prepareCurrent(List<Integer> a, List<Integer> b, List<Integer> c) {
         fcurrent = getCollection("fcurrent");
         fcurrent.drop();
-        fcurrent.ensureIndex(new BasicDBObject("followee",1).append("follower",1));
+        fcurrent.createIndex(new BasicDBObject("followee",1).append("follower",1));
         for (int x: b) {
             fcurrent.insert(new BasicDBObject("followee",FOLLOWEE)
                                       .append("follower",x));
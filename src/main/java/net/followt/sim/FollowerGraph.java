@@ -0,0 +1,179 @@
+package net.followt.sim;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A synthetic follower graph for the TwitterSimulator, which is computed
+ * on the fly rather than stored, so that accounts with millions of
+ * followers cost no memory.
+ * <p>
+ * Each user has a fixed number of follower slots.  The follower in a slot
+ * is derived from the user, the slot and the slot's version; time is divided
+ * into epochs, and from one epoch to the next, a fraction <code>churn</code>
+ * of the slots get a new version, i.e. one follower leaves and another one
+ * arrives.  Every slot has its own phase, so the changes are spread evenly
+ * over the slots.  The follower set of a user in any epoch can therefore be
+ * recomputed exactly, which lets a test check what the Scanner recorded.
+ * <p>
+ * Follower counts are log-uniformly distributed between minFollowers and
+ * maxFollowers, unless set explicitly with setFollowerCount().  Follower ids
+ * are a mix of old 32-bit ids and newer 64-bit ones, like on Twitter.  They
+ * are not plain hashes, which would give a large account duplicate
+ * followers, but a bijection of the slot and version, keyed by the user:
+ * the followers of a user in one epoch are distinct, as long as
+ * version * count + slot stays below 2^32 (for 5 million followers and
+ * a churn of 0.01, that is 85,000 epochs).
+ *
+ * @author drmirror
+ */
+public class FollowerGraph {
+
+    /**
+     * The share of followers with 64-bit ids, in percent.
+     */
+    private final static int SNOWFLAKE_PERCENT = 20;
+    private final static long SNOWFLAKE_BASE = 700000000000000000L;
+
+    private final long seed;
+    private final int minFollowers;
+    private final int maxFollowers;
+    private final double churn;
+    private final long epochLength;
+    private final long startTime = System.currentTimeMillis();
+    private final Map<Long,Integer> counts = new ConcurrentHashMap<Long,Integer>();
+    private volatile long fixedEpoch = -1;
+
+    /**
+     * @param seed makes the graph reproducible
+     * @param churn the fraction of each user's followers replaced per epoch
+     * @param epochLength the length of an epoch in milliseconds
+     */
+    public FollowerGraph (long seed, int minFollowers, int maxFollowers,
+                          double churn, long epochLength) {
+        if (minFollowers < 0 || maxFollowers < minFollowers) {
+            throw new IllegalArgumentException("invalid follower range");
+        }
+        if (churn < 0 || churn > 1) throw new IllegalArgumentException("invalid churn: " + churn);
+        if (epochLength <= 0) throw new IllegalArgumentException("invalid epoch length");
+        this.seed = seed;
+        this.minFollowers = minFollowers;
+        this.maxFollowers = maxFollowers;
+        this.churn = churn;
+        this.epochLength = epochLength;
+    }
+
+    public void setFollowerCount (long user, int count) {
+        counts.put(user, count);
+    }
+
+    public int getFollowerCount (long user) {
+        Integer result = counts.get(user);
+        if (result != null) return result;
+        if (minFollowers == maxFollowers || minFollowers == 0) return maxFollowers;
+        double u = unit(mix(seed ^ mix(user)));
+        return (int)Math.round(minFollowers * Math.pow((double)maxFollowers / minFollowers, u));
+    }
+
+    /**
+     * Returns the current epoch.
+     */
+    public long getEpoch() {
+        if (fixedEpoch >= 0) return fixedEpoch;
+        return (System.currentTimeMillis() - startTime) / epochLength;
+    }
+
+    /**
+     * Fixes the current epoch, instead of deriving it from the clock,
+     * so that a benchmark can decide when the followers change.
+     * A negative value goes back to the clock.
+     */
+    public void setEpoch (long epoch) {
+        fixedEpoch = epoch;
+    }
+
+    /**
+     * Returns the follower of the given user in the given slot and epoch.
+     */
+    public long getFollower (long user, int slot, long epoch) {
+        return getFollower(user, slot, epoch, getFollowerCount(user));
+    }
+
+    private long getFollower (long user, int slot, long epoch, int count) {
+        long key = mix(seed ^ mix(user));
+        long h = mix(seed ^ mix(user) ^ slot);
+        long version = (long)Math.floor(epoch * churn + unit(h));
+        // unique for every slot and version of this user
+        long x = (version * count + slot) ^ key;
+        if ((mix(h + version) >>> 1) % 100 < SNOWFLAKE_PERCENT) {
+            return SNOWFLAKE_BASE + permute59(x);
+        } else {
+            return (permute32((int)x) & 0xFFFFFFFFL) + 1;
+        }
+    }
+
+    /**
+     * Fills <code>dest</code> with the followers of the given user in the
+     * given epoch, starting at slot <code>from</code>.
+     * @return the number of followers written
+     */
+    public int getFollowers (long user, long epoch, int from, long[] dest) {
+        int count = getFollowerCount(user);
+        int n = Math.max(0, Math.min(dest.length, count - from));
+        for (int i=0; i<n; i++) dest[i] = getFollower(user, from + i, epoch, count);
+        return n;
+    }
+
+    /**
+     * Returns all followers of the given user in the given epoch,
+     * in slot order.
+     */
+    public long[] getFollowers (long user, long epoch) {
+        long[] result = new long[getFollowerCount(user)];
+        getFollowers(user, epoch, 0, result);
+        return result;
+    }
+
+    /**
+     * The finalizer of SplitMix64, a good and cheap 64-bit mixing function.
+     */
+    static long mix (long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * A bijection of the 32-bit integers (the finalizer of MurmurHash3).
+     */
+    static int permute32 (int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * A bijection of [0, 2^59), of the lower 59 bits of z: xor-shifts and
+     * multiplications with odd numbers, modulo 2^59.  Added to
+     * SNOWFLAKE_BASE, the result is still a positive long.
+     */
+    static long permute59 (long z) {
+        final long mask = (1L << 59) - 1;
+        z &= mask;
+        z ^= z >>> 31;
+        z = (z * 0xbf58476d1ce4e5b9L) & mask;
+        z ^= z >>> 29;
+        z = (z * 0x94d049bb133111ebL) & mask;
+        return z ^ (z >>> 32);
+    }
+
+    /**
+     * Maps a hash to [0, 1).
+     */
+    private static double unit (long h) {
+        return (h >>> 11) * 0x1.0p-53;
+    }
+
+}
@@ -0,0 +1,481 @@
+package net.followt.sim;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import net.followt.util.JsonWriter;
+
+/**
+ * An embeddable fake of the parts of the Twitter API that followt uses,
+ * for load-testing the Scanner offline: followers/ids (with cursors) and
+ * users/lookup (by user_id or screen_name, via GET or POST).
+ * <p>
+ * The followers come from a synthetic FollowerGraph.  Screen names are
+ * "user" followed by the id, and any other screen name is mapped to an id
+ * by hashing it, so that arbitrary accounts can be monitored.
+ * <p>
+ * Rate limits are enforced like Twitter does: per access token (taken from
+ * the OAuth Authorization header) and endpoint, in windows that start with
+ * the first request.  Every response carries the x-rate-limit-limit,
+ * x-rate-limit-remaining and x-rate-limit-reset headers, and a request over
+ * the limit is answered with HTTP 429 and error code 88.  Signatures are
+ * not verified.  Each response is delayed by the configured latency, plus
+ * a random jitter, and compressed with gzip if the client accepts it.
+ * <p>
+ * Users can be marked as missing (deleted or suspended) with setMissing():
+ * users/lookup leaves them out of its response, and answers with HTTP 404
+ * and error code 17 if none of the requested users exist.  Errors can be
+ * injected with failNext() (server errors) and revoke() (an access token
+ * that Twitter no longer accepts).
+ * <p>
+ * To point followt at the simulator, set api_url in twitter.properties (or
+ * the system property followt.twitter.url) to the value of getUrl().
+ *
+ * @author drmirror
+ */
+public class TwitterSimulator {
+
+    public final static int PAGE_SIZE = 5000;
+    public final static int MAX_LOOKUPS = 100;
+
+    /**
+     * The rate limits per window and access token, as documented by Twitter.
+     */
+    public final static int FOLLOWERS_IDS_LIMIT = 15;
+    public final static int USERS_LOOKUP_LIMIT = 900;
+
+    private final static Pattern OAUTH_TOKEN = Pattern.compile("oauth_token=\"([^\"]*)\"");
+
+    static {
+        // clients keep connections alive, and with Nagle's algorithm, the last
+        // small segment of each response would wait for a delayed ACK
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+    }
+
+    private final FollowerGraph graph;
+    private int followersIdsLimit = FOLLOWERS_IDS_LIMIT;
+    private int usersLookupLimit = USERS_LOOKUP_LIMIT;
+    private final long window;
+    private volatile long latency;
+    private final long jitter;
+    private HttpServer server;
+    private ExecutorService executor;
+
+    private final Map<String,Window> windows = new ConcurrentHashMap<String,Window>();
+    private final Set<Long> missing = ConcurrentHashMap.newKeySet();
+    private final Set<String> revoked = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger failures = new AtomicInteger();
+    private volatile int failureStatus;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong followersServed = new AtomicLong();
+
+    /**
+     * The rate limit state of one access token at one endpoint.
+     */
+    private static class Window {
+        private final int limit;
+        private int remaining;
+        private long reset = 0;
+        Window (int limit) {
+            this.limit = limit;
+        }
+        /**
+         * Takes one request from the window.
+         * @return false if the limit has been reached
+         */
+        synchronized boolean take (long now, long length) {
+            if (now >= reset) {
+                reset = now + length;
+                remaining = limit;
+            }
+            if (remaining == 0) return false;
+            remaining--;
+            return true;
+        }
+        synchronized void writeHeaders (HttpExchange ex) {
+            ex.getResponseHeaders().set("x-rate-limit-limit", Integer.toString(limit));
+            ex.getResponseHeaders().set("x-rate-limit-remaining", Integer.toString(remaining));
+            // rounded up, so that clients never retry too early
+            ex.getResponseHeaders().set("x-rate-limit-reset", Long.toString((reset + 999) / 1000));
+        }
+    }
+
+    /**
+     * @param graph the followers to serve
+     * @param window the length of a rate limit window in milliseconds
+     * (15 minutes on Twitter)
+     * @param latency the minimum delay of each response in milliseconds
+     * @param jitter the maximum random delay added to that
+     */
+    public TwitterSimulator (FollowerGraph graph, long window, long latency, long jitter) {
+        this.graph = graph;
+        this.window = window;
+        this.latency = latency;
+        this.jitter = jitter;
+    }
+
+    /**
+     * Starts serving on the given port (0 for any free port).
+     */
+    public synchronized void start (int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+        server.createContext("/1.1/followers/ids.json", new HttpHandler() {
+            public void handle (HttpExchange ex) throws IOException {
+                serve(ex, "followers/ids", followersIdsLimit);
+            }
+        });
+        server.createContext("/1.1/users/lookup.json", new HttpHandler() {
+            public void handle (HttpExchange ex) throws IOException {
+                serve(ex, "users/lookup", usersLookupLimit);
+            }
+        });
+        // responses are delayed by sleeping, so a thread is needed per concurrent request
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    public synchronized void stop() {
+        if (server == null) return;
+        server.stop(0);
+        executor.shutdownNow();
+        server = null;
+    }
+
+    /**
+     * Returns the API root URL, to be used as followt's api_url.
+     */
+    public String getUrl() {
+        return "http://localhost:" + server.getAddress().getPort() + "/1.1/";
+    }
+
+    /**
+     * Changes the rate limits per window, e.g. to benchmark without
+     * waiting for windows to reset.  Only affects new windows.
+     */
+    public void setLimits (int followersIds, int usersLookup) {
+        this.followersIdsLimit = followersIds;
+        this.usersLookupLimit = usersLookup;
+    }
+
+    /**
+     * Changes the minimum delay of the responses to requests that
+     * arrive from now on.
+     */
+    public void setLatency (long latency) {
+        this.latency = latency;
+    }
+
+    /**
+     * Marks the given users as deleted or suspended, so that users/lookup
+     * does not return them.
+     */
+    public void setMissing (long... ids) {
+        for (long id : ids) missing.add(id);
+    }
+
+    /**
+     * Answers the next <code>count</code> requests with the given HTTP
+     * status, such as 503, without counting them against the rate limit.
+     */
+    public void failNext (int count, int status) {
+        failureStatus = status;
+        failures.set(count);
+    }
+
+    /**
+     * Rejects all further requests with the given access token with
+     * HTTP 401 and error code 89, like Twitter does for a revoked token.
+     */
+    public void revoke (String token) {
+        revoked.add(token);
+    }
+
+    public FollowerGraph getGraph() {
+        return graph;
+    }
+
+    /**
+     * Returns the number of requests received, including rejected ones.
+     */
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    /**
+     * Returns the number of requests rejected because of the rate limit.
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * Returns the number of follower ids sent in followers/ids responses.
+     */
+    public long getFollowersServed() {
+        return followersServed.get();
+    }
+
+    private void serve (HttpExchange ex, String endpoint, int limit) throws IOException {
+        requests.incrementAndGet();
+        try {
+            delay();
+            String token = getToken(ex);
+            if (token == null) {
+                error(ex, 400, 215, "Bad Authentication data.");
+                return;
+            }
+            if (revoked.contains(token)) {
+                error(ex, 401, 89, "Invalid or expired token.");
+                return;
+            }
+            if (takeFailure()) {
+                error(ex, failureStatus, 131, "Internal error");
+                return;
+            }
+            String key = token + " " + endpoint;
+            Window w = windows.get(key);
+            if (w == null) {
+                windows.putIfAbsent(key, new Window(limit));
+                w = windows.get(key);
+            }
+            boolean allowed = w.take(System.currentTimeMillis(), window);
+            w.writeHeaders(ex);
+            if (!allowed) {
+                rejected.incrementAndGet();
+                error(ex, 429, 88, "Rate limit exceeded");
+                return;
+            }
+            Map<String,String> params = getParams(ex);
+            if (endpoint.equals("followers/ids")) {
+                followersIds(ex, params);
+            } else {
+                usersLookup(ex, params);
+            }
+        } catch (RuntimeException e) {
+            error(ex, 500, 131, "Internal error: " + e);
+        } finally {
+            ex.close();
+        }
+    }
+
+    private void followersIds (HttpExchange ex, Map<String,String> params) throws IOException {
+        long user;
+        long cursor;
+        try {
+            user = Long.parseLong(params.get("user_id"));
+            cursor = params.containsKey("cursor") ? Long.parseLong(params.get("cursor")) : -1;
+        } catch (NumberFormatException e) {
+            error(ex, 400, 44, "user_id parameter is invalid.");
+            return;
+        }
+        // the cursor is the first slot of the page, offset by one so that it is never 0
+        int from = cursor <= 0 ? 0 : (int)Math.min(cursor - 1, Integer.MAX_VALUE);
+        long[] ids = new long[PAGE_SIZE];
+        int n = graph.getFollowers(user, graph.getEpoch(), from, ids);
+        long next = from + n < graph.getFollowerCount(user) ? from + n + 1 : 0;
+        long previous = from == 0 ? 0 : -Math.max(1, from - PAGE_SIZE + 1);
+        JsonWriter json = beginJson(ex, 200);
+        json.beginObject().name("ids").beginArray();
+        for (int i=0; i<n; i++) json.value(ids[i]);
+        json.endArray()
+            .name("next_cursor").value(next)
+            .name("next_cursor_str").value(Long.toString(next))
+            .name("previous_cursor").value(previous)
+            .name("previous_cursor_str").value(Long.toString(previous))
+            .endObject()
+            .close();
+        followersServed.addAndGet(n);
+    }
+
+    private void usersLookup (HttpExchange ex, Map<String,String> params) throws IOException {
+        boolean byName = params.containsKey("screen_name");
+        String list = byName ? params.get("screen_name") : params.get("user_id");
+        if (list == null) {
+            error(ex, 400, 38, "user_id or screen_name parameter is missing.");
+            return;
+        }
+        String[] values = list.split(",");
+        if (values.length > MAX_LOOKUPS) {
+            error(ex, 403, 18, "Too many terms specified in query.");
+            return;
+        }
+        List<Long> found = new ArrayList<Long>(values.length);
+        List<String> names = new ArrayList<String>(values.length);
+        for (String v : values) {
+            long id;
+            if (byName) {
+                id = getId(v);
+            } else {
+                try {
+                    id = Long.parseLong(v.trim());
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+            }
+            if (missing.contains(id)) continue;
+            found.add(id);
+            names.add(byName ? v : "user" + id);
+        }
+        if (found.isEmpty()) {
+            error(ex, 404, 17, "No user matches for specified terms.");
+            return;
+        }
+        JsonWriter json = beginJson(ex, 200);
+        json.beginArray();
+        for (int i=0; i<found.size(); i++) {
+            long id = found.get(i);
+            json.beginObject()
+                .name("id").value(id)
+                .name("id_str").value(Long.toString(id))
+                .name("screen_name").value(names.get(i))
+                .name("followers_count").value(graph.getFollowerCount(id))
+                .endObject();
+        }
+        json.endArray().close();
+    }
+
+    /**
+     * Returns the id of the user with the given screen name.
+     */
+    public static long getId (String screenName) {
+        if (screenName.startsWith("user")) {
+            try {
+                return Long.parseLong(screenName.substring(4));
+            } catch (NumberFormatException e) {
+                // not one of ours, so hash it
+            }
+        }
+        return (FollowerGraph.mix(screenName.toLowerCase().hashCode()) >>> 32) + 1;
+    }
+
+    private boolean takeFailure() {
+        while (true) {
+            int n = failures.get();
+            if (n == 0) return false;
+            if (failures.compareAndSet(n, n - 1)) return true;
+        }
+    }
+
+    private void delay() {
+        long ms = latency + (jitter > 0 ? (long)(Math.random() * jitter) : 0);
+        if (ms <= 0) return;
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static String getToken (HttpExchange ex) {
+        String auth = ex.getRequestHeaders().getFirst("Authorization");
+        if (auth == null) return null;
+        Matcher m = OAUTH_TOKEN.matcher(auth);
+        return m.find() ? m.group(1) : null;
+    }
+
+    private static Map<String,String> getParams (HttpExchange ex) throws IOException {
+        Map<String,String> result = new HashMap<String,String>();
+        parseParams(ex.getRequestURI().getRawQuery(), result);
+        if ("POST".equals(ex.getRequestMethod())) {
+            InputStream in = ex.getRequestBody();
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            for (int n; (n = in.read(buf)) > 0; ) body.write(buf, 0, n);
+            parseParams(body.toString("UTF-8"), result);
+        }
+        return result;
+    }
+
+    private static void parseParams (String s, Map<String,String> result)
+        throws UnsupportedEncodingException
+    {
+        if (s == null || s.isEmpty()) return;
+        for (String pair : s.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq < 0) continue;
+            result.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"),
+                       URLDecoder.decode(pair.substring(eq+1), "UTF-8"));
+        }
+    }
+
+    /**
+     * Starts a JSON response, compressed if the client accepts gzip.
+     * The JsonWriter must be closed to complete the response.
+     */
+    private static JsonWriter beginJson (HttpExchange ex, int status) throws IOException {
+        ex.getResponseHeaders().set("Content-Type", "application/json;charset=utf-8");
+        String accept = ex.getRequestHeaders().getFirst("Accept-Encoding");
+        boolean gzip = accept != null && accept.contains("gzip");
+        if (gzip) ex.getResponseHeaders().set("Content-Encoding", "gzip");
+        ex.sendResponseHeaders(status, 0);
+        OutputStream body = gzip ? new GZIPOutputStream(ex.getResponseBody(), 65536)
+                                 : ex.getResponseBody();
+        Writer out = new BufferedWriter(new OutputStreamWriter(body, "UTF-8"), 65536);
+        return new JsonWriter(out);
+    }
+
+    private static void error (HttpExchange ex, int status, int code, String message)
+        throws IOException
+    {
+        beginJson(ex, status)
+            .beginObject().name("errors").beginArray()
+            .beginObject().name("code").value(code).name("message").value(message).endObject()
+            .endArray().endObject()
+            .close();
+    }
+
+    /**
+     * Runs the simulator until the process is killed.  It is configured with
+     * system properties: followt.sim.port (8089), followt.sim.followers
+     * (the minimum follower count, 10000), followt.sim.followers.max (the
+     * maximum, same as the minimum by default), followt.sim.churn (the share
+     * of followers replaced per epoch, 0.01), followt.sim.epoch (one hour),
+     * followt.sim.window (15 minutes), followt.sim.latency (50) and
+     * followt.sim.jitter (50), all times in milliseconds.
+     */
+    public static void main (String[] args) throws IOException {
+        int followers = Integer.getInteger("followt.sim.followers", 10000);
+        FollowerGraph graph = new FollowerGraph(
+            Long.getLong("followt.sim.seed", 1),
+            followers,
+            Integer.getInteger("followt.sim.followers.max", followers),
+            Double.parseDouble(System.getProperty("followt.sim.churn", "0.01")),
+            Long.getLong("followt.sim.epoch", 60 * 60 * 1000));
+        TwitterSimulator sim = new TwitterSimulator(graph,
+            Long.getLong("followt.sim.window", 15 * 60 * 1000),
+            Long.getLong("followt.sim.latency", 50),
+            Long.getLong("followt.sim.jitter", 50));
+        sim.start(Integer.getInteger("followt.sim.port", 8089));
+        System.out.println("simulating Twitter at " + sim.getUrl());
+    }
+
+}
@@ -0,0 +1,94 @@
+package net.followt.util;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/**
+ * Compresses sorted arrays of ids by storing the difference between
+ * consecutive values as variable-length integers (7 bits per byte, the
+ * high bit marks that more bytes follow).  For follower ids, this
+ * typically needs 2-4 bytes per id instead of 8.
+ *
+ * @author drmirror
+ */
+public class DeltaCodec {
+
+    /**
+     * Encodes the given values, which must be sorted in ascending order.
+     * The number of values is stored at the beginning of the result.
+     */
+    public static byte[] encode (long[] values) {
+        return encode(values, 0, values.length);
+    }
+
+    /**
+     * Encodes the values from <code>from</code> (inclusive) to <code>to</code>
+     * (exclusive), which must be sorted in ascending order.
+     */
+    public static byte[] encode (long[] values, int from, int to) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream((to - from) * 3 + 5);
+        writeVarint(out, to - from);
+        long previous = 0;
+        for (int i=from; i<to; i++) {
+            long delta = values[i] - previous;
+            if (delta < 0 || (i > from && delta == 0)) {
+                throw new IllegalArgumentException("values must be sorted and unique");
+            }
+            writeVarint(out, delta);
+            previous = values[i];
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Decodes an array that was encoded with encode().
+     */
+    public static long[] decode (byte[] data) {
+        int[] pos = new int[1];
+        int count = (int)readVarint(data, pos);
+        long[] result = new long[count];
+        long value = 0;
+        for (int i=0; i<count; i++) {
+            value += readVarint(data, pos);
+            result[i] = value;
+        }
+        if (pos[0] != data.length) throw new IllegalArgumentException("trailing bytes in encoded data");
+        return result;
+    }
+
+    /**
+     * Concatenates several sorted arrays, each of which must only contain
+     * values larger than those in the previous one.
+     */
+    public static long[] concat (long[]... parts) {
+        int length = 0;
+        for (long[] p : parts) length += p.length;
+        long[] result = Arrays.copyOf(parts.length > 0 ? parts[0] : new long[0], length);
+        int n = parts.length > 0 ? parts[0].length : 0;
+        for (int i=1; i<parts.length; i++) {
+            System.arraycopy(parts[i], 0, result, n, parts[i].length);
+            n += parts[i].length;
+        }
+        return result;
+    }
+
+    private static void writeVarint (ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int)((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int)value);
+    }
+
+    private static long readVarint (byte[] data, int[] pos) {
+        long result = 0;
+        int shift = 0;
+        while (true) {
+            byte b = data[pos[0]++];
+            result |= (long)(b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return result;
+            shift += 7;
+        }
+    }
+
+}
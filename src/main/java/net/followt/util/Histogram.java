@@ -0,0 +1,97 @@
+package net.followt.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A concurrent histogram of non-negative long values, such as durations
+ * in nanoseconds, with a fixed relative error.
+ * <p>
+ * Values are counted in log-linear buckets: each power of two is split
+ * into 2^SUB_BITS buckets of equal width, so a percentile is accurate to
+ * within 1/2^SUB_BITS (12.5%) of its value, and all values that fit into a
+ * long need just 512 counters.  Recording a value only increments a few
+ * atomic counters; it never allocates and never blocks.
+ * <p>
+ * Readers see the counts since the histogram was created.  Percentiles
+ * are computed from the buckets on demand, which is only meant for
+ * occasional reads (such as JMX or the /metrics page).
+ *
+ * @author drmirror
+ */
+public class Histogram {
+
+    private final static int SUB_BITS = 3;
+    private final static int SUB = 1 << SUB_BITS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(64 * SUB);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record (long value) {
+        if (value < 0) value = 0;
+        buckets.incrementAndGet(index(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long m;
+        while (value > (m = max.get()) && !max.compareAndSet(m, value));
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getSum() {
+        return sum.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : (double)sum.get() / n;
+    }
+
+    /**
+     * Returns the value below which the given fraction of the recorded
+     * values lie, e.g. 0.99 for the 99th percentile, or 0 if nothing has
+     * been recorded.  The result is the upper end of the bucket that
+     * contains the percentile, but never more than the maximum.
+     */
+    public long getPercentile (double p) {
+        long total = 0;
+        long[] counts = new long[buckets.length()];
+        for (int i=0; i<counts.length; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long)Math.ceil(p * total));
+        long seen = 0;
+        for (int i=0; i<counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(lowerBound(i+1) - 1, max.get());
+            }
+        }
+        return max.get();
+    }
+
+    static int index (long value) {
+        if (value < SUB) return (int)value;
+        int exp = 63 - Long.numberOfLeadingZeros(value);
+        int mantissa = (int)(value >>> (exp - SUB_BITS)) & (SUB - 1);
+        return ((exp - SUB_BITS + 1) << SUB_BITS) | mantissa;
+    }
+
+    static long lowerBound (int index) {
+        if (index < SUB) return index;
+        int exp = (index >>> SUB_BITS) + SUB_BITS - 1;
+        if (exp >= 63) return Long.MAX_VALUE;
+        return (long)(SUB | (index & (SUB - 1))) << (exp - SUB_BITS);
+    }
+
+}
@@ -0,0 +1,279 @@
+package net.followt.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A minimal pull parser for JSON, reading UTF-8 directly from an InputStream.
+ * <p>
+ * In contrast to com.mongodb.util.JSON, this class never builds a tree of
+ * objects for the document.  The caller walks through the document with
+ * beginObject(), nextName(), nextLong(), skipValue() etc. and only
+ * materializes the values it is interested in.  Numbers are parsed straight
+ * into primitives, and object keys can be matched against a set of expected
+ * names without creating a String for each of them.
+ * <p>
+ * Separators (commas and colons) are consumed implicitly, and only minimal
+ * validation is performed: the input is assumed to be well-formed JSON
+ * coming from the Twitter API.  This class is not thread-safe.
+ *
+ * @author drmirror
+ */
+public class JsonReader {
+
+    private final InputStream in;
+    private final byte[] buf;
+    private int pos = 0;
+    private int limit = 0;
+
+    /**
+     * Scratch space for names and strings, reused between calls.
+     */
+    private byte[] scratch = new byte[64];
+    private StringBuilder chars = new StringBuilder();
+
+    public JsonReader (InputStream in) {
+        this(in, 8192);
+    }
+
+    public JsonReader (InputStream in, int bufferSize) {
+        this.in = in;
+        this.buf = new byte[bufferSize];
+    }
+
+    public void beginObject() throws IOException {
+        expect('{');
+    }
+
+    public void endObject() throws IOException {
+        expect('}');
+    }
+
+    public void beginArray() throws IOException {
+        expect('[');
+    }
+
+    public void endArray() throws IOException {
+        expect(']');
+    }
+
+    /**
+     * Returns true if the current object or array has more elements.
+     */
+    public boolean hasNext() throws IOException {
+        int c = peekToken();
+        return c != '}' && c != ']';
+    }
+
+    /**
+     * Reads the next object key and returns it as a String.
+     */
+    public String nextName() throws IOException {
+        return nextString();
+    }
+
+    /**
+     * Reads the next object key and compares it to the given candidates,
+     * which must be plain ASCII.  No objects are allocated.
+     * @return the index of the matching candidate, or -1 if the key
+     * matches none of them
+     */
+    public int nextName (byte[][] candidates) throws IOException {
+        int len = readRawString();
+        outer:
+        for (int i=0; i<candidates.length; i++) {
+            byte[] c = candidates[i];
+            if (c.length != len) continue;
+            for (int j=0; j<len; j++) {
+                if (c[j] != scratch[j]) continue outer;
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Reads an integral number.
+     */
+    public long nextLong() throws IOException {
+        int c = nextToken();
+        boolean negative = false;
+        if (c == '-') {
+            negative = true;
+            c = read();
+        }
+        if (c < '0' || c > '9') throw syntaxError("number expected", c);
+        long result = 0;
+        while (c >= '0' && c <= '9') {
+            result = result * 10 + (c - '0');
+            c = peek();
+            if (c >= '0' && c <= '9') pos++;
+        }
+        if (c == '.' || c == 'e' || c == 'E') throw syntaxError("integral number expected", c);
+        return negative ? -result : result;
+    }
+
+    /**
+     * Reads a string value, or null.
+     */
+    public String nextString() throws IOException {
+        if (peekToken() == 'n') {
+            skipLiteral();
+            return null;
+        }
+        expect('"');
+        chars.setLength(0);
+        while (true) {
+            int c = read();
+            if (c == '"') break;
+            if (c == '\\') {
+                c = read();
+                switch (c) {
+                case 'b': chars.append('\b'); break;
+                case 'f': chars.append('\f'); break;
+                case 'n': chars.append('\n'); break;
+                case 'r': chars.append('\r'); break;
+                case 't': chars.append('\t'); break;
+                case 'u':
+                    int v = 0;
+                    for (int i=0; i<4; i++) v = (v << 4) | hex(read());
+                    chars.append((char)v);
+                    break;
+                default: chars.append((char)c);
+                }
+            } else if (c < 0x80) {
+                chars.append((char)c);
+            } else if (c < 0xE0) {
+                chars.append((char)(((c & 0x1F) << 6) | (read() & 0x3F)));
+            } else if (c < 0xF0) {
+                chars.append((char)(((c & 0x0F) << 12) | ((read() & 0x3F) << 6) | (read() & 0x3F)));
+            } else {
+                int cp = ((c & 0x07) << 18) | ((read() & 0x3F) << 12)
+                       | ((read() & 0x3F) << 6) | (read() & 0x3F);
+                chars.appendCodePoint(cp);
+            }
+        }
+        return chars.toString();
+    }
+
+    /**
+     * Skips the next value, including any nested objects or arrays.
+     */
+    public void skipValue() throws IOException {
+        int c = peekToken();
+        switch (c) {
+        case '{':
+        case '[':
+            pos++;
+            int depth = 1;
+            while (depth > 0) {
+                c = read();
+                if (c == '"') skipStringBody();
+                else if (c == '{' || c == '[') depth++;
+                else if (c == '}' || c == ']') depth--;
+            }
+            break;
+        case '"':
+            pos++;
+            skipStringBody();
+            break;
+        default:
+            skipLiteral();
+        }
+    }
+
+    /**
+     * Reads a string into the scratch buffer without unescaping it,
+     * and returns its length in bytes.
+     */
+    private int readRawString() throws IOException {
+        expect('"');
+        int len = 0;
+        while (true) {
+            int c = read();
+            if (c == '"') break;
+            if (c == '\\') c = read();
+            if (len == scratch.length) {
+                byte[] b = new byte[len * 2];
+                System.arraycopy(scratch, 0, b, 0, len);
+                scratch = b;
+            }
+            scratch[len++] = (byte)c;
+        }
+        return len;
+    }
+
+    private void skipStringBody() throws IOException {
+        while (true) {
+            int c = read();
+            if (c == '"') return;
+            if (c == '\\') read();
+        }
+    }
+
+    /**
+     * Skips a number, true, false or null.
+     */
+    private void skipLiteral() throws IOException {
+        nextToken();
+        while (true) {
+            int c = peek();
+            if (c == ',' || c == '}' || c == ']' || c == -1 || c <= ' ') return;
+            pos++;
+        }
+    }
+
+    private void expect (char expected) throws IOException {
+        int c = nextToken();
+        if (c != expected) throw syntaxError("'" + expected + "' expected", c);
+    }
+
+    /**
+     * Returns the next character that is neither whitespace nor a
+     * separator, without consuming it.
+     */
+    private int peekToken() throws IOException {
+        while (true) {
+            int c = peek();
+            if (c == -1) throw new IOException("unexpected end of input");
+            if (c > ' ' && c != ',' && c != ':') return c;
+            pos++;
+        }
+    }
+
+    private int nextToken() throws IOException {
+        int c = peekToken();
+        pos++;
+        return c;
+    }
+
+    private int peek() throws IOException {
+        if (pos == limit && !fill()) return -1;
+        return buf[pos] & 0xFF;
+    }
+
+    private int read() throws IOException {
+        if (pos == limit && !fill()) throw new IOException("unexpected end of input");
+        return buf[pos++] & 0xFF;
+    }
+
+    private boolean fill() throws IOException {
+        int n = in.read(buf, 0, buf.length);
+        if (n <= 0) return false;
+        pos = 0;
+        limit = n;
+        return true;
+    }
+
+    private int hex (int c) throws IOException {
+        if (c >= '0' && c <= '9') return c - '0';
+        if (c >= 'a' && c <= 'f') return c - 'a' + 10;
+        if (c >= 'A' && c <= 'F') return c - 'A' + 10;
+        throw syntaxError("hex digit expected", c);
+    }
+
+    private IOException syntaxError (String message, int c) {
+        return new IOException(message + ", found " + (c == -1 ? "end of input" : "'" + (char)c + "'"));
+    }
+
+}
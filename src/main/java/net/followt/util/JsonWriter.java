@@ -0,0 +1,127 @@
+package net.followt.util;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * A minimal streaming JSON writer, the counterpart of JsonReader.
+ * Values are written to the underlying Writer as they come, so that large
+ * results can be sent without building them in memory first.  Commas are
+ * inserted automatically.  Dates are written as ISO 8601 strings in UTC.
+ * <p>
+ * This class is not thread-safe.
+ *
+ * @author drmirror
+ */
+public class JsonWriter {
+
+    private final Writer out;
+    private final SimpleDateFormat iso = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+
+    /**
+     * True if the next value or name is the first one in the current
+     * object or array, and therefore must not be preceded by a comma.
+     */
+    private boolean first = true;
+
+    public JsonWriter (Writer out) {
+        this.out = out;
+        iso.setTimeZone(TimeZone.getTimeZone("UTC"));
+    }
+
+    public JsonWriter beginObject() throws IOException {
+        separator();
+        out.write('{');
+        first = true;
+        return this;
+    }
+
+    public JsonWriter endObject() throws IOException {
+        out.write('}');
+        first = false;
+        return this;
+    }
+
+    public JsonWriter beginArray() throws IOException {
+        separator();
+        out.write('[');
+        first = true;
+        return this;
+    }
+
+    public JsonWriter endArray() throws IOException {
+        out.write(']');
+        first = false;
+        return this;
+    }
+
+    /**
+     * Writes an object key; the next call must write its value.
+     */
+    public JsonWriter name (String name) throws IOException {
+        separator();
+        string(name);
+        out.write(':');
+        first = true;
+        return this;
+    }
+
+    public JsonWriter value (long value) throws IOException {
+        separator();
+        out.write(Long.toString(value));
+        first = false;
+        return this;
+    }
+
+    public JsonWriter value (String value) throws IOException {
+        separator();
+        if (value == null) out.write("null");
+        else string(value);
+        first = false;
+        return this;
+    }
+
+    public JsonWriter value (Date value) throws IOException {
+        return value(value == null ? null : iso.format(value));
+    }
+
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Flushes and closes the underlying Writer.
+     */
+    public void close() throws IOException {
+        out.close();
+    }
+
+    private void separator() throws IOException {
+        if (!first) out.write(',');
+    }
+
+    private void string (String s) throws IOException {
+        out.write('"');
+        for (int i=0; i<s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+            case '"':  out.write("\\\""); break;
+            case '\\': out.write("\\\\"); break;
+            case '\n': out.write("\\n"); break;
+            case '\r': out.write("\\r"); break;
+            case '\t': out.write("\\t"); break;
+            default:
+                if (c < 0x20) {
+                    out.write(String.format("\\u%04x", (int)c));
+                } else {
+                    out.write(c);
+                }
+            }
+        }
+        out.write('"');
+    }
+
+}
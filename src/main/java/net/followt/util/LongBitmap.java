@@ -0,0 +1,626 @@
+package net.followt.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+/**
+ * A compressed bitmap of non-negative 64-bit values, organized like a
+ * Roaring bitmap: values are grouped by their upper 48 bits, and the lower
+ * 16 bits of each group are stored in a container which is either a sorted
+ * array (up to 4096 values) or a plain bitmap of 65536 bits.
+ * <p>
+ * Snowflake-style ids are spread so thinly over the 64-bit range that
+ * almost every group holds a single value, and a container for it would
+ * cost some 60 bytes of heap.  A group with only one value therefore has no
+ * container; the value is kept in a sorted array of such sparse values
+ * instead, at 8 bytes per value.  Dense groups cost 2 bytes per value in an
+ * array container, or at most 8 KB per 65536 values in a bitmap container.
+ * Set operations like andNot() work a whole container at a time, 64 values
+ * per machine word for bitmap containers, and merge the sparse values.
+ * With a million sparse ids, an AND-NOT takes about 10 ms.
+ * <p>
+ * A bitmap can be written to a channel with write(), and read back from a
+ * (typically memory-mapped) ByteBuffer with map().  A mapped bitmap does not
+ * copy its containers to the heap; they are read directly from the buffer,
+ * and only copied when they are modified.  The sparse values are copied to
+ * the heap when the bitmap is mapped.
+ * <p>
+ * This class is not thread-safe.
+ *
+ * @author drmirror
+ */
+public class LongBitmap {
+
+    private static final int MAGIC = 0x46424D32; // "FBM2"
+    private static final int ARRAY = 0;
+    private static final int BITMAP = 1;
+    private static final int MAX_ARRAY_SIZE = 4096;
+    private static final int WORDS = 1024;
+
+    private long[] keys;
+    private Container[] containers;
+    private int size = 0;
+
+    /**
+     * The values of all groups that have only one value, and no container,
+     * in ascending order.
+     */
+    private long[] sparse;
+    private int sparseSize = 0;
+
+    /**
+     * For mapped bitmaps: where the data of each container is in the buffer.
+     * Containers are only created from it when they are first accessed.
+     */
+    private ByteBuffer source;
+    private int[] types;
+    private int[] cardinalities;
+    private int[] offsets;
+
+    public LongBitmap() {
+        keys = new long[16];
+        containers = new Container[16];
+        sparse = new long[16];
+    }
+
+    /**
+     * Creates a bitmap from an array of values, which must be sorted.
+     */
+    public static LongBitmap of (long[] sortedValues) {
+        LongBitmap result = new LongBitmap();
+        for (long v : sortedValues) result.add(v);
+        return result;
+    }
+
+    /**
+     * Adds a value to the bitmap.  Values in ascending order are appended
+     * to the last container or to the sparse values.  Otherwise they have
+     * to be inserted in the middle, which is linear in the size of the
+     * bitmap, so large bitmaps should be built from sorted values (see of()).
+     * @return true if the value was not contained in the bitmap yet
+     */
+    public boolean add (long value) {
+        if (value < 0) throw new IllegalArgumentException("negative value: " + value);
+        long key = value >>> 16;
+        int i;
+        if (size == 0 || key > keys[size-1]) i = -size - 1;
+        else if (key == keys[size-1]) i = size - 1;
+        else i = find(key);
+        if (i >= 0) {
+            Container c = container(i);
+            int before = c.cardinality();
+            c = c.add((char)value);
+            containers[i] = c;
+            return c.cardinality() > before;
+        }
+        int s;
+        if (sparseSize == 0 || value > sparse[sparseSize-1]) s = -sparseSize - 1;
+        else s = Arrays.binarySearch(sparse, 0, sparseSize, value);
+        if (s >= 0) return false;
+        s = -s - 1;
+        // a group has at most one sparse value, right before or after this one
+        int other = -1;
+        if (s > 0 && sparse[s-1] >>> 16 == key) other = s - 1;
+        else if (s < sparseSize && sparse[s] >>> 16 == key) other = s;
+        if (other < 0) {
+            insertSparse(s, value);
+        } else {
+            Container c = new ArrayContainer().add((char)sparse[other]).add((char)value);
+            removeSparse(other);
+            insertContainer(-i - 1, key, c);
+        }
+        return true;
+    }
+
+    public boolean contains (long value) {
+        if (value < 0) return false;
+        int i = find(value >>> 16);
+        if (i >= 0) return container(i).contains((char)value);
+        return Arrays.binarySearch(sparse, 0, sparseSize, value) >= 0;
+    }
+
+    /**
+     * Returns those of the given values that are not contained in this
+     * bitmap, in ascending order.  The values must be sorted, so that the
+     * lookups can walk the containers and the sparse values in order,
+     * searching forward from the previous position; this is much faster
+     * than calling contains() for each value when the bitmap is large.
+     */
+    public long[] missing (long[] sortedValues) {
+        return missing(sortedValues, sortedValues.length);
+    }
+
+    private long[] missing (long[] sortedValues, int length) {
+        long[] result = new long[length];
+        int n = 0;
+        int j = 0;
+        int k = 0;
+        for (int x=0; x<length; x++) {
+            long v = sortedValues[x];
+            if (v < 0) {
+                result[n++] = v;
+                continue;
+            }
+            int i = gallop(keys, j, size, v >>> 16);
+            if (i >= 0) {
+                j = i;
+                if (container(i).contains((char)v)) continue;
+                result[n++] = v;
+                continue;
+            }
+            j = -i - 1;
+            i = gallop(sparse, k, sparseSize, v);
+            if (i >= 0) {
+                k = i;
+                continue;
+            }
+            k = -i - 1;
+            result[n++] = v;
+        }
+        return Arrays.copyOf(result, n);
+    }
+
+    /**
+     * Returns the number of values in this bitmap.
+     */
+    public long cardinality() {
+        long result = sparseSize;
+        for (int i=0; i<size; i++) result += cardinality(i);
+        return result;
+    }
+
+    /**
+     * Returns a new bitmap that contains all values of this bitmap
+     * which are not contained in the other.
+     */
+    public LongBitmap andNot (LongBitmap other) {
+        LongBitmap result = new LongBitmap();
+        int j = 0;
+        int k = 0;
+        for (int i=0; i<size; i++) {
+            long key = keys[i];
+            j = gallop(other.keys, j, other.size, key);
+            Container c;
+            if (j >= 0) {
+                c = container(i).andNot(other.container(j));
+            } else {
+                j = -j - 1;
+                // the other bitmap has at most one value in this group
+                k = gallop(other.sparse, k, other.sparseSize, key << 16);
+                if (k < 0) k = -k - 1;
+                if (k < other.sparseSize && other.sparse[k] >>> 16 == key) {
+                    c = container(i).andNot(new ArrayContainer().add((char)other.sparse[k]));
+                } else {
+                    c = container(i).copy();
+                }
+            }
+            if (c.cardinality() > 0) result.insertContainer(result.size, key, c);
+        }
+        result.sparse = other.missing(sparse, sparseSize);
+        result.sparseSize = result.sparse.length;
+        return result;
+    }
+
+    /**
+     * Returns all values in ascending order.
+     */
+    public long[] toArray() {
+        long c = cardinality();
+        if (c > Integer.MAX_VALUE) throw new IllegalStateException("too many values: " + c);
+        long[] result = new long[(int)c];
+        int n = 0;
+        int k = 0;
+        for (int i=0; i<size; i++) {
+            long high = keys[i] << 16;
+            while (k < sparseSize && sparse[k] < high) result[n++] = sparse[k++];
+            n = container(i).toLongs(high, result, n);
+        }
+        while (k < sparseSize) result[n++] = sparse[k++];
+        return result;
+    }
+
+    /**
+     * Writes this bitmap in a format that can be read back with map().
+     */
+    public void write (WritableByteChannel out) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(16 + sparseSize * 8 + size * 16);
+        header.putInt(MAGIC).putInt(size).putInt(sparseSize).putInt(0);
+        for (int i=0; i<sparseSize; i++) header.putLong(sparse[i]);
+        for (int i=0; i<size; i++) {
+            Container c = container(i);
+            header.putLong(keys[i])
+                  .putInt(c instanceof AbstractArrayContainer ? ARRAY : BITMAP)
+                  .putInt(c.cardinality());
+        }
+        header.flip();
+        writeFully(out, header);
+        for (int i=0; i<size; i++) {
+            writeFully(out, container(i).serialize());
+        }
+    }
+
+    /**
+     * Returns the number of bytes that write() will produce.
+     */
+    public long serializedSize() {
+        long result = 16 + sparseSize * 8L + size * 16L;
+        for (int i=0; i<size; i++) result += dataSize(container(i) instanceof AbstractArrayContainer ? ARRAY : BITMAP,
+                                                      cardinality(i));
+        return result;
+    }
+
+    /**
+     * Creates a bitmap that reads its containers directly from the given
+     * buffer, which must contain the output of write() starting at its
+     * current position.  The buffer must not be modified afterwards.
+     */
+    public static LongBitmap map (ByteBuffer buffer) throws IOException {
+        ByteBuffer b = buffer.slice();
+        if (b.remaining() < 16 || b.getInt() != MAGIC) throw new IOException("not a bitmap");
+        int n = b.getInt();
+        int m = b.getInt();
+        b.getInt();
+        if (n < 0 || m < 0 || 16 + m * 8L + n * 16L > b.limit()) throw new IOException("truncated bitmap");
+        LongBitmap result = new LongBitmap();
+        result.sparse = new long[Math.max(m, 1)];
+        b.asLongBuffer().get(result.sparse, 0, m);
+        b.position(b.position() + m * 8);
+        result.sparseSize = m;
+        result.keys = new long[Math.max(n, 1)];
+        result.containers = new Container[Math.max(n, 1)];
+        result.types = new int[Math.max(n, 1)];
+        result.cardinalities = new int[Math.max(n, 1)];
+        result.offsets = new int[Math.max(n, 1)];
+        result.size = n;
+        result.source = b;
+        long offset = 16 + m * 8L + n * 16L;
+        for (int i=0; i<n; i++) {
+            result.keys[i] = b.getLong();
+            result.types[i] = b.getInt();
+            result.cardinalities[i] = b.getInt();
+            result.offsets[i] = (int)offset;
+            offset += dataSize(result.types[i], result.cardinalities[i]);
+        }
+        if (offset > b.limit()) throw new IOException("truncated bitmap");
+        return result;
+    }
+
+    private static int dataSize (int type, int cardinality) {
+        // arrays are padded so that all containers start at a multiple of 8
+        return type == ARRAY ? (cardinality * 2 + 7) & ~7 : WORDS * 8;
+    }
+
+    private int cardinality (int i) {
+        if (containers[i] == null && source != null) return cardinalities[i];
+        return containers[i].cardinality();
+    }
+
+    private Container container (int i) {
+        Container c = containers[i];
+        if (c == null) {
+            ByteBuffer data = source.duplicate();
+            data.position(offsets[i]);
+            data = data.slice();
+            if (types[i] == ARRAY) {
+                CharBuffer cb = data.asCharBuffer();
+                cb.limit(cardinalities[i]);
+                c = new MappedArrayContainer(cb);
+            } else {
+                LongBuffer lb = data.asLongBuffer();
+                lb.limit(WORDS);
+                c = new MappedBitmapContainer(lb, cardinalities[i]);
+            }
+            containers[i] = c;
+        }
+        return c;
+    }
+
+    private int find (long key) {
+        return Arrays.binarySearch(keys, 0, size, key);
+    }
+
+    /**
+     * Searches a sorted array for x like Arrays.binarySearch(), but only
+     * from index <code>from</code> on, galloping forward so that a walk
+     * over the array in ascending order stays cheap.
+     */
+    private static int gallop (long[] a, int from, int size, long x) {
+        int step = 1;
+        while (from + step < size && a[from + step] < x) step <<= 1;
+        return Arrays.binarySearch(a, from, Math.min(from + step + 1, size), x);
+    }
+
+    private void insertContainer (int i, long key, Container c) {
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            containers = Arrays.copyOf(containers, size * 2);
+            if (source != null) {
+                types = Arrays.copyOf(types, size * 2);
+                cardinalities = Arrays.copyOf(cardinalities, size * 2);
+                offsets = Arrays.copyOf(offsets, size * 2);
+            }
+        }
+        System.arraycopy(keys, i, keys, i+1, size-i);
+        System.arraycopy(containers, i, containers, i+1, size-i);
+        if (source != null) {
+            System.arraycopy(types, i, types, i+1, size-i);
+            System.arraycopy(cardinalities, i, cardinalities, i+1, size-i);
+            System.arraycopy(offsets, i, offsets, i+1, size-i);
+        }
+        keys[i] = key;
+        containers[i] = c;
+        size++;
+    }
+
+    private void insertSparse (int i, long value) {
+        if (sparseSize == sparse.length) sparse = Arrays.copyOf(sparse, Math.max(sparseSize * 2, 16));
+        System.arraycopy(sparse, i, sparse, i+1, sparseSize-i);
+        sparse[i] = value;
+        sparseSize++;
+    }
+
+    private void removeSparse (int i) {
+        System.arraycopy(sparse, i+1, sparse, i, sparseSize-i-1);
+        sparseSize--;
+    }
+
+    private static void writeFully (WritableByteChannel out, ByteBuffer b) throws IOException {
+        while (b.hasRemaining()) out.write(b);
+    }
+
+    /**
+     * Holds the lower 16 bits of all values that share the same upper 48 bits.
+     */
+    private static abstract class Container {
+        abstract int cardinality();
+        abstract boolean contains (char value);
+        /** adds the value and returns the resulting container, which may be a different one */
+        abstract Container add (char value);
+        abstract Container andNot (Container other);
+        abstract Container copy();
+        /** stores the values of this container into out, starting at pos */
+        abstract int toLongs (long high, long[] out, int pos);
+        abstract ByteBuffer serialize();
+    }
+
+    /**
+     * A container storing its values as a sorted array.
+     */
+    private static abstract class AbstractArrayContainer extends Container {
+
+        abstract char value (int i);
+
+        boolean contains (char value) {
+            int lo = 0, hi = cardinality() - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                char v = value(mid);
+                if (v < value) lo = mid + 1;
+                else if (v > value) hi = mid - 1;
+                else return true;
+            }
+            return false;
+        }
+
+        Container andNot (Container other) {
+            ArrayContainer result = new ArrayContainer(cardinality());
+            for (int i=0; i<cardinality(); i++) {
+                char v = value(i);
+                if (!other.contains(v)) result.values[result.cardinality++] = v;
+            }
+            return result;
+        }
+
+        Container copy() {
+            ArrayContainer result = new ArrayContainer(cardinality());
+            for (int i=0; i<cardinality(); i++) result.values[i] = value(i);
+            result.cardinality = cardinality();
+            return result;
+        }
+
+        int toLongs (long high, long[] out, int pos) {
+            for (int i=0; i<cardinality(); i++) out[pos++] = high | value(i);
+            return pos;
+        }
+
+        ByteBuffer serialize() {
+            ByteBuffer b = ByteBuffer.allocate(dataSize(ARRAY, cardinality()));
+            for (int i=0; i<cardinality(); i++) b.putChar(value(i));
+            b.clear();
+            return b;
+        }
+    }
+
+    private static class ArrayContainer extends AbstractArrayContainer {
+
+        char[] values;
+        int cardinality = 0;
+
+        ArrayContainer() {
+            this(4);
+        }
+
+        ArrayContainer(int capacity) {
+            values = new char[Math.max(capacity, 1)];
+        }
+
+        int cardinality() {
+            return cardinality;
+        }
+
+        char value (int i) {
+            return values[i];
+        }
+
+        boolean contains (char value) {
+            return Arrays.binarySearch(values, 0, cardinality, value) >= 0;
+        }
+
+        Container add (char value) {
+            int i = Arrays.binarySearch(values, 0, cardinality, value);
+            if (i >= 0) return this;
+            if (cardinality == MAX_ARRAY_SIZE) {
+                return toBitmap().add(value);
+            }
+            i = -i - 1;
+            if (cardinality == values.length) {
+                values = Arrays.copyOf(values, Math.min(values.length * 2, MAX_ARRAY_SIZE));
+            }
+            System.arraycopy(values, i, values, i+1, cardinality-i);
+            values[i] = value;
+            cardinality++;
+            return this;
+        }
+
+        private BitmapContainer toBitmap() {
+            BitmapContainer result = new BitmapContainer();
+            for (int i=0; i<cardinality; i++) result.add(values[i]);
+            return result;
+        }
+    }
+
+    private static class MappedArrayContainer extends AbstractArrayContainer {
+
+        private CharBuffer values;
+
+        MappedArrayContainer (CharBuffer values) {
+            this.values = values;
+        }
+
+        int cardinality() {
+            return values.limit();
+        }
+
+        char value (int i) {
+            return values.get(i);
+        }
+
+        Container add (char value) {
+            if (contains(value)) return this;
+            return copy().add(value);
+        }
+    }
+
+    /**
+     * A container storing its values as a bitmap of 65536 bits.
+     */
+    private static abstract class AbstractBitmapContainer extends Container {
+
+        abstract long word (int i);
+
+        boolean contains (char value) {
+            return (word(value >>> 6) & (1L << value)) != 0;
+        }
+
+        Container andNot (Container other) {
+            BitmapContainer result = new BitmapContainer();
+            if (other instanceof AbstractBitmapContainer) {
+                AbstractBitmapContainer o = (AbstractBitmapContainer)other;
+                for (int i=0; i<WORDS; i++) {
+                    long w = word(i) & ~o.word(i);
+                    result.words[i] = w;
+                    result.cardinality += Long.bitCount(w);
+                }
+            } else {
+                for (int i=0; i<WORDS; i++) result.words[i] = word(i);
+                result.cardinality = cardinality();
+                AbstractArrayContainer o = (AbstractArrayContainer)other;
+                for (int i=0; i<o.cardinality(); i++) result.remove(o.value(i));
+            }
+            return result.cardinality <= MAX_ARRAY_SIZE ? result.toArray() : result;
+        }
+
+        Container copy() {
+            BitmapContainer result = new BitmapContainer();
+            for (int i=0; i<WORDS; i++) result.words[i] = word(i);
+            result.cardinality = cardinality();
+            return result;
+        }
+
+        int toLongs (long high, long[] out, int pos) {
+            for (int i=0; i<WORDS; i++) {
+                long w = word(i);
+                while (w != 0) {
+                    out[pos++] = high | (i << 6) | Long.numberOfTrailingZeros(w);
+                    w &= w - 1;
+                }
+            }
+            return pos;
+        }
+
+        ByteBuffer serialize() {
+            ByteBuffer b = ByteBuffer.allocate(WORDS * 8);
+            for (int i=0; i<WORDS; i++) b.putLong(word(i));
+            b.clear();
+            return b;
+        }
+    }
+
+    private static class BitmapContainer extends AbstractBitmapContainer {
+
+        long[] words = new long[WORDS];
+        int cardinality = 0;
+
+        int cardinality() {
+            return cardinality;
+        }
+
+        long word (int i) {
+            return words[i];
+        }
+
+        Container add (char value) {
+            long before = words[value >>> 6];
+            words[value >>> 6] = before | (1L << value);
+            if (words[value >>> 6] != before) cardinality++;
+            return this;
+        }
+
+        void remove (char value) {
+            long before = words[value >>> 6];
+            words[value >>> 6] = before & ~(1L << value);
+            if (words[value >>> 6] != before) cardinality--;
+        }
+
+        ArrayContainer toArray() {
+            ArrayContainer result = new ArrayContainer(cardinality);
+            for (int i=0; i<WORDS; i++) {
+                long w = words[i];
+                while (w != 0) {
+                    result.values[result.cardinality++] = (char)((i << 6) | Long.numberOfTrailingZeros(w));
+                    w &= w - 1;
+                }
+            }
+            return result;
+        }
+    }
+
+    private static class MappedBitmapContainer extends AbstractBitmapContainer {
+
+        private LongBuffer words;
+        private int cardinality;
+
+        MappedBitmapContainer (LongBuffer words, int cardinality) {
+            this.words = words;
+            this.cardinality = cardinality;
+        }
+
+        int cardinality() {
+            return cardinality;
+        }
+
+        long word (int i) {
+            return words.get(i);
+        }
+
+        Container add (char value) {
+            if (contains(value)) return this;
+            return copy().add(value);
+        }
+    }
+
+}
@@ -0,0 +1,109 @@
+package net.followt.util;
+
+/**
+ * A set of primitive longs, implemented as an open-addressing hash table
+ * with linear probing.  Unlike a HashSet&lt;Long&gt;, it does not allocate
+ * an object per element, which matters when holding the follower ids of
+ * large accounts in memory (8-16 bytes per id instead of 50 or more).
+ * <p>
+ * This class is not thread-safe.
+ *
+ * @author drmirror
+ */
+public class LongHashSet {
+
+    private static final long FREE = 0;
+    private static final float LOAD_FACTOR = 0.5f;
+
+    private long[] table;
+    private int size = 0;
+
+    /**
+     * The value 0 cannot be stored in the table, because it marks
+     * free slots.  We keep track of it separately.
+     */
+    private boolean containsZero = false;
+
+    public LongHashSet() {
+        this(16);
+    }
+
+    public LongHashSet(int expectedSize) {
+        int capacity = 16;
+        while (capacity * LOAD_FACTOR < expectedSize) capacity <<= 1;
+        table = new long[capacity];
+    }
+
+    /**
+     * Adds the given value to the set.
+     * @return true if the value was not yet contained in the set
+     */
+    public boolean add (long value) {
+        if (value == FREE) {
+            if (containsZero) return false;
+            containsZero = true;
+            size++;
+            return true;
+        }
+        int mask = table.length - 1;
+        int i = hash(value) & mask;
+        while (table[i] != FREE) {
+            if (table[i] == value) return false;
+            i = (i + 1) & mask;
+        }
+        table[i] = value;
+        size++;
+        if (size > table.length * LOAD_FACTOR) rehash(table.length << 1);
+        return true;
+    }
+
+    public boolean contains (long value) {
+        if (value == FREE) return containsZero;
+        int mask = table.length - 1;
+        int i = hash(value) & mask;
+        while (table[i] != FREE) {
+            if (table[i] == value) return true;
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the elements of this set as an array, in no particular order.
+     */
+    public long[] toArray() {
+        long[] result = new long[size];
+        int n = 0;
+        if (containsZero) result[n++] = 0;
+        for (long v : table) {
+            if (v != FREE) result[n++] = v;
+        }
+        return result;
+    }
+
+    private void rehash (int capacity) {
+        long[] old = table;
+        table = new long[capacity];
+        int mask = capacity - 1;
+        for (long v : old) {
+            if (v == FREE) continue;
+            int i = hash(v) & mask;
+            while (table[i] != FREE) i = (i + 1) & mask;
+            table[i] = v;
+        }
+    }
+
+    /**
+     * Follower ids are often clustered, so we scramble the bits
+     * before using them as a table index.
+     */
+    private static int hash (long value) {
+        long h = value * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32));
+    }
+
+}
@@ -0,0 +1,79 @@
+package net.followt.util;
+
+import java.util.Arrays;
+
+/**
+ * A growable array of primitive longs, used for pages of follower ids
+ * so that they don't have to be boxed into a List&lt;Long&gt;.
+ * <p>
+ * This class is not thread-safe.
+ *
+ * @author drmirror
+ */
+public class LongList {
+
+    private long[] values;
+    private int size = 0;
+
+    public LongList() {
+        this(16);
+    }
+
+    public LongList(int initialCapacity) {
+        values = new long[Math.max(initialCapacity, 1)];
+    }
+
+    public void add (long value) {
+        if (size == values.length) {
+            values = Arrays.copyOf(values, values.length << 1);
+        }
+        values[size++] = value;
+    }
+
+    public void addAll (long[] a) {
+        if (size + a.length > values.length) {
+            values = Arrays.copyOf(values, Math.max(values.length << 1, size + a.length));
+        }
+        System.arraycopy(a, 0, values, size, a.length);
+        size += a.length;
+    }
+
+    public long get (int index) {
+        if (index >= size) throw new IndexOutOfBoundsException(index + " >= " + size);
+        return values[index];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public long[] toArray() {
+        return Arrays.copyOf(values, size);
+    }
+
+    /**
+     * Returns the values of this list in ascending order, with duplicates removed.
+     */
+    public long[] toSortedArray() {
+        long[] result = toArray();
+        Arrays.sort(result);
+        int n = 0;
+        for (int i=0; i<result.length; i++) {
+            if (n == 0 || result[n-1] != result[i]) result[n++] = result[i];
+        }
+        return n == result.length ? result : Arrays.copyOf(result, n);
+    }
+
+    public String toString() {
+        return Arrays.toString(toArray());
+    }
+
+}
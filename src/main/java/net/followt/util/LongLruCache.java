@@ -0,0 +1,188 @@
+package net.followt.util;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A size-bounded, thread-safe cache with long keys and least-recently-used
+ * eviction.
+ * <p>
+ * The cache is split into a fixed number of segments, each of which is an
+ * access-ordered LinkedHashMap guarded by its own lock, so that threads only
+ * contend when they hit the same segment, and never wait for a slow loader:
+ * values are computed outside the cache and put() afterwards.  Every entry
+ * remembers when it was put, so that callers can decide to refresh entries
+ * that have become stale (see Entry.startRefresh()).
+ * <p>
+ * Hits, misses and evictions are counted for monitoring.
+ *
+ * @author drmirror
+ */
+public class LongLruCache<V> {
+
+    private final static int SEGMENTS = 16;
+
+    /**
+     * A cached value, together with the time it was put into the cache.
+     */
+    public static class Entry<V> {
+
+        private final V value;
+        private final long created;
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+
+        Entry (V value, long created) {
+            this.value = value;
+            this.created = created;
+        }
+
+        public V getValue() {
+            return value;
+        }
+
+        /**
+         * Returns the time in milliseconds since this entry was put.
+         */
+        public long getAge() {
+            return System.currentTimeMillis() - created;
+        }
+
+        /**
+         * Marks this entry as being refreshed.  Returns true only for the
+         * first caller, so that a stale entry is refreshed only once even if
+         * many threads see it at the same time.  The refresh is complete
+         * when a new value for the key is put into the cache.
+         */
+        public boolean startRefresh() {
+            return refreshing.compareAndSet(false, true);
+        }
+
+        /**
+         * Marks a refresh that has failed as over, so that the entry
+         * can be refreshed again.
+         */
+        public void cancelRefresh() {
+            refreshing.set(false);
+        }
+    }
+
+    private class Segment extends LinkedHashMap<Long,LongLruCache.Entry<V>> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+
+        Segment (int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        protected boolean removeEldestEntry (Map.Entry<Long,LongLruCache.Entry<V>> eldest) {
+            if (size() > capacity) {
+                evictions.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private final List<Segment> segments;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param capacity the maximum number of entries; since each segment
+     * is bounded separately, the cache may evict slightly earlier
+     */
+    public LongLruCache (int capacity) {
+        segments = new ArrayList<Segment>(SEGMENTS);
+        int perSegment = Math.max(1, (capacity + SEGMENTS - 1) / SEGMENTS);
+        for (int i=0; i<SEGMENTS; i++) {
+            segments.add(new Segment(perSegment));
+        }
+    }
+
+    /**
+     * Returns the value for the given key, or null if it is not cached.
+     */
+    public V get (long key) {
+        Entry<V> e = getEntry(key);
+        return e != null ? e.getValue() : null;
+    }
+
+    /**
+     * Returns the entry for the given key, or null if it is not cached.
+     */
+    public Entry<V> getEntry (long key) {
+        Segment s = segmentFor(key);
+        Entry<V> e;
+        synchronized (s) {
+            e = s.get(key);
+        }
+        if (e != null) hits.incrementAndGet();
+        else misses.incrementAndGet();
+        return e;
+    }
+
+    public void put (long key, V value) {
+        Segment s = segmentFor(key);
+        Entry<V> e = new Entry<V>(value, System.currentTimeMillis());
+        synchronized (s) {
+            s.put(key, e);
+        }
+    }
+
+    public void remove (long key) {
+        Segment s = segmentFor(key);
+        synchronized (s) {
+            s.remove(key);
+        }
+    }
+
+    public void clear() {
+        for (Segment s : segments) {
+            synchronized (s) {
+                s.clear();
+            }
+        }
+    }
+
+    public int size() {
+        int result = 0;
+        for (Segment s : segments) {
+            synchronized (s) {
+                result += s.size();
+            }
+        }
+        return result;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public String toString() {
+        return "size=" + size() + " hits=" + getHits() + " misses=" + getMisses()
+             + " evictions=" + getEvictions();
+    }
+
+    private Segment segmentFor (long key) {
+        // spread the bits, since user ids are not uniformly distributed
+        long h = key * 0x9E3779B97F4A7C15L;
+        return segments.get((int)(h >>> 60) & (SEGMENTS - 1));
+    }
+
+}
@@ -26,9 +26,15 @@
        <#list followers as fol>
          <tr>
           <td>
+             <#if fol.nameResolved>
                 <a href="http://twitter.com/${fol.followerScreenName}">
                    @${fol.followerScreenName}
                 </a>
+             <#else>
+                <a href="http://twitter.com/intent/user?user_id=${fol.follower?c}">
+                   ${fol.followerScreenName}
+                </a>
+             </#if>
           </td>
           <td>
                 ${fol.followedSince?datetime?string("yyyy-MM-dd HH:mm:ss")}
@@ -47,9 +53,15 @@
        <#list unfollowers as unf>
          <tr>
            <td>
+             <#if unf.nameResolved>
                 <a href="http://twitter.com/${unf.followerScreenName}">
                    @${unf.followerScreenName}
                 </a>
+             <#else>
+                <a href="http://twitter.com/intent/user?user_id=${unf.follower?c}">
+                   ${unf.followerScreenName}
+                </a>
+             </#if>
           </td>
           <td>
              <#if unf.lastSeen??>
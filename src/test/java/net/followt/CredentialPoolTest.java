@@ -0,0 +1,68 @@
+package net.followt;
+
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+import net.followt.Twitter.Endpoint;
+
+public class CredentialPoolTest extends TestCase {
+
+    private CredentialPool pool (int n) {
+        Properties conf = new Properties();
+        for (int i=1; i<=n; i++) {
+            String suffix = i == 1 ? "" : "." + i;
+            conf.setProperty("api_key" + suffix, "key" + i);
+            conf.setProperty("api_secret" + suffix, "secret" + i);
+            conf.setProperty("access_token" + suffix, "token" + i);
+            conf.setProperty("access_secret" + suffix, "tsecret" + i);
+        }
+        return CredentialPool.fromProperties(conf);
+    }
+
+    public void test_fromProperties() {
+        assertEquals(1, pool(1).size());
+        assertEquals(3, pool(3).size());
+    }
+
+    public void test_mostBudget() throws InterruptedException {
+        CredentialPool p = pool(2);
+        Credential a = p.getCredentials().get(0);
+        Credential b = p.getCredentials().get(1);
+        a.getBucket(Endpoint.FOLLOWERS_IDS).update(15, 3, System.currentTimeMillis() + 60000);
+        assertSame(b, p.acquire(Endpoint.FOLLOWERS_IDS));
+        b.getBucket(Endpoint.FOLLOWERS_IDS).update(15, 1, System.currentTimeMillis() + 60000);
+        assertSame(a, p.acquire(Endpoint.FOLLOWERS_IDS));
+        RateLimitStatus status = p.getStatus(Endpoint.FOLLOWERS_IDS);
+        assertEquals(30, status.getLimit());
+        assertEquals(3, status.getRemaining());
+    }
+
+    public void test_quarantine() throws InterruptedException {
+        CredentialPool p = pool(2);
+        Credential a = p.getCredentials().get(0);
+        Credential b = p.getCredentials().get(1);
+        a.quarantine(60000);
+        for (int i=0; i<15; i++) {
+            assertSame(b, p.acquire(Endpoint.FOLLOWERS_IDS));
+        }
+        assertEquals(15, p.getStatus(Endpoint.FOLLOWERS_IDS).getLimit());
+        assertEquals(0, p.getStatus(Endpoint.FOLLOWERS_IDS).getRemaining());
+    }
+
+    public void test_keepLastCredential() {
+        CredentialPool p = pool(2);
+        Credential a = p.getCredentials().get(0);
+        Credential b = p.getCredentials().get(1);
+        Metrics.Counter quarantined = Metrics.counter("twitter.credential.quarantined");
+        long before = quarantined.getCount();
+        assertTrue(p.quarantine(a, 60000));
+        assertTrue(a.isQuarantined());
+        assertFalse(p.quarantine(b, 60000));
+        assertFalse(b.isQuarantined());
+        assertEquals(before + 1, quarantined.getCount());
+        CredentialPool single = pool(1);
+        assertFalse(single.quarantine(single.getCredentials().get(0), 60000));
+    }
+
+}
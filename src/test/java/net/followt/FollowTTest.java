@@ -0,0 +1,75 @@
+package net.followt;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import junit.framework.TestCase;
+import net.followt.sim.FollowerGraph;
+import net.followt.sim.TwitterSimulator;
+
+public class FollowTTest extends TestCase {
+
+    private static final long HOUR = 3600000;
+
+    private TwitterSimulator sim;
+    private File dir;
+    private LocalFollowerStore store;
+    private FollowT followt;
+    private long now = System.currentTimeMillis();
+
+    protected void setUp() throws IOException {
+        sim = new TwitterSimulator(new FollowerGraph(1, 100, 100, 0, 60 * 60 * 1000),
+                                   60 * 60 * 1000, 0, 0);
+        sim.start(0);
+        dir = Files.createTempDirectory("followt-reports").toFile();
+        store = new LocalFollowerStore(dir);
+        store.putScreenNames(new long[] { 42 }, new String[] { "user42" });
+        // the first scan, and a later one
+        store.openIntervals(42, new long[] { 1, 2, 3 }, new Date(now - 3 * HOUR));
+        store.openIntervals(42, new long[] { 4 }, new Date(now - HOUR / 2));
+        saveScan(new Date(now - HOUR / 2));
+        Credential c = new Credential("test", "key", "secret", "token", "tsecret");
+        Twitter twitter = new Twitter(new CredentialPool(Collections.singletonList(c)), sim.getUrl());
+        followt = new FollowT(store, new UserDB(twitter, store), null,
+                              new Bulkhead("test.db", 4, 1000), new Bulkhead("test.names", 4, 1000));
+    }
+
+    protected void tearDown() throws IOException {
+        sim.stop();
+        store.close();
+        for (File f : dir.listFiles()) f.delete();
+        dir.delete();
+    }
+
+    private void saveScan (Date ended) {
+        Scan scan = new Scan(42);
+        scan.scan_started = new Date(ended.getTime() - 60000);
+        scan.scan_ended = ended;
+        store.saveScan(scan);
+    }
+
+    public void test_cacheInvalidation() {
+        List<FollowT.Follower> followers = followt.getRecentFollowers("user42", 6 * HOUR);
+        assertEquals(1, followers.size());
+        assertEquals(4, followers.get(0).follower);
+        assertEquals(0, followt.getRecentUnfollowers("user42", 6 * HOUR).size());
+
+        // until the scan state changes, the cached reports are served
+        store.openIntervals(42, new long[] { 5 }, new Date(now - HOUR / 6));
+        store.closeIntervals(42, new long[] { 2 }, new Date(now - HOUR / 6), null);
+        assertEquals(1, followt.getRecentFollowers("user42", 6 * HOUR).size());
+        assertEquals(0, followt.getRecentUnfollowers("user42", 6 * HOUR).size());
+
+        saveScan(new Date(now - HOUR / 6));
+        followt.pollScans();
+        followers = followt.getRecentFollowers("user42", 6 * HOUR);
+        assertEquals(2, followers.size());
+        assertEquals(5, followers.get(1).follower);
+        assertEquals(1, followt.getRecentUnfollowers("user42", 6 * HOUR).size());
+    }
+
+}
@@ -0,0 +1,115 @@
+package net.followt;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+import junit.framework.TestCase;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+import net.followt.sim.FollowerGraph;
+import net.followt.sim.TwitterSimulator;
+
+public class FollowerCountsTest extends TestCase {
+
+    private static final long HOUR = 3600000;
+
+    private TimeZone timeZone;
+    private TwitterSimulator sim;
+    private File dir;
+    private LocalFollowerStore store;
+
+    protected void setUp() throws IOException {
+        // counters are kept per UTC hour, so buckets must start on full
+        // hours; this zone also has daylight saving time
+        timeZone = TimeZone.getDefault();
+        TimeZone.setDefault(TimeZone.getTimeZone("Europe/Berlin"));
+        sim = new TwitterSimulator(new FollowerGraph(1, 100, 100, 0, 60 * 60 * 1000),
+                                   60 * 60 * 1000, 0, 0);
+        sim.start(0);
+        dir = Files.createTempDirectory("followt-counts").toFile();
+        store = new LocalFollowerStore(dir);
+        store.putScreenNames(new long[] { 42 }, new String[] { "user42" });
+    }
+
+    protected void tearDown() throws IOException {
+        TimeZone.setDefault(timeZone);
+        sim.stop();
+        store.close();
+        for (File f : dir.listFiles()) f.delete();
+        dir.delete();
+    }
+
+    private static void count (Map<Date,int[]> counters, Date time, int gained, int lost) {
+        Date hour = FollowerCounts.hourOf(time.getTime());
+        int[] c = counters.get(hour);
+        if (c == null) counters.put(hour, c = new int[2]);
+        c[0] += gained;
+        c[1] += lost;
+    }
+
+    /**
+     * Reads the series from hourly counters, like getSeries() does from
+     * the fcounts collection.
+     */
+    private static List<FollowerCounts.Bucket> series (Map<Date,int[]> counters, Date from, Date to,
+                                                       FollowerCounts.Resolution resolution) {
+        List<FollowerCounts.Bucket> result = FollowerCounts.buckets(from, to, resolution);
+        List<DBObject> hours = new ArrayList<DBObject>();
+        for (Map.Entry<Date,int[]> e : counters.entrySet()) {
+            if (e.getKey().before(result.get(0).getStart()) || !e.getKey().before(to)) continue;
+            hours.add(new BasicDBObject("hour", e.getKey()).append("gained", e.getValue()[0])
+                                                           .append("lost", e.getValue()[1]));
+        }
+        FollowerCounts.merge(result, hours);
+        return result;
+    }
+
+    public void test_countersMatchHistory() {
+        // about three weeks of history, across the end of daylight saving time
+        Calendar c = Calendar.getInstance();
+        c.set(2026, Calendar.OCTOBER, 10, 13, 17, 42);
+        long begin = c.getTimeInMillis();
+        Random r = new Random(7);
+        Map<Date,int[]> counters = new TreeMap<Date,int[]>();
+        for (int i=0; i<300; i++) {
+            Date start = new Date(begin + (long)(r.nextDouble() * 21 * 24 * HOUR));
+            store.openIntervals(42, new long[] { i }, start);
+            count(counters, start, 1, 0);
+            if (r.nextBoolean()) {
+                Date end = new Date(start.getTime() + (long)(r.nextDouble() * 5 * 24 * HOUR));
+                store.closeIntervals(42, new long[] { i }, end, null);
+                count(counters, end, 0, 1);
+            }
+        }
+        Credential cr = new Credential("test", "key", "secret", "token", "tsecret");
+        Twitter twitter = new Twitter(new CredentialPool(Collections.singletonList(cr)), sim.getUrl());
+        FollowT followt = new FollowT(store, new UserDB(twitter, store), null,
+                                      new Bulkhead("test.db", 4, 1000), new Bulkhead("test.names", 4, 1000));
+
+        Date from = new Date(begin + 2 * 24 * HOUR + 1234567);
+        Date to = new Date(begin + 20 * 24 * HOUR + 7654321);
+        for (FollowerCounts.Resolution resolution : FollowerCounts.Resolution.values()) {
+            List<FollowerCounts.Bucket> expected = series(counters, from, to, resolution);
+            List<FollowerCounts.Bucket> actual = followt.getSeries("user42", from, to, resolution);
+            assertEquals(resolution.toString(), expected.toString(), actual.toString());
+        }
+        int gained = 0;
+        for (FollowerCounts.Bucket b : followt.getSeries("user42", from, to, FollowerCounts.Resolution.DAY)) {
+            gained += b.getGained();
+        }
+        assertTrue(gained > 200);
+    }
+
+}
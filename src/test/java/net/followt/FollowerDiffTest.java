@@ -0,0 +1,102 @@
+package net.followt;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import net.followt.util.LongBitmap;
+import net.followt.util.LongHashSet;
+import net.followt.util.LongList;
+
+public class FollowerDiffTest extends TestCase {
+
+    private FollowerDiff diff (long... open) {
+        LongList l = new LongList();
+        l.addAll(open);
+        return new FollowerDiff(1, l.toSortedArray());
+    }
+
+    private LongList page (long... ids) {
+        LongList l = new LongList();
+        l.addAll(ids);
+        return l;
+    }
+
+    public void test_noChanges() {
+        FollowerDiff d = diff(1, 2, 3);
+        assertEquals(0, d.addPage(page(3, 1)).length);
+        assertEquals(0, d.addPage(page(2)).length);
+        assertEquals(0, d.getUnfollowers().length);
+    }
+
+    public void test_newFollowers() {
+        FollowerDiff d = diff(1, 2);
+        assertTrue(Arrays.equals(new long[] {5, 0}, d.addPage(page(1, 5, 0))));
+        // a follower that shows up again on a later page is not new
+        assertEquals(0, d.addPage(page(5, 2)).length);
+        assertEquals(0, d.getUnfollowers().length);
+    }
+
+    public void test_unfollowers() {
+        FollowerDiff d = diff(4, 3, 2, 1, 0);
+        d.addPage(page(2));
+        d.addPage(page(4, 7));
+        assertTrue(Arrays.equals(new long[] {0, 1, 3}, d.getUnfollowers()));
+        assertEquals(3, d.getSeenCount());
+    }
+
+    public void test_followers() {
+        FollowerDiff d = diff(2, 4, 6, 8);
+        d.addPage(page(8, 1, 4));
+        d.addPage(page(9, 2));
+        assertTrue(Arrays.equals(new long[] {1, 2, 4, 8, 9}, d.getFollowers()));
+    }
+
+    public void test_64bitIds() {
+        long big = 1L << 40;
+        FollowerDiff d = diff(big, big + 1);
+        assertTrue(Arrays.equals(new long[] {big + 2}, d.addPage(page(big + 2, big))));
+        assertTrue(Arrays.equals(new long[] {big + 1}, d.getUnfollowers()));
+    }
+
+    public void test_sortedArray() {
+        LongList l = page(5, 3, 5, 1, 3);
+        assertTrue(Arrays.equals(new long[] {1, 3, 5}, l.toSortedArray()));
+        assertEquals(5, l.size());
+    }
+
+    public void test_largeSet() {
+        LongHashSet s = new LongHashSet();
+        for (long i=0; i<100000; i++) assertTrue(s.add(i * 7919));
+        for (long i=0; i<100000; i++) assertFalse(s.add(i * 7919));
+        assertEquals(100000, s.size());
+        assertTrue(s.contains(7919 * 500));
+        assertFalse(s.contains(7918));
+    }
+
+    /**
+     * A million sparse 64-bit ids, in pages of 5,000 in random order, as
+     * from Twitter.  Adding them to a bitmap one by one took minutes,
+     * because almost every id is inserted in the middle of the bitmap.
+     */
+    public void test_millionSparseIds() {
+        Random r = new Random(42);
+        LongHashSet ids = new LongHashSet(1010000);
+        while (ids.size() < 1010000) ids.add(r.nextLong() >>> 1);
+        long[] all = ids.toArray();
+        long[] previous = Arrays.copyOfRange(all, 0, 1000000);
+        Arrays.sort(previous);
+        FollowerDiff d = new FollowerDiff(1, LongBitmap.of(previous), null);
+        long start = System.nanoTime();
+        int added = 0;
+        for (int i=10000; i<all.length; i+=5000) {
+            added += d.addPage(page(Arrays.copyOfRange(all, i, Math.min(i + 5000, all.length)))).length;
+        }
+        assertEquals(10000, added);
+        assertEquals(10000, d.getUnfollowers().length);
+        assertEquals(1000000, d.getCurrent().cardinality());
+        long millis = (System.nanoTime() - start) / 1000000;
+        assertTrue("took " + millis + " ms", millis < 10000);
+    }
+
+}
@@ -0,0 +1,185 @@
+package net.followt;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class LocalFollowerStoreTest extends TestCase {
+
+    private File dir;
+
+    protected void setUp() throws IOException {
+        dir = Files.createTempDirectory("followt").toFile();
+    }
+
+    protected void tearDown() {
+        for (File f : dir.listFiles()) f.delete();
+        dir.delete();
+    }
+
+    private List<Interval> visit (FollowerStore s, long followee, FollowerStore.Order order,
+                                  Date from, Interval after, int limit) throws IOException {
+        final List<Interval> result = new ArrayList<Interval>();
+        s.visitIntervals(followee, order, from, after, limit, new FollowerStore.IntervalVisitor() {
+            public void visit (Interval i) {
+                result.add(i);
+            }
+        });
+        return result;
+    }
+
+    public void test_intervals() throws IOException {
+        LocalFollowerStore s = new LocalFollowerStore(dir);
+        s.openIntervals(1, new long[] {30, 10, 20}, new Date(1000));
+        s.openIntervals(1, new long[] {40}, new Date(2000));
+        s.closeIntervals(1, new long[] {20, 99}, new Date(3000), new Date(2000));
+        assertTrue(Arrays.equals(new long[] {10, 30, 40}, s.getOpenFollowers(1)));
+        assertEquals(new Date(1000), s.getFirstStart(1));
+        assertNull(s.getFirstStart(2));
+
+        List<Interval> all = visit(s, 1, FollowerStore.Order.BY_START, new Date(0), null, 100);
+        assertEquals(4, all.size());
+        List<Interval> page = visit(s, 1, FollowerStore.Order.BY_START, new Date(0), null, 2);
+        page.addAll(visit(s, 1, FollowerStore.Order.BY_START, new Date(0), page.get(1), 2));
+        assertEquals(4, page.size());
+        for (int i=0; i<4; i++) assertEquals(all.get(i).follower, page.get(i).follower);
+        assertEquals(40, page.get(3).follower);
+
+        List<Interval> ended = visit(s, 1, FollowerStore.Order.BY_END, new Date(0), null, 100);
+        assertEquals(1, ended.size());
+        assertEquals(20, ended.get(0).follower);
+        assertEquals(new Date(2000), ended.get(0).last);
+        s.close();
+
+        // everything is replayed from the logs
+        s = new LocalFollowerStore(dir);
+        assertTrue(Arrays.equals(new long[] {10, 30, 40}, s.getOpenFollowers(1)));
+        assertEquals(1, visit(s, 1, FollowerStore.Order.BY_END, new Date(0), null, 100).size());
+        s.close();
+    }
+
+    public void test_scans_and_users() throws IOException {
+        LocalFollowerStore s = new LocalFollowerStore(dir);
+        s.addScan(1);
+        s.addScan(2);
+        Scan scan = s.getScan(1);
+        scan.scan_started = new Date(1000);
+        scan.scan_ended = new Date(2000);
+        s.saveScan(scan);
+        assertEquals(2, s.nextScan(Collections.<Long>emptySet()).user_id);
+        assertEquals(1, s.nextScan(Collections.singleton(2L)).user_id);
+        s.putScreenNames(new long[] {1, 2}, new String[] {"alice", "b\u00f6b"});
+        s.close();
+
+        s = new LocalFollowerStore(dir);
+        assertEquals(new Date(2000), s.getScan(1).scan_ended);
+        assertEquals(new Date(2000), s.getScanEnded().get(1L));
+        assertTrue(Arrays.equals(new String[] {"alice", "b\u00f6b", null},
+                                 s.getScreenNames(new long[] {1, 2, 3})));
+        assertEquals(2, s.getUserId("b\u00f6b"));
+        assertEquals(-1, s.getUserId("carol"));
+        s.close();
+    }
+
+    public void test_torn_tail() throws IOException {
+        LocalFollowerStore s = new LocalFollowerStore(dir);
+        s.openIntervals(1, new long[] {10}, new Date(1000));
+        s.close();
+        RandomAccessFile f = new RandomAccessFile(new File(dir, "intervals.log"), "rw");
+        f.setLength(f.length() + 5);
+        f.close();
+        s = new LocalFollowerStore(dir);
+        assertTrue(Arrays.equals(new long[] {10}, s.getOpenFollowers(1)));
+        s.openIntervals(1, new long[] {20}, new Date(2000));
+        s.close();
+        s = new LocalFollowerStore(dir);
+        assertTrue(Arrays.equals(new long[] {10, 20}, s.getOpenFollowers(1)));
+        s.close();
+    }
+
+    public void test_replayLargeLog() throws IOException {
+        // more than the read buffer, with records across its boundaries
+        LocalFollowerStore s = new LocalFollowerStore(dir);
+        s.putScreenNames(new long[] {7}, new String[] {"seven"});
+        long[] followers = new long[200000];
+        for (int i=0; i<followers.length; i++) followers[i] = i * 3L;
+        s.openIntervals(1, followers, new Date(1000));
+        s.closeIntervals(1, Arrays.copyOf(followers, 1000), new Date(2000), new Date(1500));
+        s.putScreenNames(new long[] {8}, new String[] {"eight"});
+        s.close();
+
+        s = new LocalFollowerStore(dir);
+        long[] open = s.getOpenFollowers(1);
+        assertEquals(199000, open.length);
+        assertEquals(3000, open[0]);
+        assertEquals(3L * 199999, open[open.length-1]);
+        assertEquals(1000, visit(s, 1, FollowerStore.Order.BY_END, new Date(0), null, 5000).size());
+        assertTrue(Arrays.equals(new String[] {"seven", "eight"}, s.getScreenNames(new long[] {7, 8})));
+        s.close();
+    }
+
+    public void test_corruptRecord() throws IOException {
+        LocalFollowerStore s = new LocalFollowerStore(dir);
+        s.openIntervals(1, new long[] {10}, new Date(1000));
+        s.openIntervals(1, new long[] {20}, new Date(2000));
+        s.openIntervals(1, new long[] {30}, new Date(3000));
+        s.close();
+        // flip a bit in the follower of the second record
+        RandomAccessFile f = new RandomAccessFile(new File(dir, "intervals.log"), "rw");
+        assertEquals(4 + 3 * 37, f.length());
+        long pos = 4 + 37 + 1 + 8;
+        f.seek(pos);
+        int b = f.read();
+        f.seek(pos);
+        f.write(b ^ 1);
+        f.close();
+        s = new LocalFollowerStore(dir);
+        assertTrue(Arrays.equals(new long[] {10}, s.getOpenFollowers(1)));
+        s.openIntervals(1, new long[] {40}, new Date(4000));
+        s.close();
+        s = new LocalFollowerStore(dir);
+        assertTrue(Arrays.equals(new long[] {10, 40}, s.getOpenFollowers(1)));
+        s.close();
+    }
+
+    private void writeLog (String name, ByteBuffer b) throws IOException {
+        b.flip();
+        RandomAccessFile f = new RandomAccessFile(new File(dir, name), "rw");
+        f.getChannel().write(b);
+        f.close();
+    }
+
+    public void test_logsWithoutChecksums() throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(32);
+        b.putLong(1).putLong(1000).putLong(0).putLong(2000);
+        writeLog("scans.log", b);
+        b = ByteBuffer.allocate(15);
+        b.putLong(1).putShort((short)5).put("alice".getBytes("UTF-8"));
+        writeLog("users.log", b);
+        b = ByteBuffer.allocate(2 * 33 + 5);
+        b.put((byte)1).putLong(1).putLong(10).putLong(1000).putLong(Long.MIN_VALUE);
+        b.put((byte)1).putLong(1).putLong(20).putLong(1000).putLong(Long.MIN_VALUE);
+        b.put(new byte[5]);
+        writeLog("intervals.log", b);
+
+        for (int i=0; i<2; i++) {
+            LocalFollowerStore s = new LocalFollowerStore(dir);
+            assertEquals(new Date(2000), s.getScan(1).scan_ended);
+            assertEquals(1, s.getUserId("alice"));
+            assertTrue(Arrays.equals(new long[] {10, 20}, s.getOpenFollowers(1)));
+            s.close();
+            // converted when opened the first time
+            assertEquals(4 + 2 * 37, new File(dir, "intervals.log").length());
+        }
+    }
+
+}
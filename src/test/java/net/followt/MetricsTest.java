@@ -0,0 +1,44 @@
+package net.followt;
+
+import junit.framework.TestCase;
+
+public class MetricsTest extends TestCase {
+
+    public void test_toText() {
+        Metrics.counter("test.text.counter").add(3);
+        Metrics.gauge("test.text.gauge", new Metrics.Gauge() {
+            public long getValue() {
+                return 42;
+            }
+        });
+        Metrics.timer("test.text.timer").record(2000000);
+        Metrics.timer("test.text.timer").record(2000000);
+        String text = Metrics.toText();
+        String expected =
+            "# TYPE followt_test_text_counter_total counter\n" +
+            "followt_test_text_counter_total 3\n" +
+            "# TYPE followt_test_text_gauge gauge\n" +
+            "followt_test_text_gauge 42\n" +
+            "# TYPE followt_test_text_timer_seconds summary\n" +
+            "followt_test_text_timer_seconds{quantile=\"0.5\"} 0.002000\n" +
+            "followt_test_text_timer_seconds{quantile=\"0.9\"} 0.002000\n" +
+            "followt_test_text_timer_seconds{quantile=\"0.99\"} 0.002000\n" +
+            "followt_test_text_timer_seconds_sum 0.004000\n" +
+            "followt_test_text_timer_seconds_count 2\n" +
+            "# TYPE followt_test_text_timer_seconds_max gauge\n" +
+            "followt_test_text_timer_seconds_max 0.002000\n";
+        // the metrics are sorted by name, so these are next to each other
+        assertTrue(text, text.contains(expected));
+    }
+
+    public void test_sameMetric() {
+        assertSame(Metrics.counter("test.same"), Metrics.counter("test.same"));
+        try {
+            Metrics.timer("test.same");
+            fail();
+        } catch (IllegalArgumentException ex) {
+            // expected
+        }
+    }
+
+}
@@ -0,0 +1,75 @@
+package net.followt;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Date;
+
+import junit.framework.TestCase;
+import net.followt.util.LongList;
+
+public class PageJournalTest extends TestCase {
+
+    private File dir;
+
+    protected void setUp() throws IOException {
+        dir = Files.createTempDirectory("followt-journal").toFile();
+    }
+
+    protected void tearDown() {
+        for (File f : dir.listFiles()) f.delete();
+        dir.delete();
+    }
+
+    private LongList page (long... ids) {
+        LongList l = new LongList();
+        l.addAll(ids);
+        return l;
+    }
+
+    public void test_recover() {
+        Date started = new Date(2000), previous = new Date(1000);
+        PageJournal j = new PageJournal(dir);
+        j.begin(42, started, previous);
+        j.append(42, -1, 7, page(5, 3, 900000000000L, 3));
+        j.append(42, 7, 0, page());
+
+        PageJournal r = new PageJournal(dir);
+        assertNull(r.recover(42, new Date(3000)));
+        PageJournal.Header h = r.recover(42, started);
+        assertEquals(previous, h.previousScan);
+        PageJournal.Record p = r.take(42, -1);
+        assertEquals(7, p.nextCursor);
+        assertTrue(Arrays.equals(new long[] {3, 5, 900000000000L}, p.followers));
+        assertNull(r.take(42, -1));
+        assertEquals(0, r.take(42, 7).followers.length);
+
+        r.finish(42);
+        assertNull(new PageJournal(dir).recover(42, started));
+    }
+
+    public void test_incompleteRecord() throws IOException {
+        Date started = new Date(2000);
+        PageJournal j = new PageJournal(dir);
+        j.begin(42, started, null);
+        j.append(42, -1, 7, page(1, 2));
+        j.append(42, 7, 0, page(3, 4));
+        File f = new File(dir, "42.journal");
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        raf.setLength(f.length() - 1);
+        raf.close();
+
+        PageJournal r = new PageJournal(dir);
+        assertNull(r.recover(42, started).previousScan);
+        assertNull(r.take(42, 7));
+        // new pages go where the incomplete record was
+        r.append(42, 7, 0, page(3, 4, 5));
+        PageJournal r2 = new PageJournal(dir);
+        r2.recover(42, started);
+        assertEquals(2, r2.take(42, -1).followers.length);
+        assertEquals(3, r2.take(42, 7).followers.length);
+    }
+
+}
@@ -0,0 +1,119 @@
+package net.followt;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import junit.framework.TestCase;
+import net.followt.sim.FollowerGraph;
+import net.followt.sim.TwitterSimulator;
+
+public class ReportStreamTest extends TestCase {
+
+    private static final Pattern ID = Pattern.compile("\"id\":(\\d+)");
+    private static final Pattern NEXT = Pattern.compile("\"next\":(null|\"([^\"]*)\")");
+
+    private TwitterSimulator sim;
+    private File dir;
+    private LocalFollowerStore store;
+    private ReportStream stream;
+
+    protected void setUp() throws IOException {
+        sim = new TwitterSimulator(new FollowerGraph(1, 100, 100, 0, 60 * 60 * 1000),
+                                   60 * 60 * 1000, 0, 0);
+        sim.start(0);
+        dir = Files.createTempDirectory("followt-stream").toFile();
+        store = new LocalFollowerStore(dir);
+        // pages of a scan share their start time
+        store.openIntervals(42, new long[] { 1, 2, 3, 4, 5 }, new Date(1000));
+        store.openIntervals(42, new long[] { 6, 7 }, new Date(2000));
+        store.openIntervals(42, new long[] { 8, 9, 10 }, new Date(3000));
+        store.closeIntervals(42, new long[] { 2, 3, 4, 6 }, new Date(4000), new Date(3000));
+        Credential c = new Credential("test", "key", "secret", "token", "tsecret");
+        Twitter twitter = new Twitter(new CredentialPool(Collections.singletonList(c)), sim.getUrl());
+        stream = new ReportStream(store, new UserDB(twitter, store));
+    }
+
+    protected void tearDown() throws IOException {
+        sim.stop();
+        store.close();
+        for (File f : dir.listFiles()) f.delete();
+        dir.delete();
+    }
+
+    /**
+     * Reads all pages, appending the ids to the given list.
+     * @return the number of pages
+     */
+    private int readAll (ReportStream.Kind kind, Date cutoff, int limit, List<Long> ids) throws IOException {
+        String after = null;
+        for (int pages = 1; ; pages++) {
+            StringWriter out = new StringWriter();
+            stream.write(kind, 42, cutoff, after, limit, out);
+            String page = out.toString();
+            int rows = 0;
+            for (Matcher m = ID.matcher(page); m.find(); rows++) ids.add(Long.parseLong(m.group(1)));
+            assertTrue(page, rows <= limit);
+            Matcher m = NEXT.matcher(page);
+            assertTrue(page, m.find());
+            if (m.group(2) == null) return pages;
+            assertEquals(page, limit, rows);
+            after = m.group(2);
+        }
+    }
+
+    private static List<Long> range (long from, long to) {
+        List<Long> result = new ArrayList<Long>();
+        for (long i=from; i<=to; i++) result.add(i);
+        return result;
+    }
+
+    public void test_pageBoundaries() throws IOException {
+        // the page boundaries fall among followers with the same start time
+        List<Long> ids = new ArrayList<Long>();
+        assertEquals(4, readAll(ReportStream.Kind.FOLLOWERS, new Date(0), 3, ids));
+        assertEquals(range(1, 10), ids);
+
+        ids.clear();
+        assertEquals(2, readAll(ReportStream.Kind.FOLLOWERS, new Date(1500), 4, ids));
+        assertEquals(range(6, 10), ids);
+
+        ids.clear();
+        assertEquals(3, readAll(ReportStream.Kind.UNFOLLOWERS, new Date(0), 2, ids));
+        assertEquals(range(2, 4), ids.subList(0, 3));
+        assertEquals(Long.valueOf(6), ids.get(3));
+    }
+
+    public void test_lastPage() throws IOException {
+        List<Long> ids = new ArrayList<Long>();
+        // a last page that is not full has no next token
+        assertEquals(1, readAll(ReportStream.Kind.FOLLOWERS, new Date(0), 20, ids));
+        assertEquals(10, ids.size());
+        // a full one does, and the page after it is empty
+        ids.clear();
+        assertEquals(3, readAll(ReportStream.Kind.FOLLOWERS, new Date(0), 5, ids));
+        assertEquals(range(1, 10), ids);
+    }
+
+    public void test_invalidToken() throws IOException {
+        String[] tokens = { "x", "1000", "1000-", "-5", "abc-5", "1000-abc" };
+        for (String token : tokens) {
+            StringWriter out = new StringWriter();
+            try {
+                stream.write(ReportStream.Kind.FOLLOWERS, 42, new Date(0), token, 3, out);
+                fail(token);
+            } catch (IllegalArgumentException ex) {
+                // the web UI can still answer with an error
+                assertEquals(token, "", out.toString());
+            }
+        }
+    }
+
+}
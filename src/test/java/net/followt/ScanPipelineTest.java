@@ -0,0 +1,174 @@
+package net.followt;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Properties;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+import net.followt.sim.FollowerGraph;
+import net.followt.sim.TwitterSimulator;
+
+public class ScanPipelineTest extends TestCase {
+
+    private File dir;
+    private LocalFollowerStore store;
+    private TwitterSimulator sim;
+
+    protected void setUp() throws IOException {
+        dir = Files.createTempDirectory("followt").toFile();
+        System.setProperty("followt.store", "local");
+        System.setProperty("followt.bitmap.dir", new File(dir, "bitmaps").getPath());
+        System.setProperty("followt.journal.dir", new File(dir, "journal").getPath());
+        store = new LocalFollowerStore(new File(dir, "store"));
+        Storage.setStore(store);
+        FollowerGraph graph = new FollowerGraph(1, 100, 100, 0.1, 60 * 60 * 1000);
+        graph.setFollowerCount(42, 12000);
+        graph.setEpoch(0);
+        sim = new TwitterSimulator(graph, 60 * 60 * 1000, 0, 0);
+        sim.start(0);
+        Properties conf = new Properties();
+        conf.setProperty("api_key", "key");
+        conf.setProperty("api_secret", "secret");
+        conf.setProperty("access_token", "token");
+        conf.setProperty("access_secret", "tsecret");
+        conf.setProperty("api_url", sim.getUrl());
+        Twitter.setInstance(Twitter.create(conf));
+    }
+
+    protected void tearDown() throws IOException {
+        sim.stop();
+        store.close();
+        Storage.setStore(null);
+        System.clearProperty("followt.store");
+        System.clearProperty("followt.bitmap.dir");
+        System.clearProperty("followt.journal.dir");
+        delete(dir);
+    }
+
+    private static void delete (File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File c : children) delete(c);
+        }
+        f.delete();
+    }
+
+    public void test_scan() throws InterruptedException {
+        store.addScan(42);
+        // room for a single page per writer, so that the fetch stage has to wait
+        ScanPipeline pipeline = new ScanPipeline(new Scanner(), 2, 1);
+        pipeline.start();
+        final Semaphore done = new Semaphore(0);
+        Runnable release = new Runnable() {
+            public void run() {
+                done.release();
+            }
+        };
+        for (int epoch=0; epoch<2; epoch++) {
+            sim.getGraph().setEpoch(epoch);
+            pipeline.scan(store.getScan(42), release);
+            assertTrue(done.tryAcquire(30, TimeUnit.SECONDS));
+            long[] expected = sim.getGraph().getFollowers(42, epoch);
+            long[] actual = store.getOpenFollowers(42);
+            Arrays.sort(expected);
+            Arrays.sort(actual);
+            assertTrue(Arrays.equals(expected, actual));
+            Scan scan = store.getScan(42);
+            assertEquals(0, scan.next_cursor);
+            assertNotNull(scan.scan_ended);
+        }
+        assertEquals(2 * 12000, sim.getFollowersServed());
+    }
+
+    public void test_replayJournal() throws InterruptedException {
+        store.addScan(42);
+        Scanner scanner = new Scanner();
+        scanner.scan(store.getScan(42));
+        scanner.scan(store.getScan(42));
+        scanner.scan(store.getScan(42));
+        assertEquals(12000, sim.getFollowersServed());
+
+        // the next scan writes its first page, fetches the second,
+        // and then the Scanner is restarted
+        sim.getGraph().setEpoch(1);
+        scanner.scan(store.getScan(42));
+        Scanner.Page page = scanner.start(store.getScan(42));
+        scanner.fetch(page);
+        assertEquals(12000 + 2 * 5000, sim.getFollowersServed());
+
+        ScanPipeline pipeline = new ScanPipeline(new Scanner(), 2, 1);
+        pipeline.start();
+        final Semaphore done = new Semaphore(0);
+        pipeline.scan(store.getScan(42), new Runnable() {
+            public void run() {
+                done.release();
+            }
+        });
+        assertTrue(done.tryAcquire(30, TimeUnit.SECONDS));
+        // only the last page had to be fetched
+        long[] expected = sim.getGraph().getFollowers(42, 1);
+        assertEquals(12000 + expected.length, sim.getFollowersServed());
+        long[] actual = store.getOpenFollowers(42);
+        Arrays.sort(expected);
+        Arrays.sort(actual);
+        assertTrue(Arrays.equals(expected, actual));
+        assertEquals(0, store.getScan(42).next_cursor);
+        assertFalse(new File(dir, "journal/42.journal").exists());
+    }
+
+    public void test_failedWriteWithoutJournal() throws IOException {
+        System.setProperty("followt.scanner.journal", "false");
+        try {
+            // a store that fails the first time it closes intervals, and
+            // notices if an interval is opened for a follower that has one
+            store.close();
+            final boolean[] failClose = new boolean[1];
+            final int[] reopened = new int[1];
+            store = new LocalFollowerStore(new File(dir, "store")) {
+                public void openIntervals (long followee, long[] followers, Date start) {
+                    long[] open = getOpenFollowers(followee);
+                    for (long f : followers) {
+                        if (Arrays.binarySearch(open, f) >= 0) reopened[0]++;
+                    }
+                    super.openIntervals(followee, followers, start);
+                }
+                public void closeIntervals (long followee, long[] followers, Date end, Date lastSeen) {
+                    if (failClose[0]) {
+                        failClose[0] = false;
+                        throw new RuntimeException("simulated write failure");
+                    }
+                    super.closeIntervals(followee, followers, end, lastSeen);
+                }
+            };
+            Storage.setStore(store);
+            store.addScan(42);
+            Scanner scanner = new Scanner();
+            for (int i=0; i<3; i++) scanner.scan(store.getScan(42));
+
+            // the last page of the next scan cannot be written, after the
+            // first pages have opened intervals for the new followers
+            sim.getGraph().setEpoch(1);
+            failClose[0] = true;
+            for (int i=0; i<3; i++) scanner.scan(store.getScan(42));
+            assertFalse(failClose[0]);
+            assertTrue(store.getScan(42).next_cursor > 0);
+
+            // the scan is started over, and completes
+            for (int i=0; i<3; i++) scanner.scan(store.getScan(42));
+            assertEquals(0, reopened[0]);
+            long[] expected = sim.getGraph().getFollowers(42, 1);
+            long[] actual = store.getOpenFollowers(42);
+            Arrays.sort(expected);
+            Arrays.sort(actual);
+            assertTrue(Arrays.equals(expected, actual));
+        } finally {
+            System.clearProperty("followt.scanner.journal");
+        }
+    }
+
+}
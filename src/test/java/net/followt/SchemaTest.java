@@ -0,0 +1,42 @@
+package net.followt;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+public class SchemaTest extends TestCase {
+
+    private static DBObject index (String name, String... fields) {
+        BasicDBObject key = new BasicDBObject();
+        for (String f : fields) key.append(f, 1);
+        return new BasicDBObject("name", name).append("key", key);
+    }
+
+    public void test_obsoleteIndexes() {
+        List<DBObject> indexes = new ArrayList<DBObject>();
+        indexes.add(index("_id_", "_id"));
+        indexes.add(index("followee_1_start_1", "followee", "start"));
+        indexes.add(index("followee_1_end_1", "followee", "end"));
+        indexes.add(index("followee_1_follower_1_end_1", "followee", "follower", "end"));
+        // not dropped while the replacements are missing
+        assertEquals(0, Schema.getObsoleteIndexes(indexes).size());
+
+        indexes.add(index("followee_1_start_1__id_1", "followee", "start", "_id"));
+        assertEquals(Arrays.asList("followee_1_start_1"), Schema.getObsoleteIndexes(indexes));
+
+        indexes.add(index("followee_1_end_1__id_1", "followee", "end", "_id"));
+        assertEquals(Arrays.asList("followee_1_start_1", "followee_1_end_1"),
+                     Schema.getObsoleteIndexes(indexes));
+
+        // a descending index is not one that followt created
+        indexes.add(new BasicDBObject("name", "followee_1_start_-1")
+                        .append("key", new BasicDBObject("followee", 1).append("start", -1)));
+        assertEquals(2, Schema.getObsoleteIndexes(indexes).size());
+    }
+
+}
@@ -0,0 +1,54 @@
+package net.followt;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+import net.followt.util.DeltaCodec;
+
+public class SnapshotStoreTest extends TestCase {
+
+    public void test_codec() {
+        long[] ids = new long[] {0, 1, 127, 128, 22603349, 3000000001L, Long.MAX_VALUE};
+        byte[] data = DeltaCodec.encode(ids);
+        assertTrue(Arrays.equals(ids, DeltaCodec.decode(data)));
+        assertEquals(1, DeltaCodec.encode(new long[0]).length);
+    }
+
+    public void test_codec_partial() {
+        long[] ids = new long[] {5, 10, 15, 20};
+        long[] a = DeltaCodec.decode(DeltaCodec.encode(ids, 0, 2));
+        long[] b = DeltaCodec.decode(DeltaCodec.encode(ids, 2, 4));
+        assertTrue(Arrays.equals(ids, DeltaCodec.concat(a, b)));
+    }
+
+    public void test_codec_unsorted() {
+        try {
+            DeltaCodec.encode(new long[] {3, 2});
+            fail();
+        } catch (IllegalArgumentException ex) {
+            // ok
+        }
+    }
+
+    public void test_codec_dense() {
+        long[] ids = new long[100000];
+        for (int i=0; i<ids.length; i++) ids[i] = 1000000000L + i * 37;
+        byte[] data = DeltaCodec.encode(ids);
+        assertTrue(data.length < ids.length + 10);
+        assertTrue(Arrays.equals(ids, DeltaCodec.decode(data)));
+    }
+
+    public void test_diff() {
+        SnapshotStore.Diff d = SnapshotStore.diff(new long[] {1, 3, 5, 7},
+                                                  new long[] {2, 3, 7, 9});
+        assertTrue(Arrays.equals(new long[] {2, 9}, d.added));
+        assertTrue(Arrays.equals(new long[] {1, 5}, d.removed));
+    }
+
+    public void test_diff_empty() {
+        SnapshotStore.Diff d = SnapshotStore.diff(new long[0], new long[] {4});
+        assertTrue(Arrays.equals(new long[] {4}, d.added));
+        assertEquals(0, d.removed.length);
+    }
+
+}
@@ -0,0 +1,54 @@
+package net.followt;
+
+import junit.framework.TestCase;
+
+public class TokenBucketTest extends TestCase {
+
+    public void test_window() throws InterruptedException {
+        TokenBucket b = new TokenBucket("test", 3, 200);
+        assertTrue(b.tryAcquire());
+        assertTrue(b.tryAcquire());
+        assertTrue(b.tryAcquire());
+        assertFalse(b.tryAcquire());
+        assertEquals(0, b.available());
+        long start = System.currentTimeMillis();
+        b.acquire();
+        long waited = System.currentTimeMillis() - start;
+        assertTrue("waited " + waited, waited >= 150);
+        assertEquals(2, b.available());
+    }
+
+    public void test_awaitAvailable() throws InterruptedException {
+        TokenBucket b = new TokenBucket("test", 1, 100);
+        b.awaitAvailable();
+        assertEquals(1, b.available());
+        b.acquire();
+        b.awaitAvailable();
+        assertEquals(1, b.available());
+    }
+
+    public void test_update() throws InterruptedException {
+        TokenBucket b = new TokenBucket("test", 15, 60000);
+        long reset = System.currentTimeMillis() + 300;
+        b.update(15, 2, reset);
+        RateLimitStatus status = b.getStatus();
+        assertEquals(15, status.getLimit());
+        assertEquals(2, status.getRemaining());
+        assertTrue(status.getReset().getTime() >= reset);
+        assertTrue(b.tryAcquire());
+        assertTrue(b.tryAcquire());
+        assertFalse(b.tryAcquire());
+        // Twitter said the window ends at reset, not 60 seconds from now
+        long start = System.currentTimeMillis();
+        b.acquire();
+        assertTrue(System.currentTimeMillis() - start < 5000);
+    }
+
+    public void test_exhaust() {
+        TokenBucket b = new TokenBucket("test", 15, 60000);
+        b.exhaust(System.currentTimeMillis() + 60000);
+        assertEquals(0, b.available());
+        assertFalse(b.tryAcquire());
+    }
+
+}
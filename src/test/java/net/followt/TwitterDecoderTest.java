@@ -0,0 +1,51 @@
+package net.followt;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import junit.framework.TestCase;
+import net.followt.util.LongList;
+
+public class TwitterDecoderTest extends TestCase {
+
+    private InputStream stream (String s) throws IOException {
+        return new ByteArrayInputStream(s.getBytes("UTF-8"));
+    }
+
+    public void test_followerIds() throws IOException {
+        LongList ids = new LongList();
+        long next = TwitterDecoder.decodeFollowerIds(stream(
+            "{ \"previous_cursor\": 0, \"ids\" : [ 22603349, 3000000001 ,15346486 ],\n"
+          + "  \"next_cursor\": 1444171924411163944, \"next_cursor_str\": \"1444171924411163945\","
+          + "  \"previous_cursor_str\": \"0\" }"), ids);
+        assertEquals(1444171924411163945L, next);
+        assertEquals(3, ids.size());
+        assertEquals(22603349L, ids.get(0));
+        assertEquals(3000000001L, ids.get(1));
+        assertEquals(15346486L, ids.get(2));
+    }
+
+    public void test_followerIds_lastPage() throws IOException {
+        LongList ids = new LongList();
+        long next = TwitterDecoder.decodeFollowerIds(stream(
+            "{\"ids\":[],\"next_cursor\":0,\"next_cursor_str\":\"0\"}"), ids);
+        assertEquals(0, next);
+        assertTrue(ids.isEmpty());
+    }
+
+    public void test_screenNames() throws IOException {
+        long[] ids = new long[] {22603349, 15346486, 42};
+        String[] names = new String[ids.length];
+        int count = TwitterDecoder.decodeScreenNames(stream(
+            "[{\"id\":15346486,\"name\":\"J\\u00f6rg \\\"x\\\"\",\"screen_name\":\"maennig\","
+          + "\"entities\":{\"url\":{\"urls\":[{\"indices\":[0,22]}]}},\"status\":null,"
+          + "\"verified\":false,\"geo\":{\"a\":\"}]\"}},"
+          + " {\"screen_name\":\"drmirror\",\"id\":22603349,\"lang\":\"\u00fcn\u00efcode\"}]"), ids, names);
+        assertEquals(2, count);
+        assertEquals("drmirror", names[0]);
+        assertEquals("maennig", names[1]);
+        assertNull(names[2]);
+    }
+
+}
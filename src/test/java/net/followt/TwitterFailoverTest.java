@@ -0,0 +1,83 @@
+package net.followt;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+import net.followt.sim.FollowerGraph;
+import net.followt.sim.TwitterSimulator;
+
+public class TwitterFailoverTest extends TestCase {
+
+    private TwitterSimulator sim;
+
+    protected void setUp() throws IOException {
+        FollowerGraph graph = new FollowerGraph(1, 100, 100, 0, 60 * 60 * 1000);
+        sim = new TwitterSimulator(graph, 60 * 60 * 1000, 0, 0);
+        sim.start(0);
+    }
+
+    protected void tearDown() {
+        sim.stop();
+    }
+
+    private Twitter twitter (int credentials) {
+        Properties conf = new Properties();
+        for (int i=1; i<=credentials; i++) {
+            String suffix = i == 1 ? "" : "." + i;
+            conf.setProperty("api_key" + suffix, "key" + i);
+            conf.setProperty("api_secret" + suffix, "secret" + i);
+            conf.setProperty("access_token" + suffix, "token" + i);
+            conf.setProperty("access_secret" + suffix, "tsecret" + i);
+        }
+        conf.setProperty("api_url", sim.getUrl());
+        return Twitter.create(conf);
+    }
+
+    private Credential credential (Twitter t, int i) {
+        return t.getCredentialPool().getCredentials().get(i);
+    }
+
+    public void test_failover() {
+        Twitter t = twitter(2);
+        sim.revoke("token1");
+        for (int i=0; i<3; i++) {
+            assertTrue(Arrays.equals(new String[] { "user7" }, t.lookupScreenNames(new long[] { 7 })));
+        }
+        assertTrue(credential(t, 0).isQuarantined());
+        assertFalse(credential(t, 1).isQuarantined());
+    }
+
+    public void test_lastCredential() {
+        Twitter t = twitter(1);
+        sim.revoke("token1");
+        try {
+            t.lookupScreenNames(new long[] { 7 });
+            fail();
+        } catch (TwitterException ex) {
+            assertEquals(89, ex.getCode());
+        }
+        assertFalse(credential(t, 0).isQuarantined());
+    }
+
+    public void test_transientError() {
+        Twitter t = twitter(1);
+        sim.failNext(2, 503);
+        long start = System.currentTimeMillis();
+        assertTrue(Arrays.equals(new String[] { "user7" }, t.lookupScreenNames(new long[] { 7 })));
+        assertTrue(System.currentTimeMillis() - start >= 3 * Twitter.RETRY_DELAY);
+        assertFalse(credential(t, 0).isQuarantined());
+        assertEquals(3, sim.getRequestCount());
+
+        sim.failNext(Twitter.MAX_RETRIES + 1, 503);
+        try {
+            t.lookupScreenNames(new long[] { 7 });
+            fail();
+        } catch (TwitterException ex) {
+            assertEquals("Internal error", ex.getMessage());
+        }
+        assertFalse(credential(t, 0).isQuarantined());
+    }
+
+}
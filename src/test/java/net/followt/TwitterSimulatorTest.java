@@ -0,0 +1,108 @@
+package net.followt;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+
+import junit.framework.TestCase;
+import net.followt.sim.FollowerGraph;
+import net.followt.sim.TwitterSimulator;
+
+public class TwitterSimulatorTest extends TestCase {
+
+    private TwitterSimulator sim;
+
+    protected void setUp() throws IOException {
+        FollowerGraph graph = new FollowerGraph(1, 100, 100, 0.1, 60 * 60 * 1000);
+        graph.setFollowerCount(42, 12000);
+        sim = new TwitterSimulator(graph, 60 * 60 * 1000, 0, 0);
+        sim.start(0);
+    }
+
+    protected void tearDown() {
+        sim.stop();
+    }
+
+    private Twitter twitter() {
+        Properties conf = new Properties();
+        conf.setProperty("api_key", "key");
+        conf.setProperty("api_secret", "secret");
+        conf.setProperty("access_token", "token");
+        conf.setProperty("access_secret", "tsecret");
+        conf.setProperty("api_url", sim.getUrl());
+        return Twitter.create(conf);
+    }
+
+    public void test_churn() {
+        FollowerGraph g = sim.getGraph();
+        long[] a = g.getFollowers(42, 0);
+        assertTrue(Arrays.equals(a, g.getFollowers(42, 0)));
+        Set<Long> s = new HashSet<Long>();
+        for (long id : a) s.add(id);
+        int changed = 0;
+        for (long id : g.getFollowers(42, 1)) {
+            if (!s.contains(id)) changed++;
+        }
+        // 10% churn per epoch
+        assertTrue(changed > 1000 && changed < 1400);
+    }
+
+    public void test_noDuplicateFollowers() {
+        FollowerGraph g = new FollowerGraph(1, 100, 100, 0.1, 60 * 60 * 1000);
+        g.setFollowerCount(7, 500000);
+        for (long epoch : new long[] { 0, 3 }) {
+            long[] a = g.getFollowers(7, epoch);
+            Arrays.sort(a);
+            int snowflakes = 0;
+            for (int i=0; i<a.length; i++) {
+                assertTrue(a[i] > 0);
+                if (i > 0) assertTrue(a[i] != a[i-1]);
+                if (a[i] > 0xFFFFFFFFL + 1) snowflakes++;
+            }
+            // 20% 64-bit ids
+            assertTrue(snowflakes > 95000 && snowflakes < 105000);
+        }
+    }
+
+    public void test_followers() {
+        Twitter t = twitter();
+        long[] followers = t.getFollowers(42);
+        assertTrue(Arrays.equals(sim.getGraph().getFollowers(42, 0), followers));
+        assertEquals(3, sim.getRequestCount());
+        assertEquals(42, t.getId("user42"));
+        String[] names = t.lookupScreenNames(new long[] {1, 2});
+        assertTrue(Arrays.equals(new String[] {"user1", "user2"}, names));
+    }
+
+    public void test_rateLimit() throws IOException {
+        for (int i=0; i<TwitterSimulator.FOLLOWERS_IDS_LIMIT; i++) {
+            HttpURLConnection c = get("followers/ids.json?user_id=1");
+            assertEquals(200, c.getResponseCode());
+            assertEquals(Integer.toString(TwitterSimulator.FOLLOWERS_IDS_LIMIT - i - 1),
+                         c.getHeaderField("x-rate-limit-remaining"));
+            c.getInputStream().close();
+        }
+        HttpURLConnection c = get("followers/ids.json?user_id=1");
+        assertEquals(429, c.getResponseCode());
+        InputStream in = c.getErrorStream();
+        byte[] body = new byte[1000];
+        int n = in.read(body);
+        in.close();
+        assertTrue(new String(body, 0, n, "UTF-8").contains("\"code\":88"));
+        assertEquals(1, sim.getRejectedCount());
+        assertTrue(Long.parseLong(c.getHeaderField("x-rate-limit-reset")) * 1000
+                   > System.currentTimeMillis());
+    }
+
+    private HttpURLConnection get (String command) throws IOException {
+        HttpURLConnection c = (HttpURLConnection)new URL(sim.getUrl() + command).openConnection();
+        c.setRequestProperty("Authorization", "OAuth oauth_token=\"test\"");
+        return c;
+    }
+
+}
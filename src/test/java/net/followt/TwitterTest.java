@@ -9,7 +9,7 @@ public class TwitterTest extends TestCase {
     Twitter twitter = Twitter.getInstance();
     
     public void test_getId_drmirror() {
-        int id = twitter.getId("drmirror");
+        long id = twitter.getId("drmirror");
         assertEquals(22603349, id);
     }
     
@@ -0,0 +1,57 @@
+package net.followt;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+import org.scribe.model.OAuthRequest;
+import org.scribe.model.Verb;
+
+import junit.framework.TestCase;
+import net.followt.sim.FollowerGraph;
+import net.followt.sim.TwitterSimulator;
+
+public class TwitterTransportTest extends TestCase {
+
+    private TwitterSimulator sim;
+    private Credential credential = new Credential("test", "key", "secret", "token", "tsecret");
+
+    protected void setUp() throws IOException {
+        FollowerGraph graph = new FollowerGraph(1, 100, 100, 0, 60 * 60 * 1000);
+        sim = new TwitterSimulator(graph, 60 * 60 * 1000, 200, 0);
+        sim.start(0);
+    }
+
+    protected void tearDown() {
+        sim.stop();
+    }
+
+    private OAuthRequest lookup() {
+        OAuthRequest result = new OAuthRequest(Verb.POST, sim.getUrl() + "users/lookup.json");
+        result.addBodyParameter("user_id", "1,2");
+        credential.sign(result);
+        return result;
+    }
+
+    public void test_gzip() throws Exception {
+        TwitterTransport t = new TwitterTransport(sim.getUrl());
+        TwitterResponse r = t.send(lookup()).get();
+        assertEquals(200, r.getCode());
+        assertEquals("gzip", r.getHeader("content-encoding"));
+        assertTrue(r.getBody().contains("\"screen_name\":\"user2\""));
+        assertEquals("899", r.getHeader("X-Rate-Limit-Remaining"));
+    }
+
+    public void test_timeout() throws Exception {
+        TwitterTransport t = new TwitterTransport(sim.getUrl(), 1000, 50);
+        try {
+            t.send(lookup()).get();
+            fail();
+        } catch (ExecutionException ex) {
+            Throwable cause = Twitter.unwrap(ex);
+            assertTrue(cause.toString(), cause instanceof TimeoutException
+                                         || cause instanceof java.net.http.HttpTimeoutException);
+        }
+    }
+
+}
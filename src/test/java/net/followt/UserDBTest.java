@@ -0,0 +1,58 @@
+package net.followt;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+import net.followt.sim.FollowerGraph;
+import net.followt.sim.TwitterSimulator;
+
+public class UserDBTest extends TestCase {
+
+    private TwitterSimulator sim;
+    private File dir;
+    private LocalFollowerStore store;
+    private UserDB db;
+
+    protected void setUp() throws IOException {
+        sim = new TwitterSimulator(new FollowerGraph(1, 100, 100, 0, 60 * 60 * 1000),
+                                   60 * 60 * 1000, 0, 0);
+        sim.start(0);
+        dir = Files.createTempDirectory("followt-users").toFile();
+        store = new LocalFollowerStore(dir);
+        Credential c = new Credential("test", "key", "secret", "token", "tsecret");
+        Twitter twitter = new Twitter(new CredentialPool(Collections.singletonList(c)), sim.getUrl());
+        db = new UserDB(twitter, store);
+    }
+
+    protected void tearDown() throws IOException {
+        sim.stop();
+        store.close();
+        for (File f : dir.listFiles()) f.delete();
+        dir.delete();
+    }
+
+    public void test_lookup() {
+        sim.setMissing(3);
+        String[] names = db.getScreenNames(new long[] { 1, 2, 3 }, 10, TimeUnit.SECONDS);
+        assertTrue(Arrays.equals(new String[] { "user1", "user2", "*3*" }, names));
+        assertEquals("*3*", store.getScreenNames(new long[] { 3 })[0]);
+    }
+
+    public void test_allMissing() {
+        // Twitter answers a batch of only deleted or suspended users with
+        // an error; they must be stored as such, not asked for again
+        sim.setMissing(5, 6);
+        String[] names = db.getScreenNames(new long[] { 5, 6 }, 10, TimeUnit.SECONDS);
+        assertTrue(Arrays.equals(new String[] { "*5*", "*6*" }, names));
+        assertTrue(Arrays.equals(names, store.getScreenNames(new long[] { 5, 6 })));
+        long requests = sim.getRequestCount();
+        assertTrue(Arrays.equals(names, db.getScreenNames(new long[] { 5, 6 }, 10, TimeUnit.SECONDS)));
+        assertEquals(requests, sim.getRequestCount());
+    }
+
+}
@@ -0,0 +1,164 @@
+package net.followt;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Date;
+
+import junit.framework.TestCase;
+import net.followt.sim.FollowerGraph;
+import net.followt.sim.TwitterSimulator;
+
+public class WebUITest extends TestCase {
+
+    /**
+     * Spark can only be started once per process, so all tests share
+     * one server.
+     */
+    private static int port = 0;
+    private static TwitterSimulator sim;
+    private static Bulkhead db;
+
+    protected void setUp() throws Exception {
+        synchronized (WebUITest.class) {
+            if (port == 0) start();
+        }
+    }
+
+    private static void start() throws Exception {
+        sim = new TwitterSimulator(new FollowerGraph(1, 100, 100, 0, 60 * 60 * 1000),
+                                                    60 * 60 * 1000, 0, 0);
+        sim.start(0);
+        Credential c = new Credential("test", "key", "secret", "token", "tsecret");
+        Twitter twitter = new Twitter(new CredentialPool(Collections.singletonList(c)), sim.getUrl());
+        LocalFollowerStore store =
+            new LocalFollowerStore(Files.createTempDirectory("followt-webui").toFile());
+        long now = System.currentTimeMillis();
+        // the first scan, and a later one
+        store.openIntervals(42, new long[] { 1, 2, 3 }, new Date(now - 3 * 3600000));
+        store.openIntervals(42, new long[] { 4, 5 }, new Date(now - 1800000));
+        store.closeIntervals(42, new long[] { 3 }, new Date(now - 1200000), null);
+        // a user whose followers' names are only looked up by test_placeholders
+        store.putScreenNames(new long[] { 43 }, new String[] { "user43" });
+        store.openIntervals(43, new long[] { 11, 12 }, new Date(now - 3 * 3600000));
+        store.openIntervals(43, new long[] { 13 }, new Date(now - 1800000));
+        db = new Bulkhead("test.db", 1, 100);
+        FollowT ui = new FollowT(store, new UserDB(twitter, store), null,
+                                 db, new Bulkhead("test.names", 8, 1000));
+        ServerSocket s = new ServerSocket(0);
+        int p = s.getLocalPort();
+        s.close();
+        WebUI.start(ui, p);
+        // the server starts in the background
+        for (int i=0; ; i++) {
+            try {
+                new Socket("localhost", p).close();
+                break;
+            } catch (IOException ex) {
+                if (i == 100) throw ex;
+                Thread.sleep(100);
+            }
+        }
+        port = p;
+    }
+
+    private HttpURLConnection get (String path) throws IOException {
+        return (HttpURLConnection)new URL("http://localhost:" + port + path).openConnection();
+    }
+
+    private static String body (HttpURLConnection c) throws IOException {
+        InputStream in = c.getResponseCode() < 400 ? c.getInputStream() : c.getErrorStream();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        for (int n; (n = in.read(buf)) > 0; ) out.write(buf, 0, n);
+        in.close();
+        return out.toString("UTF-8");
+    }
+
+    private static int count (String s, String part) {
+        int result = 0;
+        for (int i = s.indexOf(part); i >= 0; i = s.indexOf(part, i + 1)) result++;
+        return result;
+    }
+
+    public void test_streamedPages() throws IOException {
+        HttpURLConnection c = get("/api/followers/user42?limit=3");
+        assertEquals(200, c.getResponseCode());
+        assertTrue(c.getContentType(), c.getContentType().startsWith("application/json"));
+        // sent while it was written, not buffered
+        assertEquals("chunked", c.getHeaderField("Transfer-Encoding"));
+        String page = body(c);
+        assertEquals(page, 3, count(page, "\"id\":"));
+        int next = page.indexOf("\"next\":\"") + 8;
+        String token = page.substring(next, page.indexOf('"', next));
+
+        page = body(get("/api/followers/user42?limit=3&after=" + token));
+        assertEquals(page, 2, count(page, "\"id\":"));
+        assertTrue(page, page.contains("\"next\":null"));
+
+        page = body(get("/api/unfollowers/user42"));
+        assertTrue(page, page.contains("\"id\":3,\"screen_name\""));
+    }
+
+    public void test_invalidRequests() throws IOException {
+        HttpURLConnection c = get("/api/followers/user42?after=x");
+        assertEquals(400, c.getResponseCode());
+        assertTrue(body(c).startsWith("invalid token"));
+        // a key that only the store can tell is malformed
+        long now = System.currentTimeMillis();
+        assertEquals(400, get("/api/followers/user42?after=" + now + "-abc").getResponseCode());
+        assertEquals(400, get("/api/followers/user42?limit=many").getResponseCode());
+        assertEquals(400, get("/report/user42?interval=day").getResponseCode());
+    }
+
+    public void test_busy() throws IOException {
+        db.acquire();
+        try {
+            HttpURLConnection c = get("/api/followers/user42");
+            assertEquals(503, c.getResponseCode());
+            assertTrue(body(c).contains("test.db is busy"));
+            assertEquals(503, get("/report/user42").getResponseCode());
+        } finally {
+            db.release();
+        }
+        assertEquals(200, get("/api/followers/user42").getResponseCode());
+    }
+
+    public void test_report() throws IOException {
+        HttpURLConnection c = get("/report/user42");
+        assertEquals(200, c.getResponseCode());
+        assertTrue(c.getContentType(), c.getContentType().startsWith("text/html"));
+        String page = body(c);
+        // the followers found by the first scan are not new
+        assertFalse(page, page.contains("user1"));
+        assertTrue(page, page.contains("user4"));
+        assertTrue(page, page.contains("user3"));
+    }
+
+    public void test_placeholders() throws Exception {
+        // names that take longer than followt.report.names.timeout
+        sim.setLatency(FollowT.NAME_TIMEOUT + 1000);
+        try {
+            String page = body(get("/report/user43"));
+            assertTrue(page, page.contains("intent/user?user_id=13"));
+            assertTrue(page, page.contains("#13"));
+            assertFalse(page, page.contains("@user13"));
+            // the lookup goes on in the background
+            Thread.sleep(1500);
+        } finally {
+            sim.setLatency(0);
+        }
+        long requests = sim.getRequestCount();
+        String page = body(get("/report/user43"));
+        assertTrue(page, page.contains("@user13"));
+        assertFalse(page, page.contains("#13"));
+        assertEquals(requests, sim.getRequestCount());
+    }
+
+}
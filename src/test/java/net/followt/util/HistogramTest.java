@@ -0,0 +1,80 @@
+package net.followt.util;
+
+import java.lang.management.ManagementFactory;
+
+import junit.framework.TestCase;
+
+public class HistogramTest extends TestCase {
+
+    public void test_buckets() {
+        int previous = -1;
+        for (long v : new long[] {0, 1, 7, 8, 9, 15, 16, 17, 1000, 1000000, Long.MAX_VALUE}) {
+            int i = Histogram.index(v);
+            assertTrue(Histogram.lowerBound(i) <= v);
+            assertTrue(i == 487 || v < Histogram.lowerBound(i+1));
+            assertTrue(i >= previous);
+            previous = i;
+        }
+    }
+
+    public void test_bucketEdges() {
+        // values below 8 have a bucket each, then each power of two has 8
+        for (int i=0; i<8; i++) assertEquals(i, Histogram.lowerBound(i));
+        assertEquals(8, Histogram.lowerBound(8));
+        assertEquals(16, Histogram.lowerBound(16));
+        assertEquals(18, Histogram.lowerBound(17));
+        assertEquals(240, Histogram.index(1L << 32));
+        for (int i=1; i<=487; i++) {
+            long lower = Histogram.lowerBound(i);
+            assertEquals(i, Histogram.index(lower));
+            assertEquals(i - 1, Histogram.index(lower - 1));
+            // at most 12.5% wide
+            if (i < 487) assertTrue(i + ": " + lower, (Histogram.lowerBound(i+1) - lower - 1) * 8 <= lower);
+        }
+        assertEquals(Long.MAX_VALUE, Histogram.lowerBound(488));
+    }
+
+    public void test_percentileEdges() {
+        Histogram h = new Histogram();
+        h.record(3);
+        // small values are exact
+        assertEquals(3, h.getPercentile(0.5));
+        h.record(100);
+        h.record(1000);
+        // the upper end of the bucket of 100, which is [96, 104)
+        assertEquals(103, h.getPercentile(0.5));
+        assertEquals(3, h.getPercentile(0.33));
+        // but never more than the maximum
+        assertEquals(1000, h.getPercentile(0.99));
+        h.record(-5);
+        assertEquals(0, h.getPercentile(0.01));
+    }
+
+    public void test_percentiles() {
+        Histogram h = new Histogram();
+        assertEquals(0, h.getPercentile(0.5));
+        for (int i=1; i<=1000; i++) h.record(i * 1000L);
+        assertEquals(1000, h.getCount());
+        assertEquals(1000000, h.getMax());
+        assertEquals(500500.0, h.getMean() / 1000 * 1000, 1);
+        long p50 = h.getPercentile(0.5);
+        assertTrue(p50 >= 500000 && p50 <= 500000 * 1.125);
+        long p99 = h.getPercentile(0.99);
+        assertTrue(p99 >= 990000 && p99 <= 1000000);
+        assertEquals(1000000, h.getPercentile(1.0));
+    }
+
+    public void test_noAllocation() {
+        com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+        Histogram h = new Histogram();
+        h.record(1);
+        long id = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(id);
+        for (long i=0; i<1000000; i++) h.record(i * 37);
+        long allocated = threads.getThreadAllocatedBytes(id) - before;
+        // allow for the call to getThreadAllocatedBytes() itself
+        assertTrue("allocated " + allocated + " bytes", allocated < 1024);
+    }
+
+}
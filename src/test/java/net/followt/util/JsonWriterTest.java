@@ -0,0 +1,36 @@
+package net.followt.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.StringWriter;
+import java.util.Date;
+
+import junit.framework.TestCase;
+
+public class JsonWriterTest extends TestCase {
+
+    public void test_write() throws Exception {
+        StringWriter s = new StringWriter();
+        JsonWriter w = new JsonWriter(s);
+        w.beginObject()
+         .name("rows").beginArray()
+             .beginObject().name("id").value(1).name("name").value("a\"b\\c\n").endObject()
+             .beginObject().name("id").value(-2).name("name").value((String)null).endObject()
+         .endArray()
+         .name("time").value(new Date(0))
+         .endObject().flush();
+        assertEquals("{\"rows\":[{\"id\":1,\"name\":\"a\\\"b\\\\c\\n\"},{\"id\":-2,\"name\":null}],"
+                   + "\"time\":\"1970-01-01T00:00:00.000Z\"}", s.toString());
+
+        JsonReader r = new JsonReader(new ByteArrayInputStream(s.toString().getBytes("UTF-8")));
+        r.beginObject();
+        assertEquals("rows", r.nextName());
+        r.beginArray();
+        r.beginObject();
+        assertEquals("id", r.nextName());
+        assertEquals(1, r.nextLong());
+        assertEquals("name", r.nextName());
+        assertEquals("a\"b\\c\n", r.nextString());
+        r.endObject();
+    }
+
+}
@@ -0,0 +1,177 @@
+package net.followt.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.TreeSet;
+
+import junit.framework.TestCase;
+
+public class LongBitmapTest extends TestCase {
+
+    private long[] toArray (TreeSet<Long> s) {
+        long[] result = new long[s.size()];
+        int n = 0;
+        for (long x : s) result[n++] = x;
+        return result;
+    }
+
+    /**
+     * Values from a few dense and many sparse regions, so that
+     * both kinds of containers are used.
+     */
+    private TreeSet<Long> randomSet (Random r, int n) {
+        TreeSet<Long> result = new TreeSet<Long>();
+        while (result.size() < n) {
+            if (r.nextBoolean()) result.add((long)r.nextInt(200000));
+            else result.add((long)(r.nextDouble() * 5000000000L));
+        }
+        return result;
+    }
+
+    public void test_addContains() {
+        LongBitmap b = new LongBitmap();
+        assertTrue(b.add(5));
+        assertFalse(b.add(5));
+        assertTrue(b.add(3000000001L));
+        assertTrue(b.add(65536));
+        assertTrue(b.contains(5));
+        assertTrue(b.contains(3000000001L));
+        assertFalse(b.contains(6));
+        assertFalse(b.contains(-1));
+        assertEquals(3, b.cardinality());
+        assertTrue(Arrays.equals(new long[] {5, 65536, 3000000001L}, b.toArray()));
+    }
+
+    public void test_randomAndNot() {
+        Random r = new Random(1);
+        TreeSet<Long> a = randomSet(r, 50000);
+        TreeSet<Long> b = randomSet(r, 50000);
+        b.addAll(a.headSet(70000L));
+        LongBitmap ba = new LongBitmap();
+        for (long x : a) ba.add(x);
+        LongBitmap bb = new LongBitmap();
+        for (long x : b) bb.add(x);
+        assertTrue(Arrays.equals(toArray(a), ba.toArray()));
+
+        TreeSet<Long> expected = new TreeSet<Long>(a);
+        expected.removeAll(b);
+        assertTrue(Arrays.equals(toArray(expected), ba.andNot(bb).toArray()));
+        expected = new TreeSet<Long>(b);
+        expected.removeAll(a);
+        assertTrue(Arrays.equals(toArray(expected), bb.andNot(ba).toArray()));
+    }
+
+    public void test_mapped() throws IOException {
+        Random r = new Random(2);
+        TreeSet<Long> a = randomSet(r, 30000);
+        LongBitmap b = new LongBitmap();
+        for (long x : a) b.add(x);
+
+        File f = File.createTempFile("bitmap", ".tmp");
+        f.deleteOnExit();
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        b.write(raf.getChannel());
+        assertEquals(b.serializedSize(), raf.length());
+        LongBitmap m = LongBitmap.map(raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length()));
+        raf.close();
+
+        assertEquals(a.size(), m.cardinality());
+        assertTrue(Arrays.equals(toArray(a), m.toArray()));
+        for (long x : a) assertTrue(m.contains(x));
+        assertEquals(0, m.andNot(b).cardinality());
+
+        // modifying a mapped bitmap copies the affected containers
+        assertTrue(m.add(123456789012L));
+        assertTrue(m.add(a.first() + 1) != a.contains(a.first() + 1));
+        assertTrue(m.contains(123456789012L));
+        assertEquals(a.size(), b.cardinality());
+        assertTrue(m.andNot(b).contains(123456789012L));
+    }
+
+    public void test_sparseValues() {
+        LongBitmap b = new LongBitmap();
+        long big = 1L << 50;
+        assertTrue(b.add(big + 5));
+        assertTrue(b.add(3));
+        assertFalse(b.add(big + 5));
+        // a second value in the group of a sparse value gets a container
+        assertTrue(b.add(big + 7));
+        assertTrue(b.add(big + 65536));
+        assertTrue(Arrays.equals(new long[] {3, big + 5, big + 7, big + 65536}, b.toArray()));
+        assertTrue(b.contains(big + 7));
+        assertFalse(b.contains(big + 6));
+        assertTrue(Arrays.equals(new long[] {big + 6, big + 65537},
+                                 b.missing(new long[] {3, big + 6, big + 7, big + 65536, big + 65537})));
+
+        LongBitmap other = LongBitmap.of(new long[] {3, big + 7, big + 65536});
+        assertTrue(Arrays.equals(new long[] {big + 5}, b.andNot(other).toArray()));
+        assertTrue(Arrays.equals(new long[0], other.andNot(b).toArray()));
+    }
+
+    public void test_writeMapped() throws IOException {
+        Random r = new Random(4);
+        TreeSet<Long> a = randomSet(r, 10000);
+        LongBitmap b = LongBitmap.of(toArray(a));
+        File f = File.createTempFile("bitmap", ".tmp");
+        f.deleteOnExit();
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        b.write(raf.getChannel());
+        LongBitmap m = LongBitmap.map(raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length()));
+        raf.close();
+        // a mapped bitmap can be written again
+        File g = File.createTempFile("bitmap", ".tmp");
+        g.deleteOnExit();
+        raf = new RandomAccessFile(g, "rw");
+        m.write(raf.getChannel());
+        assertEquals(b.serializedSize(), raf.length());
+        m = LongBitmap.map(raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length()));
+        raf.close();
+        assertTrue(Arrays.equals(toArray(a), m.toArray()));
+    }
+
+    public void test_millionFollowers() {
+        Random r = new Random(3);
+        LongBitmap previous = new LongBitmap();
+        LongBitmap current = new LongBitmap();
+        for (int i=0; i<1000000; i++) {
+            long id = (long)(r.nextDouble() * 3000000000L);
+            previous.add(id);
+            if (i % 1000 != 0) current.add(id);
+        }
+        long start = System.nanoTime();
+        long[] unfollowers = previous.andNot(current).toArray();
+        long millis = (System.nanoTime() - start) / 1000000;
+        assertTrue(unfollowers.length >= 990 && unfollowers.length <= 1000);
+        assertTrue("andNot took " + millis + " ms", millis < 2000);
+    }
+
+    /**
+     * A million ids spread over the whole 64-bit range, as Twitter's are:
+     * nearly every one is in a group of its own, and must not cost a
+     * container.
+     */
+    public void test_millionSparseIds() {
+        Random r = new Random(5);
+        long[] previous = new long[1000000];
+        for (int i=0; i<previous.length; i++) previous[i] = r.nextLong() >>> 1;
+        Arrays.sort(previous);
+        long[] current = new long[previous.length];
+        int n = 0;
+        for (int i=0; i<previous.length; i++) {
+            if (i % 100 != 0) current[n++] = previous[i];
+        }
+        LongBitmap p = LongBitmap.of(previous);
+        LongBitmap c = LongBitmap.of(Arrays.copyOf(current, n));
+        assertTrue(p.serializedSize() < 8 * 1000000 + 1000);
+        long start = System.nanoTime();
+        long[] unfollowers = p.andNot(c).toArray();
+        long millis = (System.nanoTime() - start) / 1000000;
+        assertEquals(10000, unfollowers.length);
+        assertTrue("andNot took " + millis + " ms", millis < 1000);
+    }
+
+}
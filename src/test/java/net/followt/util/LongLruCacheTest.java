@@ -0,0 +1,55 @@
+package net.followt.util;
+
+import junit.framework.TestCase;
+
+public class LongLruCacheTest extends TestCase {
+
+    public void test_getPut() {
+        LongLruCache<String> c = new LongLruCache<String>(1000);
+        assertNull(c.get(1));
+        c.put(1, "one");
+        c.put(3000000000L, "big");
+        assertEquals("one", c.get(1));
+        assertEquals("big", c.get(3000000000L));
+        assertEquals(2, c.size());
+        assertEquals(2, c.getHits());
+        assertEquals(1, c.getMisses());
+        c.remove(1);
+        assertNull(c.get(1));
+    }
+
+    public void test_bounded() {
+        LongLruCache<String> c = new LongLruCache<String>(160);
+        for (long i=0; i<10000; i++) {
+            c.put(i, "x");
+        }
+        assertTrue("size " + c.size(), c.size() <= 160);
+        assertEquals(10000 - c.size(), c.getEvictions());
+    }
+
+    public void test_lru() {
+        LongLruCache<String> c = new LongLruCache<String>(16 * 4);
+        c.put(42, "keep");
+        for (long i=100; i<10000; i++) {
+            c.put(i, "x");
+            // touching the entry keeps it from being evicted
+            assertEquals("keep", c.get(42));
+        }
+    }
+
+    public void test_refresh() {
+        LongLruCache<String> c = new LongLruCache<String>(10);
+        c.put(7, "old");
+        LongLruCache.Entry<String> e = c.getEntry(7);
+        assertTrue(e.startRefresh());
+        assertFalse(e.startRefresh());
+        // a failed refresh keeps the value, and can be retried
+        e.cancelRefresh();
+        assertTrue(e.startRefresh());
+        assertEquals("old", c.get(7));
+        c.put(7, "new");
+        assertEquals("new", c.get(7));
+        assertTrue(c.getEntry(7).startRefresh());
+    }
+
+}